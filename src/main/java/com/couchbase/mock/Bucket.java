@@ -18,11 +18,14 @@ package com.couchbase.mock;
 import com.couchbase.mock.http.BucketAdminServer;
 import com.couchbase.mock.http.capi.CAPIServer;
 import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.EventLoopGroup;
 import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.SlabAllocator;
 import com.couchbase.mock.memcached.Storage;
 import com.couchbase.mock.memcached.VBucketInfo;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -33,8 +36,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Abstract class for all bucket types in Couchbase.
@@ -56,6 +57,16 @@ public abstract class Bucket {
         COUCHBASE
     }
 
+    /**
+     * What is evicted from memory when a node reaches its quota
+     */
+    public enum EvictionPolicy {
+        /** Only the values; the keys and metadata of all items stay in memory */
+        VALUE_ONLY,
+        /** Whole items */
+        FULL
+    }
+
     protected final VBucketInfo vbInfo[];
     protected final MemcachedServer servers[];
     protected final int numVBuckets;
@@ -66,6 +77,9 @@ public abstract class Bucket {
     protected final String password;
     protected final ReentrantReadWriteLock configurationRwLock;
     private final UUID uuid;
+    private final SlabAllocator valueAllocator;
+    private final long memoryQuota;
+    private final EvictionPolicy evictionPolicy;
 
     /**
      * Returns the vBucket map for the given bucket. This is only relevant for {@link CouchbaseBucket}
@@ -75,6 +89,24 @@ public abstract class Bucket {
         return vbInfo;
     }
 
+    /**
+     * @return the allocator holding the values of the items of this bucket, or null if they are kept on the heap
+     */
+    public SlabAllocator getValueAllocator() {
+        return valueAllocator;
+    }
+
+    /**
+     * @return the most memory the items of the bucket may use on each node (0 if not limited)
+     */
+    public long getMemoryQuota() {
+        return memoryQuota;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
     /**
      * Get the list of servers allocated for this bucket. This returns both active and inactive servers
      * @return an array of servers for this bucket.
@@ -167,6 +199,9 @@ public abstract class Bucket {
         uuid = UUID.randomUUID();
 
         this.configurationRwLock = new ReentrantReadWriteLock();
+        valueAllocator = config.offHeapValues ? new SlabAllocator() : null;
+        memoryQuota = config.memoryQuota;
+        evictionPolicy = config.evictionPolicy;
 
         for (int ii = 0; ii < vbInfo.length; ii++) {
             vbInfo[ii] = new VBucketInfo();
@@ -175,11 +210,31 @@ public abstract class Bucket {
         if (this.getClass() != MemcachedBucket.class && this.getClass() != CouchbaseBucket.class) {
             throw new FileNotFoundException("I don't know about this type...");
         }
+        // A bucket asking for dedicated I/O threads keeps the per-node thread model
+        EventLoopGroup group = config.numIoThreads > 0 ? null : cluster.getEventLoopGroup();
+        if (cluster.isSharedPorts() && config.numIoThreads > 0) {
+            throw new IllegalArgumentException("Dedicated I/O threads can't be used with shared ports");
+        }
         for (int ii = 0; ii < servers.length; ii++) {
-            servers[ii] = new MemcachedServer(this,
-                    config.hostname,
-                    (config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii),
-                    vbInfo, cluster.isCccpBootstrap());
+            int port = config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii;
+            if (cluster.isSharedPorts()) {
+                servers[ii] = new MemcachedServer(this, vbInfo, cluster.isCccpBootstrap(),
+                        cluster.getSharedPort(ii, config.hostname, port));
+            } else {
+                servers[ii] = new MemcachedServer(this, config.hostname, port,
+                        vbInfo, cluster.isCccpBootstrap(), config.numIoThreads, group, cluster.getSocketOptions());
+            }
+            servers[ii].setOutputWatermarks(config.outputHighWatermark, config.outputLowWatermark);
+            servers[ii].setWorkerPool(cluster.getWorkerPool());
+            servers[ii].setInProcessEnabled(config.inProcessTransport);
+            servers[ii].getStorage().setValueAllocator(valueAllocator);
+            servers[ii].getStorage().setMemoryQuota(memoryQuota, evictionPolicy);
+            servers[ii].getStorage().setReplication(config.asyncReplication, config.replicationLag, config.replicationRate);
+            servers[ii].getStorage().setReplicationQueueSize(config.replicationQueueSize);
+            if (config.unixSocketDirectory != null) {
+                servers[ii].enableUnixSocket(new File(config.unixSocketDirectory,
+                        String.format("%s-%d.sock", name, servers[ii].getPort())));
+            }
         }
 
         rebalance();
@@ -259,8 +314,8 @@ public abstract class Bucket {
         Map<String,Object> mm = new HashMap<String, Object>();
         mm.put("replicaNumber", numReplicas);
         Map<String,Object> ramQuota = new HashMap<String, Object>();
-        ramQuota.put("rawRAM", 1024 * 1024 * 100);
-        ramQuota.put("ram", 1024 * 1024 * 100);
+        ramQuota.put("rawRAM", memoryQuota);
+        ramQuota.put("ram", memoryQuota * servers.length);
         mm.put("quota", ramQuota);
         return mm;
     }
@@ -318,6 +373,8 @@ public abstract class Bucket {
             Info.incrementConfigRevision();
             if (index >= 0 && index < servers.length) {
                 servers[index].shutdown();
+                // Whatever the node didn't replicate yet must not reach the node taking over
+                servers[index].getStorage().clearReplication();
             }
             if (rebalance) {
                 rebalance();
@@ -326,6 +383,7 @@ public abstract class Bucket {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        notifyClusterMapChange();
     }
 
     /**
@@ -344,28 +402,22 @@ public abstract class Bucket {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        notifyClusterMapChange();
     }
 
     void start() {
         for (int ii = 0; ii < servers.length; ii++) {
             servers[ii].setName(String.format("%s:MCD[%d]", name, ii));
-            servers[ii].setDaemon(true);
-            servers[ii].start();
+            servers[ii].startServing();
         }
     }
 
     void stop() {
-        for (MemcachedServer t : servers) {
-            t.interrupt();
-            do {
-                try {
-                    t.join();
-                    t = null;
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(CouchbaseMock.class.getName()).log(Level.SEVERE, null, ex);
-                    t.interrupt();
-                }
-            } while (t != null);
+        for (MemcachedServer server : servers) {
+            server.stopServing();
+        }
+        for (MemcachedServer server : servers) {
+            server.getStorage().stopReplication();
         }
     }
 
@@ -406,10 +458,29 @@ public abstract class Bucket {
                 }
                 vbInfo[ii].setReplicas(replicas);
             }
+            // The queued mutations were meant for the replicas of the old map
+            for (MemcachedServer server : servers) {
+                server.getStorage().clearReplication();
+            }
         } finally {
             Info.incrementConfigRevision();
             configurationRwLock.writeLock().unlock();
         }
+        notifyClusterMapChange();
+    }
+
+    /**
+     * Push the new cluster map to the clients which subscribed to changes.
+     * Nested changes (such as the rebalance following a failover) leave it
+     * to the outermost one.
+     */
+    private void notifyClusterMapChange() {
+        if (configurationRwLock.isWriteLockedByCurrentThread()) {
+            return;
+        }
+        for (MemcachedServer server : servers) {
+            server.notifyClusterMapChange();
+        }
     }
 
     public void regenCoords() {
@@ -15,6 +15,7 @@
  */
 package com.couchbase.mock;
 
+import com.couchbase.mock.memcached.ReplicationStream;
 import org.jetbrains.annotations.NotNull;
 
 public class BucketConfiguration {
@@ -44,8 +45,59 @@ public class BucketConfiguration {
      * 5, then the nodes will listen on ports 1100 through 1104 */
     public int bucketStartPort = 0;
 
+    /** The number of I/O threads each node should spread its client connections over. If set to 0, the thread
+     * accepting connections on a node serves all of its clients as well. If set, the nodes of the bucket get their own
+     * threads rather than sharing the event loops of the cluster */
+    public int numIoThreads = 0;
+
+    /** The number of response bytes which may be queued for a client before the node stops reading requests from it.
+     * If set to 0, the output of a client is never limited */
+    public long outputHighWatermark = 4 * 1024 * 1024;
+
+    /** Once reading from a client has been suspended, it is resumed when no more than this number of response bytes
+     * are left in its queue */
+    public long outputLowWatermark = 1024 * 1024;
+
+    /** If set, each node also accepts connections on a Unix domain socket in this directory (named after the bucket
+     * and the TCP port of the node). This requires Java 16 or later. The TCP ports remain open, as they are what
+     * the cluster configuration refers to */
+    public String unixSocketDirectory = null;
+
+    /** Whether clients in the same JVM may connect to the nodes without a socket, see
+     * {@link com.couchbase.mock.memcached.MemcachedServer#connectInProcess()} */
+    public boolean inProcessTransport = false;
+
+    /** Whether the values of the items should be kept outside of the Java heap (in direct buffers), so that large
+     * data sets don't cause long garbage collection pauses. The nodes of the bucket share a single allocator */
+    public boolean offHeapValues = false;
+
+    /** The most memory (in bytes) the items of the bucket may use on each node. Once the items of a node take more
+     * than 85% of it, items are evicted; mutations which would take them over it fail with a temporary error. If set
+     * to 0, memory use is not limited */
+    public long memoryQuota = 100 * 1024 * 1024;
+
+    /** What is evicted once a node reaches the {@link #memoryQuota}. Items of memcached buckets are always dropped */
+    public Bucket.EvictionPolicy evictionPolicy = Bucket.EvictionPolicy.VALUE_ONLY;
+
+    /** Whether mutations are queued for the replicas and applied by a worker thread per replica, rather than applied
+     * before the client gets a response. Only then may the replicas fall behind the active nodes */
+    public boolean asyncReplication = false;
+
+    /** How long (in milliseconds) a queued mutation waits before it is applied to a replica */
+    public long replicationLag = 0;
+
+    /** The most queued mutations applied per second to each replica, or 0 for no limit */
+    public int replicationRate = 0;
+
+    /** How many queued mutations may wait for a replica before the vBuckets it replicates refuse mutations with a
+     * temporary failure */
+    public int replicationQueueSize = ReplicationStream.DEFAULT_QUEUE_SIZE;
+
     public boolean validate() {
-        return name != null && bucketStartPort >= 0;
+        return name != null && bucketStartPort >= 0 && numIoThreads >= 0 && memoryQuota >= 0 &&
+                replicationLag >= 0 && replicationRate >= 0 && replicationQueueSize > 0 &&
+                outputHighWatermark >= 0 && outputLowWatermark >= 0 &&
+                (outputHighWatermark == 0 || outputLowWatermark <= outputHighWatermark);
     }
 
     /**
@@ -67,6 +119,18 @@ public class BucketConfiguration {
         numReplicas = other.numReplicas;
         type = other.type;
         hostname = other.hostname;
+        numIoThreads = other.numIoThreads;
+        outputHighWatermark = other.outputHighWatermark;
+        outputLowWatermark = other.outputLowWatermark;
+        unixSocketDirectory = other.unixSocketDirectory;
+        inProcessTransport = other.inProcessTransport;
+        offHeapValues = other.offHeapValues;
+        memoryQuota = other.memoryQuota;
+        evictionPolicy = other.evictionPolicy;
+        asyncReplication = other.asyncReplication;
+        replicationLag = other.replicationLag;
+        replicationRate = other.replicationRate;
+        replicationQueueSize = other.replicationQueueSize;
     }
 
     /** Gets the {@link #name }
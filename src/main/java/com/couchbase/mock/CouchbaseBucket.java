@@ -58,6 +58,7 @@ public class CouchbaseBucket extends Bucket {
         map.put("rev", Info.getConfigRevision());
         map.put("name", name);
         map.put("bucketType", "membase");
+        map.put("evictionPolicy", getEvictionPolicy() == EvictionPolicy.FULL ? "fullEviction" : "valueOnly");
         map.put("authType", "sasl");
         map.put("saslPassword", getPassword());
         map.put("proxyPort", 0);
@@ -29,6 +29,9 @@ import com.couchbase.mock.http.UserManagementHandler;
 import com.couchbase.mock.http.capi.CAPIServer;
 import com.couchbase.mock.http.query.QueryServer;
 import com.couchbase.mock.httpio.HttpServer;
+import com.couchbase.mock.memcached.EventLoopGroup;
+import com.couchbase.mock.memcached.SharedPort;
+import com.couchbase.mock.memcached.SocketOptions;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.util.Getopt;
 import com.couchbase.mock.util.Getopt.CommandLineOption;
@@ -46,6 +49,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,10 +63,12 @@ import java.util.logging.Logger;
  * of sorts.
  *
  *
- * Unlike in a real cluster, the mock "Nodes" do not support multi-tenancy, or in
- * other words, a single "Node" can only serve a single bucket. From a client
- * perspective this should not matter, but it is important to keep this aspect in
- * mind.
+ * Unlike in a real cluster, the mock "Nodes" do not support multi-tenancy by
+ * default, or in other words, a single "Node" can only serve a single bucket. From
+ * a client perspective this should not matter, but it is important to keep this
+ * aspect in mind. With {@link #setSharedPorts(boolean)} the buckets share a single
+ * memcached port per node instead, and clients select the bucket they use with
+ * {@code SELECT_BUCKET} (or by authenticating with its name).
  */
 public class CouchbaseMock {
     private final Map<String,BucketConfiguration> initialConfigs;
@@ -76,6 +87,16 @@ public class CouchbaseMock {
 
     private int port = 8091;
     private HarakiriMonitor harakiriMonitor;
+    private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+    private EventLoopGroup eventLoopGroup;
+    private final SocketOptions socketOptions = new SocketOptions();
+    private int workerThreads = 0;
+    private ExecutorService workerPool;
+    private int expiryPagerInterval = 10;
+    private ScheduledExecutorService expiryPagerTimer;
+    private boolean sharedPorts = false;
+    // The memcached ports of the nodes, if the buckets share them
+    private final List<SharedPort> nodePorts = new ArrayList<SharedPort>();
 
     public boolean isCccpBootstrap() {
         return cccpBootstrap;
@@ -121,6 +142,138 @@ public class CouchbaseMock {
         return "default";
     }
 
+    /**
+     * Set the number of threads serving the memcached ports of all the buckets.
+     * This must be called before the cluster is started.
+     *
+     * @param numThreads The number of threads, or 0 to give each node of each
+     *                   bucket a thread of its own
+     */
+    public void setEventLoopThreads(int numThreads) {
+        if (numThreads < 0) {
+            throw new IllegalArgumentException("The number of event loop threads must be >= 0");
+        }
+        eventLoopThreads = numThreads;
+    }
+
+    /**
+     * @return the event loops shared by the memcached servers, or null if each
+     *         server runs on its own thread
+     */
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Set the number of threads executing expensive commands (such as
+     * multi-path subdoc mutations) for clients which negotiated unordered
+     * execution. This must be called before the cluster is started.
+     *
+     * @param numThreads The number of threads, or 0 to execute all commands
+     *                   in order (and refuse unordered execution)
+     */
+    public void setWorkerThreads(int numThreads) {
+        if (numThreads < 0) {
+            throw new IllegalArgumentException("The number of worker threads must be >= 0");
+        }
+        workerThreads = numThreads;
+    }
+
+    /**
+     * @return the pool executing expensive commands, or null if there is none
+     */
+    public ExecutorService getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Set how often the items which have expired are removed from all the
+     * buckets (in addition to being removed when they are accessed). This
+     * must be called before the cluster is started.
+     *
+     * @param seconds The time between two runs of the expiry pagers, or 0
+     *                to only run them when the clock of the cluster travels
+     */
+    public void setExpiryPagerInterval(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("The expiry pager interval must be >= 0");
+        }
+        expiryPagerInterval = seconds;
+    }
+
+    public int getExpiryPagerInterval() {
+        return expiryPagerInterval;
+    }
+
+    /**
+     * Remove the items which have expired from all the nodes of all the buckets
+     *
+     * @return the number of items removed
+     */
+    public int runExpiryPagers() {
+        int removed = 0;
+        for (Bucket bucket : getBuckets().values()) {
+            for (MemcachedServer server : bucket.getServers()) {
+                removed += server.getStorage().getExpiryPager().run();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Let all the buckets of a node share a single memcached port (the port
+     * the first bucket created on the node asked for), the way a real cluster
+     * does. This needs the event loop group, and must be called before the
+     * cluster is started.
+     *
+     * @param enabled Whether the buckets should share the ports of the nodes
+     */
+    public void setSharedPorts(boolean enabled) {
+        sharedPorts = enabled;
+    }
+
+    public boolean isSharedPorts() {
+        return sharedPorts;
+    }
+
+    /**
+     * Get the memcached port of a node, opening it if needed
+     *
+     * @param index The index of the node
+     * @param hostname The hostname to listen on if the port is opened (null == any)
+     * @param port The port to listen on if the port is opened (0 for an ephemeral port)
+     * @return the port the buckets on the node share
+     * @throws IOException If the port could not be opened
+     */
+    SharedPort getSharedPort(int index, String hostname, int port) throws IOException {
+        if (!sharedPorts) {
+            throw new IllegalStateException("The buckets don't share ports");
+        }
+        if (eventLoopGroup == null) {
+            throw new IllegalStateException("Shared ports need the event loop group");
+        }
+        synchronized (nodePorts) {
+            while (nodePorts.size() <= index) {
+                nodePorts.add(null);
+            }
+            if (nodePorts.get(index) == null) {
+                nodePorts.set(index, new SharedPort(hostname, port, eventLoopGroup, socketOptions));
+            }
+            return nodePorts.get(index);
+        }
+    }
+
+    /**
+     * Get the socket settings of the memcached ports. The backlog must be set
+     * before the buckets are created; the other settings apply to the
+     * connections accepted after they were changed.
+     *
+     * @return the socket settings shared by all the memcached servers
+     */
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
     /**
      * Return the list of active buckets for inspection. The returned value should not be modified.
      * Use {@link #createBucket(BucketConfiguration)} or {@link #removeBucket(String)} to add or
@@ -385,6 +538,45 @@ public class CouchbaseMock {
      * @throws IOException if an I/O error occurs
      */
     private void start(String docsFile, String monitorAddress, boolean useBeerSample) throws IOException {
+        if (eventLoopThreads > 0 && eventLoopGroup == null) {
+            eventLoopGroup = new EventLoopGroup(eventLoopThreads);
+            eventLoopGroup.start();
+        }
+        if (workerThreads > 0 && workerPool == null) {
+            workerPool = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+                private final AtomicInteger next = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, String.format("Worker[%d]", next.getAndIncrement()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        if (expiryPagerInterval > 0 && expiryPagerTimer == null) {
+            expiryPagerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ExpiryPager");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            expiryPagerTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runExpiryPagers();
+                    } catch (RuntimeException ex) {
+                        // Don't let a failed run cancel the ones to come
+                        Logger.getLogger(CouchbaseMock.class.getName()).log(Level.WARNING, "Expiry pager failed", ex);
+                    }
+                }
+            }, expiryPagerInterval, expiryPagerInterval, TimeUnit.SECONDS);
+        }
+
         try {
             if (port == 0) {
                 ServerSocketChannel ch = ServerSocketChannel.open();
@@ -464,10 +656,27 @@ public class CouchbaseMock {
      * any buckets which are part of the cluster.
      */
     public void stop() {
+        if (expiryPagerTimer != null) {
+            expiryPagerTimer.shutdownNow();
+        }
         httpServer.stopServer();
         for (Bucket bucket : buckets.values()) {
             bucket.stop();
         }
+        synchronized (nodePorts) {
+            for (SharedPort nodePort : nodePorts) {
+                if (nodePort != null) {
+                    nodePort.close();
+                }
+            }
+            nodePorts.clear();
+        }
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
     }
 
     private static void printVersion() {
@@ -477,6 +686,7 @@ public class CouchbaseMock {
     private static void printHelp() {
         final PrintStream o = System.out;
         BucketConfiguration defaultConfig = new BucketConfiguration();
+        SocketOptions socketDefaults = new SocketOptions();
 
         o.printf("%s%n%n", Info.getFullVersion());
         o.printf("Options are:%n");
@@ -494,6 +704,22 @@ public class CouchbaseMock {
         o.printf("                      be later added via the REST API%n");
         o.printf("-c --cccp             Enable Carrier Publication bootstrap protocol by default%n");
         o.printf("-d --debug            Enable debug mode%n");
+        o.printf("   --event-loop-threads The number of threads serving the memcached ports of all%n");
+        o.printf("                      buckets. 0 gives each node its own thread. Default=%d%n",
+                Runtime.getRuntime().availableProcessors());
+        o.printf("   --tcp-nodelay      Disable Nagle's algorithm on all memcached connections (clients%n");
+        o.printf("                      may also request it with HELLO)%n");
+        o.printf("   --socket-sndbuf    The send buffer size of memcached connections (0 for the system%n");
+        o.printf("                      default). Default=%d%n", socketDefaults.getSendBufferSize());
+        o.printf("   --socket-rcvbuf    The receive buffer size of memcached connections (0 for the%n");
+        o.printf("                      system default). Default=%d%n", socketDefaults.getReceiveBufferSize());
+        o.printf("   --listen-backlog   The backlog of the memcached ports (0 for the system default)%n");
+        o.printf("   --worker-threads   The number of threads executing expensive commands out of order%n");
+        o.printf("                      for clients negotiating it with HELLO. Default=0 (disabled)%n");
+        o.printf("   --expiry-pager-interval The number of seconds between two removals of the expired%n");
+        o.printf("                      items of all buckets (0 to disable). Default=10%n");
+        o.printf("   --shared-ports     Serve all buckets of a node on a single memcached port; clients%n");
+        o.printf("                      pick the bucket with SELECT_BUCKET%n");
         o.printf("%n");
         o.printf("=== -- bucket option ===%n");
         o.printf("Buckets descriptions is a comma-separated list of {name}:{password}:{bucket type} pairs.%n");
@@ -517,6 +743,11 @@ public class CouchbaseMock {
         String docsFile = null;
         boolean useBeerSample = false;
         boolean emptyCluster = false;
+        int eventLoopThreads = -1;
+        int workerThreads = 0;
+        boolean sharedPorts = false;
+        int expiryPagerInterval = -1;
+        SocketOptions socketOptions = new SocketOptions();
 
         Getopt getopt = new Getopt();
         getopt.addOption(new CommandLineOption('h', "--host", true)).
@@ -531,6 +762,14 @@ public class CouchbaseMock {
                 addOption(new CommandLineOption('E', "--empty", false)).
                 addOption(new CommandLineOption('c', "--cccp", false)).
                 addOption(new CommandLineOption('d', "--debug", false)).
+                addOption(new CommandLineOption('\0', "--event-loop-threads", true)).
+                addOption(new CommandLineOption('\0', "--tcp-nodelay", false)).
+                addOption(new CommandLineOption('\0', "--socket-sndbuf", true)).
+                addOption(new CommandLineOption('\0', "--socket-rcvbuf", true)).
+                addOption(new CommandLineOption('\0', "--listen-backlog", true)).
+                addOption(new CommandLineOption('\0', "--worker-threads", true)).
+                addOption(new CommandLineOption('\0', "--expiry-pager-interval", true)).
+                addOption(new CommandLineOption('\0', "--shared-ports", false)).
                 addOption(new CommandLineOption('\0', "--version", false)).
                 addOption(new CommandLineOption('?', "--help", false));
 
@@ -558,6 +797,22 @@ public class CouchbaseMock {
                 cccpBootstrap = true;
             } else if (e.key.equals("-d") || e.key.equals("--debug")) {
                 debug = true;
+            } else if (e.key.equals("--event-loop-threads")) {
+                eventLoopThreads = Integer.parseInt(e.value);
+            } else if (e.key.equals("--tcp-nodelay")) {
+                socketOptions.setTcpNoDelay(true);
+            } else if (e.key.equals("--socket-sndbuf")) {
+                socketOptions.setSendBufferSize(Integer.parseInt(e.value));
+            } else if (e.key.equals("--socket-rcvbuf")) {
+                socketOptions.setReceiveBufferSize(Integer.parseInt(e.value));
+            } else if (e.key.equals("--listen-backlog")) {
+                socketOptions.setBacklog(Integer.parseInt(e.value));
+            } else if (e.key.equals("--worker-threads")) {
+                workerThreads = Integer.parseInt(e.value);
+            } else if (e.key.equals("--expiry-pager-interval")) {
+                expiryPagerInterval = Integer.parseInt(e.value);
+            } else if (e.key.equals("--shared-ports")) {
+                sharedPorts = true;
             } else if (e.key.equals("--harakiri-monitor")) {
                 int idx = e.value.indexOf(':');
                 if (idx == -1) {
@@ -578,6 +833,18 @@ public class CouchbaseMock {
             if (emptyCluster) {
                 mock.clearInitialConfigs();
             }
+            if (eventLoopThreads != -1) {
+                mock.setEventLoopThreads(eventLoopThreads);
+            }
+            mock.setWorkerThreads(workerThreads);
+            mock.setSharedPorts(sharedPorts);
+            if (expiryPagerInterval != -1) {
+                mock.setExpiryPagerInterval(expiryPagerInterval);
+            }
+            mock.getSocketOptions().setTcpNoDelay(socketOptions.isTcpNoDelay());
+            mock.getSocketOptions().setSendBufferSize(socketOptions.getSendBufferSize());
+            mock.getSocketOptions().setReceiveBufferSize(socketOptions.getReceiveBufferSize());
+            mock.getSocketOptions().setBacklog(socketOptions.getBacklog());
 
             mock.start(docsFile, harakiriMonitorAddress, useBeerSample);
 
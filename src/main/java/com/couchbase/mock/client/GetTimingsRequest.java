@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import org.jetbrains.annotations.Nullable;
+
+public class GetTimingsRequest extends MockRequest {
+    public GetTimingsRequest(@Nullable String bucket, boolean reset) {
+        super();
+        setName("get_timings");
+        if (bucket != null) {
+            payload.put("bucket", bucket);
+        }
+        if (reset) {
+            payload.put("reset", true);
+        }
+    }
+
+    public GetTimingsRequest() {
+        this(null, false);
+    }
+}
@@ -75,7 +75,8 @@ public abstract class MockCommand {
         SET_ENHANCED_ERRORS,
         SET_QUERY_ERROR_STATE,
         SET_COMPRESSION,
-        SET_SASL_MECHANISMS
+        SET_SASL_MECHANISMS,
+        GET_TIMINGS
     }
 
     /**
@@ -22,6 +22,7 @@ import com.couchbase.mock.control.handlers.CompressionCommandHandler;
 import com.couchbase.mock.control.handlers.EnhancedErrorsCommandHandler;
 import com.couchbase.mock.control.handlers.FailoverCommandHandler;
 import com.couchbase.mock.control.handlers.GetCmdLogCommandHandler;
+import com.couchbase.mock.control.handlers.GetTimingsCommandHandler;
 import com.couchbase.mock.control.handlers.GetMCPortsHandler;
 import com.couchbase.mock.control.handlers.HiccupCommandHandler;
 import com.couchbase.mock.control.handlers.KeyInfoCommandHandler;
@@ -95,6 +96,7 @@ public class MockCommandDispatcher {
         registerClass(MockCommand.Command.SET_QUERY_ERROR_STATE, SetQueryErrorStateCommandHandler.class);
         registerClass(MockCommand.Command.SET_COMPRESSION, CompressionCommandHandler.class);
         registerClass(MockCommand.Command.SET_SASL_MECHANISMS, SetSaslMechanismsCommandHandler.class);
+        registerClass(MockCommand.Command.GET_TIMINGS, GetTimingsCommandHandler.class);
     }
 
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.control.handlers;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.control.MockCommand;
+import com.couchbase.mock.memcached.LatencyHistogram;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Get the time the memcached servers of a bucket spent executing
+ * each kind of command. The payload is an array with one object per
+ * node (or the object of a single node if <i>idx</i> is given).
+ */
+public class GetTimingsCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        String name = "default";
+        if (payload.has("bucket")) {
+            name = payload.get("bucket").getAsString();
+        }
+        Bucket bucket = mock.getBuckets().get(name);
+        if (bucket == null) {
+            return new CommandStatus().fail("No such bucket: " + name);
+        }
+        boolean reset = payload.has("reset") && payload.get("reset").getAsBoolean();
+
+        MemcachedServer[] servers = bucket.getServers();
+        CommandStatus status = new CommandStatus();
+        if (payload.has("idx")) {
+            int idx = payload.get("idx").getAsInt();
+            if (idx < 0 || idx >= servers.length) {
+                return new CommandStatus().fail("No such server: " + idx);
+            }
+            status.setPayload(getServerTimings(servers[idx], reset));
+        } else {
+            JsonArray arr = new JsonArray();
+            for (MemcachedServer server : servers) {
+                arr.add(getServerTimings(server, reset));
+            }
+            status.setPayload(arr);
+        }
+        return status;
+    }
+
+    private static JsonObject getServerTimings(MemcachedServer server, boolean reset) {
+        JsonObject obj = new JsonObject();
+        for (CommandCode cc : CommandCode.values()) {
+            LatencyHistogram histogram = server.getTimings(cc);
+            if (histogram.getCount() != 0) {
+                obj.add(cc.name().toLowerCase(), toJson(histogram));
+            }
+        }
+        if (reset) {
+            server.resetTimings();
+        }
+        return obj;
+    }
+
+    private static JsonObject toJson(LatencyHistogram histogram) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("count", histogram.getCount());
+        obj.addProperty("mean_us", histogram.getMeanMicros());
+        obj.addProperty("p50_us", histogram.getPercentileMicros(50));
+        obj.addProperty("p90_us", histogram.getPercentileMicros(90));
+        obj.addProperty("p99_us", histogram.getPercentileMicros(99));
+        obj.addProperty("p999_us", histogram.getPercentileMicros(99.9));
+        obj.addProperty("max_us", histogram.getMaxMicros());
+
+        // Only the buckets which have been hit, as [start_us, count] pairs
+        JsonArray buckets = new JsonArray();
+        for (int ii = 0; ii < histogram.getNumBuckets(); ii++) {
+            long num = histogram.getBucketCount(ii);
+            if (num != 0) {
+                JsonArray pair = new JsonArray();
+                pair.add(new JsonPrimitive(histogram.getBucketStart(ii)));
+                pair.add(new JsonPrimitive(num));
+                buckets.add(pair);
+            }
+        }
+        obj.add("histogram", buckets);
+        return obj;
+    }
+}
@@ -22,6 +22,7 @@ import com.couchbase.mock.memcached.Item;
 import com.couchbase.mock.memcached.KeySpec;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.ValueFreedException;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
@@ -42,7 +43,13 @@ public final class KeyInfoCommandHandler extends KeyCommandHandler {
     private static Map<String,Object> itemToString(Item itm) {
         Map<String,Object> ret = new HashMap<String, Object>();
         if (itm != null) {
-            byte[] value = itm.getValue();
+            byte[] value;
+            try {
+                value = itm.getValue();
+            } catch (ValueFreedException ex) {
+                // The item was replaced or removed while we read it
+                return ret;
+            }
             String valueString = null;
             if (value != null) {
                 valueString = new String(value);
@@ -20,6 +20,7 @@ import com.couchbase.mock.control.CommandStatus;
 import com.couchbase.mock.memcached.Item;
 import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.Storage;
+import com.couchbase.mock.memcached.ValueFreedException;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -158,6 +159,9 @@ public final class PersistenceCommandHandler extends KeyCommandHandler {
             executeReal(payload, command);
         } catch (AccessControlException e) {
             error = e.getMessage();
+        } catch (ValueFreedException e) {
+            // The item was replaced or removed while we copied it; the caller may retry
+            error = e.getMessage();
         }
 
         return getResponse();
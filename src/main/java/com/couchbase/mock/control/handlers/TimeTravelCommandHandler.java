@@ -30,6 +30,8 @@ public final class TimeTravelCommandHandler extends MockCommand {
     public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
         if (payload.has("Offset")) {
             Info.timeTravel(payload.get("Offset").getAsInt());
+            // Items which expired with the jump are removed right away, rather than on the next tick
+            mock.runExpiryPagers();
         } else {
             throw new MissingRequiredFieldException("Offset");
         }
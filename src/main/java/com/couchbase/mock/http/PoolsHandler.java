@@ -211,12 +211,21 @@ public class PoolsHandler {
             }
             String sQuota = params.get("ramQuotaMB");
             if (sQuota == null) {
-                throw new CreateBucketBadParamsException("ramQuotaMB missing (but we ignore it)");
+                throw new CreateBucketBadParamsException("ramQuotaMB missing");
             }
             int iQuota = Integer.parseInt(sQuota);
             if (iQuota < 100) {
                 throw new CreateBucketBadParamsException("Ram quota must be greater than 100");
             }
+            config.memoryQuota = iQuota * 1024L * 1024L;
+            String sEviction = params.get("evictionPolicy");
+            if (sEviction == null || sEviction.equals("valueOnly")) {
+                config.evictionPolicy = Bucket.EvictionPolicy.VALUE_ONLY;
+            } else if (sEviction.equals("fullEviction")) {
+                config.evictionPolicy = Bucket.EvictionPolicy.FULL;
+            } else {
+                throw new CreateBucketBadParamsException("evictionPolicy must be 'valueOnly' or 'fullEviction'");
+            }
         } catch (NumberFormatException ex) {
             throw new CreateBucketBadParamsException("Bad numeric value");
         }
@@ -37,19 +37,20 @@ class AppendPrependCommandExecutor implements CommandExecutor {
         VBucketStore cache = server.getStorage().getCache(server, cmd.getVBucketId());
 
         MutationStatus ms;
-        Item existing = cache.get(command.getKeySpec());
-        if (existing != null && existing.getValue().length + command.getItem(client.snappyMode()).getValue().length > Info.itemSizeMax()) {
+        Item item = command.getItem(client.snappyMode());
+        Item existing = cache.get(item.getKeySpec());
+        if (existing != null && existing.getValueLength() + item.getValueLength() > Info.itemSizeMax()) {
             return new BinaryResponse(cmd, ErrorCode.E2BIG);
         }
 
         switch (cmd.getComCode()) {
             case APPEND:
             case APPENDQ:
-                ms = cache.append(command.getItem(client.snappyMode()), client.supportsXerror());
+                ms = cache.append(item, client.supportsXerror());
                 break;
             case PREPEND:
             case PREPENDQ:
-                ms = cache.prepend(command.getItem(client.snappyMode()), client.supportsXerror());
+                ms = cache.prepend(item, client.supportsXerror());
                 break;
             default:
                 throw new ProtocolException("invalid opcode for Append/Prepend handler: " + cmd.getComCode());
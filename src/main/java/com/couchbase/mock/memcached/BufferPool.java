@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of (heap or direct) buffers grouped in power-of-two size classes.
+ *
+ * Buffers handed out by {@link #allocate(int)} have their limit set to the
+ * requested size, but their capacity is that of the size class. Returning a
+ * buffer to the pool is optional; a buffer which is never released is simply
+ * left to the garbage collector. The pool never retains more than a fixed
+ * number of bytes, and requests larger than the biggest size class are
+ * served by plain allocations.
+ *
+ * The pool may be used from any thread.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 25;
+    public static final long DEFAULT_MAX_RETAINED = 64 * 1024 * 1024;
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicLong retained = new AtomicLong();
+    private final long maxRetained;
+    private final boolean direct;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_RETAINED);
+    }
+
+    public BufferPool(long maxRetained) {
+        this(maxRetained, false);
+    }
+
+    /**
+     * @param maxRetained The maximum number of bytes kept in the pool
+     * @param direct Whether the pool should hand out direct buffers
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxRetained, boolean direct) {
+        this.maxRetained = maxRetained;
+        this.direct = direct;
+        free = (Queue<ByteBuffer>[]) new Queue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int ii = 0; ii < free.length; ii++) {
+            free[ii] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Get a buffer which may hold at least {@code size} bytes
+     *
+     * @param size The number of bytes needed
+     * @return A buffer positioned at 0 with the limit set to {@code size}
+     */
+    public ByteBuffer allocate(int size) {
+        int idx = sizeClass(size);
+        if (idx < 0) {
+            return newBuffer(size);
+        }
+
+        ByteBuffer buffer = free[idx].poll();
+        if (buffer == null) {
+            buffer = newBuffer(1 << (idx + MIN_SHIFT));
+        } else {
+            retained.addAndGet(-buffer.capacity());
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private ByteBuffer newBuffer(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not touch the buffer
+     * (or anything sharing its content) after this call.
+     *
+     * @param buffer A buffer previously returned from {@link #allocate(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || buffer.isDirect() != direct || buffer.isReadOnly()) {
+            return;
+        }
+        int idx = sizeClass(capacity);
+        if (idx < 0 || (1 << (idx + MIN_SHIFT)) != capacity) {
+            return;
+        }
+        if (retained.addAndGet(capacity) > maxRetained) {
+            retained.addAndGet(-capacity);
+            return;
+        }
+        free[idx].add(buffer);
+    }
+
+    /**
+     * @return the number of bytes currently held by the pool
+     */
+    public long getRetainedBytes() {
+        return retained.get();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector and the thread driving it.
+ *
+ * Channels registered with the loop carry the object responsible for them as
+ * their attachment: a {@link MemcachedServer} (or a {@link SharedPort}) for a
+ * listening socket, and a {@link MemcachedConnection} for a client socket.
+ *
+ * Other threads may not touch the selector directly; they hand work over
+ * using {@link #execute(Runnable)} instead. Work may also be deferred with
+ * {@link #schedule(long, Runnable)}, which is backed by a {@link TimerWheel}
+ * the loop drives by limiting how long it waits in {@code select}.
+ */
+public class EventLoop implements Runnable {
+    private static final long TIMER_TICK_MS = 5;
+    private static final int TIMER_SLOTS = 512;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final TimerWheel timers;
+    private volatile Thread thread;
+
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+        timers = new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS, now());
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Schedule a task to be run on the loop thread
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on the loop thread after a delay. The task is run on the
+     * loop thread, and must not block.
+     *
+     * @param delayMillis How long to wait before running the task
+     * @param task The task to run
+     */
+    public void schedule(final long delayMillis, final Runnable task) {
+        if (inEventLoop()) {
+            timers.schedule(delayMillis, task, now());
+            return;
+        }
+
+        final long now = now();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timers.schedule(delayMillis, task, now);
+            }
+        });
+    }
+
+    /**
+     * @return true if the caller is running on the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Register a channel with this loop. This may be called from any thread
+     *
+     * @param channel The channel to register
+     * @param ops The initial interest set
+     * @param attachment The owner of the channel
+     */
+    void register(final SelectableChannel channel, final int ops, final Object attachment) {
+        if (inEventLoop()) {
+            doRegister(channel, ops, attachment);
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                doRegister(channel, ops, attachment);
+            }
+        });
+    }
+
+    /**
+     * @param channel A channel
+     * @return the key of the channel if it is registered with this loop, or null
+     */
+    SelectionKey keyFor(SelectableChannel channel) {
+        return channel.keyFor(selector);
+    }
+
+    private void doRegister(SelectableChannel channel, int ops, Object attachment) {
+        try {
+            channel.register(selector, ops, attachment);
+        } catch (ClosedChannelException ex) {
+            // Closed before we got to it. Nothing to do
+        }
+    }
+
+    /**
+     * Close the listening socket of a server and the connections of its
+     * clients. This may be called from any thread; the channels are closed
+     * on the loop thread.
+     *
+     * @param owner The server whose channels should be closed
+     */
+    void closeChannels(final MemcachedServer owner) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment == owner) {
+                        try {
+                            key.channel().close();
+                        } catch (IOException e) {
+                            Logger.getLogger(EventLoop.class.getName()).log(Level.FINE, null, e);
+                        }
+                        key.cancel();
+                    } else if (attachment instanceof MemcachedConnection
+                            && ((MemcachedConnection) attachment).getServer() == owner) {
+                        owner.closeClient(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void dispatch(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            // Closed while handling an earlier key of the same round
+            return;
+        }
+        Object attachment = key.attachment();
+        if (attachment instanceof MemcachedConnection) {
+            MemcachedConnection client = (MemcachedConnection) attachment;
+            MemcachedServer server = client.getServer();
+            if (server.isActive()) {
+                server.handleClient(key);
+            }
+        } else if (attachment instanceof MemcachedServer) {
+            MemcachedServer server = (MemcachedServer) attachment;
+            if (server.isActive()) {
+                server.handleNewClient((ServerSocketChannel) key.channel());
+            }
+        } else if (attachment instanceof SharedPort) {
+            ((SharedPort) attachment).handleNewClient();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!thread.isInterrupted()) {
+                try {
+                    selector.select(timers.nextTimeout(now()));
+                } catch (IOException ex) {
+                    continue;
+                }
+
+                runTasks();
+                timers.expire(now());
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        dispatch(key);
+                    } catch (IOException e) {
+                        Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, e);
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+}
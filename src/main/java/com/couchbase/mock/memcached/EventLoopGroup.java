@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link EventLoop}s (each with its own thread) shared by
+ * many {@link MemcachedServer}s, so that the number of threads does not
+ * grow with the number of buckets and nodes.
+ *
+ * Listening sockets and client connections are spread over the loops in
+ * a round-robin fashion.
+ */
+public class EventLoopGroup {
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param numThreads The number of loops (and threads) in the group
+     * @throws IOException If a selector could not be opened
+     */
+    public EventLoopGroup(int numThreads) throws IOException {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be > 0");
+        }
+        loops = new EventLoop[numThreads];
+        threads = new Thread[numThreads];
+        for (int ii = 0; ii < loops.length; ii++) {
+            loops[ii] = new EventLoop();
+        }
+    }
+
+    /**
+     * Start the threads running the loops
+     */
+    public synchronized void start() {
+        for (int ii = 0; ii < loops.length; ii++) {
+            if (threads[ii] == null) {
+                threads[ii] = new Thread(loops[ii], String.format("EventLoop[%d]", ii));
+                threads[ii].setDaemon(true);
+                threads[ii].start();
+            }
+        }
+    }
+
+    /**
+     * Stop all the loops (closing all the channels registered with them),
+     * and wait for their threads to terminate
+     */
+    public synchronized void shutdown() {
+        for (Thread thread : threads) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        for (Thread thread : threads) {
+            if (thread == null) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the loop the next channel should be registered with
+     */
+    public EventLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * @return the number of loops in the group
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    EventLoop[] getLoops() {
+        return loops;
+    }
+}
@@ -17,17 +17,12 @@ package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.memcached.protocol.BinaryCommand;
 import com.couchbase.mock.memcached.protocol.BinaryResponse;
-import com.couchbase.mock.memcached.protocol.ErrorCode;
 
 public class EvictCommandExecutor implements CommandExecutor {
     @Override
     public BinaryResponse execute(BinaryCommand command, MemcachedServer server, MemcachedConnection client) {
-        VBucketStore cache = server.getStorage().getCache(server, command.getVBucketId());
-
-        if (cache.get(command.getKeySpec()) == null) {
-            return new BinaryResponse(command, ErrorCode.KEY_ENOENT);
-        } else {
-            return new BinaryResponse(command, ErrorCode.SUCCESS);
-        }
+        // Checks that we own the vBucket
+        server.getStorage().getCache(server, command.getVBucketId());
+        return new BinaryResponse(command, server.getStorage().evict(command.getKeySpec()));
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes the items of a node which have expired, so that items which
+ * are never accessed again don't stay in memory (and in the views) forever.
+ *
+ * The items with an expiry time are queued by that time in their
+ * {@link VBucketPartition}, so that a run only looks at the items which
+ * are due. Expired items are removed the same way as when they are found
+ * on access: the deletion gets a sequence number of its own, and is
+ * persisted and replicated. Only the vBuckets the node is active for are
+ * visited; the replicas receive the deletions from the active node.
+ *
+ * The pager is run periodically by the cluster (and whenever the clock of
+ * the cluster travels in time). It takes the lock of each vBucket in turn,
+ * for at most {@value #BATCH_SIZE} items at a time.
+ */
+public class ExpiryPager {
+    public static final int BATCH_SIZE = 500;
+
+    private final Storage storage;
+    private final VBucketStore cache;
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+
+    ExpiryPager(Storage storage, VBucketStore cache) {
+        this.storage = storage;
+        this.cache = cache;
+    }
+
+    /**
+     * @return the number of items removed by the pager so far
+     */
+    public long getNumExpired() {
+        return expired.get();
+    }
+
+    /**
+     * @return the number of times the pager ran
+     */
+    public long getNumRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Remove all of the items which have expired by now. Concurrent runs
+     * are serialized, so that all the items which have expired by the time
+     * this is called are gone when it returns.
+     * The caller must not hold the lock of any vBucket of the node.
+     *
+     * @return the number of items removed
+     */
+    public synchronized int run() {
+        runs.incrementAndGet();
+        long now = VBucketStore.now();
+        int removed = 0;
+        for (int vb = 0; vb < cache.getNumPartitions(); vb++) {
+            if (!storage.isActive(vb)) {
+                continue;
+            }
+            VBucketPartition partition = cache.getPartition(vb);
+            while (partition.hasExpired(now / 1000)) {
+                int num;
+                synchronized (storage.getVBucketLock((short) vb)) {
+                    num = cache.expireItems(vb, now, BATCH_SIZE);
+                }
+                removed += num;
+                expired.addAndGet(num);
+            }
+        }
+        return removed;
+    }
+}
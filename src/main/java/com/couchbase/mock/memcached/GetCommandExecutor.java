@@ -29,6 +29,8 @@ import java.security.AccessControlException;
  * @author Trond Norbye
  */
 public class GetCommandExecutor implements CommandExecutor {
+    // How many times an item may change between the lookup and the lock (or touch)
+    private static final int MAX_RETRIES = 10;
 
     @Override
     public BinaryResponse execute(BinaryCommand command, MemcachedServer server, MemcachedConnection client) throws ProtocolException {
@@ -45,31 +47,47 @@ public class GetCommandExecutor implements CommandExecutor {
             cache = server.getStorage().getCache(server, cmd.getVBucketId());
         }
 
-        Item item = cache.get(cmd.getKeySpec());
+        Item item;
+        for (int attempt = 0; ; attempt++) {
+            item = cache.get(cmd.getKeySpec());
 
-        if (item == null) {
-            if (cc != CommandCode.GETKQ && cc != CommandCode.GETQ && cc != CommandCode.GATQ) {
-                return new BinaryGetResponse(cmd, ErrorCode.KEY_ENOENT,
-                        server.isEnhancedErrorsEnabled() ? "Failed to lookup item" : null);
-            } else {
-                throw new ProtocolException("invalid opcode for Get handler: " + cmd.getComCode());
+            if (item == null) {
+                if (!cc.isQuiet()) {
+                    return new BinaryGetResponse(cmd, ErrorCode.KEY_ENOENT,
+                            server.isEnhancedErrorsEnabled() ? "Failed to lookup item" : null);
+                } else {
+                    throw new ProtocolException("invalid opcode for Get handler: " + cmd.getComCode());
+                }
             }
-        }
 
-        if (cc == CommandCode.GETL) {
-            ErrorCode ec = cache.lock(item, cmd.getExpiration());
-            if (ec != ErrorCode.SUCCESS) {
+            ErrorCode ec = ErrorCode.SUCCESS;
+            if (cc == CommandCode.GETL) {
+                ec = cache.lock(item, cmd.getExpiration());
+            } else if (cc == CommandCode.TOUCH || cc == CommandCode.GAT || cc == CommandCode.GATQ) {
+                ec = cache.touch(item, cmd.getExpiration(), client.supportsXerror());
+            }
+            if (ec == ErrorCode.KEY_ENOENT) {
+                // The item changed since we looked it up; look it up again,
+                // unless it keeps changing under us
+                if (attempt < MAX_RETRIES) {
+                    continue;
+                }
+                ec = ErrorCode.ETMPFAIL;
+            }
+            if (ec == ErrorCode.SUCCESS) {
+                break;
+            } else if (cc == CommandCode.GETL) {
                 return new BinaryResponse(cmd, ec,
                         server.isEnhancedErrorsEnabled() ? "Failed to lock item" : null);
-            }
-            return new BinaryGetResponse(cmd, item, item.getCasReal(), client.snappyMode());
-        } else if (cc == CommandCode.TOUCH || cc == CommandCode.GAT || cc == CommandCode.GATQ) {
-            ErrorCode ec = cache.touch(item, cmd.getExpiration(), client.supportsXerror());
-            if (ec != ErrorCode.SUCCESS) {
+            } else {
                 return new BinaryResponse(cmd, ec);
             }
         }
 
+        if (cc == CommandCode.GETL) {
+            return new BinaryGetResponse(cmd, item, item.getCasReal(), client.snappyMode());
+        }
+
         if (cc == CommandCode.TOUCH) {
             return new BinaryGetResponse(cmd, ErrorCode.SUCCESS);
         } else {
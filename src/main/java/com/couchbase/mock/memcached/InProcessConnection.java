@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A client connection which does not go through a socket. Requests written
+ * to it are handed straight to a {@link MemcachedConnection} and executed
+ * on the calling thread; their responses are available for reading as soon
+ * as the write returns.
+ *
+ * Unordered execution and cluster map notifications are not available on
+ * such connections.
+ *
+ * @see MemcachedServer#connectInProcess()
+ */
+public class InProcessConnection implements ByteChannel {
+    private final MemcachedServer server;
+    private final MemcachedConnection connection;
+    private boolean open = true;
+
+    InProcessConnection(MemcachedServer server, MemcachedConnection connection) {
+        this.server = server;
+        this.connection = connection;
+    }
+
+    /**
+     * Execute the requests in the buffer. Any trailing partial request is
+     * kept until the rest of it is written.
+     *
+     * @param src The requests
+     * @return The number of bytes consumed (always all of them)
+     * @throws IOException If the connection is closed (e.g. after a QUIT)
+     */
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int total = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer input = connection.getInputBuffer();
+            int nbytes = Math.min(input.remaining(), src.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + nbytes);
+            input.put(chunk);
+            src.position(src.position() + nbytes);
+            total += nbytes;
+            connection.step();
+        }
+        return total;
+    }
+
+    /**
+     * Read the pending responses
+     *
+     * @param dst The buffer to copy them to
+     * @return The number of bytes read (0 if there is nothing to read), or -1 if
+     *         the connection is closed
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            return -1;
+        }
+        return (int) connection.getOutputContext().write(new Sink(dst));
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (open) {
+            open = false;
+            connection.shutdown();
+            connection.getOutputContext().discard();
+            server.removeConnection(connection);
+        }
+    }
+
+    /**
+     * @return the server side of the connection
+     */
+    public MemcachedConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Copies whatever fits into a buffer
+     */
+    private static class Sink implements GatheringByteChannel {
+        private final ByteBuffer dst;
+
+        Sink(ByteBuffer dst) {
+            this.dst = dst;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int ii = offset; ii < offset + length && dst.hasRemaining(); ii++) {
+                total += write(srcs[ii]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int nbytes = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + nbytes);
+            dst.put(chunk);
+            src.position(src.position() + nbytes);
+            return nbytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
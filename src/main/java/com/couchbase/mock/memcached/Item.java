@@ -16,15 +16,14 @@
 
 package com.couchbase.mock.memcached;
 
-import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.Datatype;
 import com.couchbase.mock.util.Base64;
+import com.couchbase.mock.util.Clock;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.util.Date;
 
 /**
  * @author Trond Norbye
@@ -35,6 +34,13 @@ public class Item {
     private int expiryTime;
     private byte[] xattr;
     private byte[] value;
+    /** The value, if it has been moved off the heap (in which case {@link #value} is null) */
+    private SlabAllocator.Value offHeap;
+    private boolean released;
+    /** Whether the value is in memory; an evicted item only keeps its metadata */
+    private volatile boolean resident = true;
+    /** The "recently used" bit of the clock the item pager goes around */
+    private volatile boolean referenced = true;
     private String cached_UTF8 = null;
     private String cached_B64 = null;
     private long cas;
@@ -71,6 +77,14 @@ public class Item {
         this.flags = src.flags;
         this.expiryTime = src.expiryTime;
         this.value = src.value;
+        SlabAllocator.Value srcOffHeap = src.offHeap;
+        if (srcOffHeap != null) {
+            if (!srcOffHeap.retain()) {
+                // The source was dropped (and its value freed) while we copied it
+                throw new ValueFreedException(src.keySpec);
+            }
+            this.offHeap = srcOffHeap;
+        }
         this.cas = src.cas;
         this.modificationTime = src.modificationTime;
         this.lockExpiryTime = src.lockExpiryTime;
@@ -78,6 +92,7 @@ public class Item {
         this.cached_UTF8 = src.cached_UTF8;
         this.xattr = src.xattr;
         this.datatype = src.datatype;
+        this.resident = src.resident;
     }
 
     public int getExpiryTime() {
@@ -106,8 +121,148 @@ public class Item {
         return this.keySpec;
     }
 
+    /**
+     * Get the value. If it is stored off the heap, a reference to it is held
+     * while it is copied, so that its chunk can't be reused underneath us.
+     *
+     * @return the value. If it is stored off the heap, this is a fresh copy
+     * @throws ValueFreedException if the item was dropped from its store and its value freed
+     */
     public byte[] getValue() {
-        return value;
+        SlabAllocator.Value v;
+        byte[] heapValue;
+        synchronized (this) {
+            v = offHeap;
+            heapValue = value;
+        }
+        if (v == null) {
+            return heapValue;
+        }
+        if (!v.retain()) {
+            throw new ValueFreedException(keySpec);
+        }
+        try {
+            return v.get();
+        } finally {
+            v.release();
+        }
+    }
+
+    /**
+     * @return the length of the value (0 if there is none)
+     */
+    public int getValueLength() {
+        SlabAllocator.Value v = offHeap;
+        if (v != null) {
+            return v.getLength();
+        }
+        return value == null ? 0 : value.length;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    /**
+     * Move the value into the given allocator, unless it is already off the heap
+     *
+     * @param allocator The allocator to store the value in
+     */
+    synchronized void moveOffHeap(SlabAllocator allocator) {
+        if (offHeap != null || value == null || released) {
+            return;
+        }
+        offHeap = allocator.allocate(value);
+        value = null;
+        cached_UTF8 = null;
+        cached_B64 = null;
+    }
+
+    /**
+     * Drop this item's reference to its off-heap value. This is called when
+     * the item is removed from a store; calling it again has no effect.
+     */
+    synchronized void releaseValue() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (offHeap != null) {
+            offHeap.release();
+        }
+    }
+
+    /**
+     * @return false if the value has been evicted, leaving only the metadata in memory
+     */
+    public boolean isResident() {
+        return resident;
+    }
+
+    /**
+     * Drop the value (but not the metadata) from memory
+     *
+     * @return the number of bytes freed
+     */
+    synchronized int evictValue() {
+        if (!resident) {
+            return 0;
+        }
+        int length = getValueLength();
+        if (offHeap != null && !released) {
+            offHeap.release();
+        }
+        offHeap = null;
+        value = null;
+        cached_UTF8 = null;
+        cached_B64 = null;
+        resident = false;
+        return length;
+    }
+
+    /**
+     * Bring the value of an evicted item back into memory
+     *
+     * @param source The persisted copy of the item
+     * @return the number of bytes restored
+     */
+    synchronized int restoreValue(Item source) {
+        if (resident || released) {
+            return 0;
+        }
+        SlabAllocator.Value srcOffHeap = source.offHeap;
+        if (srcOffHeap != null && srcOffHeap.retain()) {
+            offHeap = srcOffHeap;
+        } else {
+            value = source.getValue();
+        }
+        resident = true;
+        return getValueLength();
+    }
+
+    void markReferenced() {
+        referenced = true;
+    }
+
+    /**
+     * Clear the "recently used" bit
+     *
+     * @return whether it was set
+     */
+    boolean clearReferenced() {
+        boolean was = referenced;
+        referenced = false;
+        return was;
+    }
+
+    private synchronized void setValue(byte[] newValue) {
+        if (offHeap == null || released) {
+            value = newValue;
+            return;
+        }
+        SlabAllocator.Value old = offHeap;
+        offHeap = old.getAllocator().allocate(newValue);
+        old.release();
     }
 
     public byte[] getXattr() {
@@ -120,17 +275,22 @@ public class Item {
         }
 
         CharsetDecoder dec = UTF8_CHARSET.newDecoder();
-        cached_UTF8 = dec.decode(ByteBuffer.wrap(value)).toString();
-        return cached_UTF8;
+        String decoded = dec.decode(ByteBuffer.wrap(getValue())).toString();
+        if (offHeap == null) {
+            cached_UTF8 = decoded;
+        }
+        return decoded;
     }
 
     public String getBase64() {
         if (cached_B64 != null) {
             return cached_B64;
-        } else {
-            cached_B64 = Base64.encode(value);
-            return cached_B64;
         }
+        String encoded = Base64.encode(getValue());
+        if (offHeap == null) {
+            cached_B64 = encoded;
+        }
+        return encoded;
     }
 
     public long getCas() {
@@ -145,7 +305,7 @@ public class Item {
     }
 
     void setCas(long l) {
-        modificationTime = new Date().getTime();
+        modificationTime = Clock.getInstance().getWallMillis();
         cas = l;
     }
 
@@ -162,7 +322,7 @@ public class Item {
             return false;
         }
 
-        long now = new Date().getTime() / 1000 + Info.getClockOffset();
+        long now = Clock.getInstance().getSeconds();
         return now <= lockExpiryTime;
     }
 
@@ -185,23 +345,23 @@ public class Item {
     }
 
     public void append(Item i) {
-        byte[] s1 = value;
+        byte[] s1 = getValue();
         byte[] s2 = i.getValue();
         byte[] dst = new byte[s1.length + s2.length];
 
         System.arraycopy(s1, 0, dst, 0, s1.length);
         System.arraycopy(s2, 0, dst, s1.length, s2.length);
-        value = dst;
+        setValue(dst);
     }
 
     public void prepend(Item i) {
-        byte[] s1 = value;
+        byte[] s1 = getValue();
         byte[] s2 = i.getValue();
         byte[] dst = new byte[s1.length + s2.length];
 
         System.arraycopy(s2, 0, dst, 0, s2.length);
         System.arraycopy(s1, 0, dst, s2.length, s1.length);
-        value = dst;
+        setValue(dst);
     }
 
 }
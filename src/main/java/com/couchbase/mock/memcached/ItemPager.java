@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.Bucket;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evicts items from the memory of a node once the items take more than
+ * the high watermark of the quota, until they are back under the low
+ * watermark (as ep-engine's item pager does).
+ *
+ * Items are chosen with the clock (second chance) approximation of "not
+ * recently used": the pager goes around the vBuckets, clearing the
+ * referenced bit of the items it passes, and evicts the items whose bit
+ * was already clear (i.e. which haven't been looked up since it last came
+ * by). Only items which have been persisted can be evicted, since they are
+ * read back from disk when they are accessed again. Items of memcached
+ * buckets have nowhere to be read back from, so they are simply dropped.
+ *
+ * The pager runs on the thread of a command which found the node over the
+ * watermark, after the command has released its locks; it takes the lock
+ * of each vBucket in turn while visiting it.
+ */
+public class ItemPager {
+    public static final double HIGH_WATERMARK = 0.85;
+    public static final double LOW_WATERMARK = 0.75;
+
+    private final Storage storage;
+    private final VBucketStore cache;
+    private volatile Bucket.EvictionPolicy policy = Bucket.EvictionPolicy.VALUE_ONLY;
+    private volatile boolean dropEvicted = false;
+    private final AtomicBoolean running = new AtomicBoolean();
+    // The vBucket the clock hand points at
+    private int hand = 0;
+    private final AtomicLong valueEjects = new AtomicLong();
+    private final AtomicLong itemEjects = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+
+    ItemPager(Storage storage, VBucketStore cache) {
+        this.storage = storage;
+        this.cache = cache;
+    }
+
+    /**
+     * @param policy What to evict
+     * @param dropEvicted Whether evicted items are dropped rather than read back from disk
+     */
+    void setPolicy(Bucket.EvictionPolicy policy, boolean dropEvicted) {
+        this.policy = policy;
+        this.dropEvicted = dropEvicted;
+    }
+
+    public Bucket.EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getHighWatermark() {
+        return (long) (cache.getMemoryQuota() * HIGH_WATERMARK);
+    }
+
+    public long getLowWatermark() {
+        return (long) (cache.getMemoryQuota() * LOW_WATERMARK);
+    }
+
+    /**
+     * @return the number of values (or items) evicted so far
+     */
+    public long getNumValueEjects() {
+        return valueEjects.get();
+    }
+
+    /**
+     * @return the number of whole items evicted so far
+     */
+    public long getNumItemEjects() {
+        return itemEjects.get();
+    }
+
+    /**
+     * @return the number of times the pager ran
+     */
+    public long getNumRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Run the pager if the items take too much memory (or a mutation was
+     * refused for lack of memory, in which case enough memory is freed for
+     * the mutation to succeed when it is retried), unless another thread is
+     * already running it.
+     * The caller must not hold the lock of any vBucket of the node.
+     *
+     * @return true if the pager ran
+     */
+    public boolean runIfNeeded() {
+        if (cache.getMemoryQuota() == 0) {
+            return false;
+        }
+        if (cache.getRefusedBytes() == 0 && cache.getMemoryUsed() <= getHighWatermark()) {
+            return false;
+        }
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            // Only take the refused size once the pager is ours, so that it
+            // isn't lost when another thread is already running the pager
+            long refused = cache.takeRefusedBytes();
+            if (refused == 0 && cache.getMemoryUsed() <= getHighWatermark()) {
+                return false;
+            }
+            // Make room for the mutation which was refused as well
+            run(Math.max(0, Math.min(getLowWatermark(), cache.getMemoryQuota() - refused)));
+        } finally {
+            running.set(false);
+        }
+        return true;
+    }
+
+    private void run(long target) {
+        runs.incrementAndGet();
+        int numPartitions = cache.getNumPartitions();
+        // Twice around the clock: the first pass may only clear referenced bits
+        for (int visited = 0; visited < 2 * numPartitions && cache.getMemoryUsed() > target; visited++) {
+            int vb = hand;
+            hand = (hand + 1) % numPartitions;
+            synchronized (storage.getVBucketLock((short) vb)) {
+                visit(cache.getPartition(vb), target);
+            }
+        }
+    }
+
+    private void visit(VBucketPartition partition, long target) {
+        for (Item item : partition) {
+            if (cache.getMemoryUsed() <= target) {
+                return;
+            }
+            if (!item.isResident() || item.clearReferenced()) {
+                continue;
+            }
+            evict(partition, item);
+        }
+    }
+
+    /**
+     * Evict an item
+     *
+     * @param partition The partition of the item
+     * @param item The item
+     * @return false if the item can't be evicted (it is locked, or hasn't been persisted)
+     */
+    boolean evict(VBucketPartition partition, Item item) {
+        if (dropEvicted) {
+            if (partition.evictItem(item, false) > 0) {
+                itemEjects.incrementAndGet();
+                valueEjects.incrementAndGet();
+            }
+            return true;
+        }
+        if (item.isLocked() || !storage.isPersisted(item)) {
+            return false;
+        }
+        if (policy == Bucket.EvictionPolicy.FULL) {
+            if (partition.evictItem(item, true) > 0) {
+                itemEjects.incrementAndGet();
+                valueEjects.incrementAndGet();
+            }
+        } else if (item.isResident()) {
+            partition.evictValue(item);
+            valueEjects.incrementAndGet();
+        }
+        return true;
+    }
+}
@@ -15,16 +15,72 @@
  */
 package com.couchbase.mock.memcached;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 /**
  * This class is used as a key for our Items.
+ *
+ * The key is kept as the raw bytes received from the client (so that keys
+ * which aren't valid UTF-8 are stored and returned as they were sent), and
+ * its hash is computed once up front since every lookup needs it.
  * @author Mark Nunberg
  */
 public class KeySpec {
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
     public final short vbId;
-    public final String key;
+    private final byte[] key;
+    private final int hash;
+
     public KeySpec(String key, short vbId) {
+        this(key == null ? EMPTY : key.getBytes(UTF8_CHARSET), vbId);
+    }
+
+    /**
+     * Create a key from a range of a buffer. The bytes are copied.
+     *
+     * @param buf The buffer containing the key
+     * @param offset The offset of the key within the buffer
+     * @param length The length of the key
+     * @param vbId The vBucket of the key
+     */
+    public KeySpec(byte[] buf, int offset, int length, short vbId) {
+        this(length == 0 ? EMPTY : Arrays.copyOfRange(buf, offset, offset + length), vbId);
+    }
+
+    protected KeySpec(KeySpec other) {
+        this.key = other.key;
+        this.vbId = other.vbId;
+        this.hash = other.hash;
+    }
+
+    private KeySpec(byte[] key, short vbId) {
         this.key = key;
         this.vbId = vbId;
+        this.hash = 19 * (19 * 5 + vbId) + Arrays.hashCode(key);
+    }
+
+    /**
+     * @return the key as a string (decoded as UTF-8)
+     */
+    public String getKey() {
+        return new String(key, UTF8_CHARSET);
+    }
+
+    /**
+     * @return the raw bytes of the key. The array is shared and must not be modified.
+     */
+    public byte[] getKeyBytes() {
+        return key;
+    }
+
+    /**
+     * @return the length of the key, in bytes
+     */
+    public int getKeyLength() {
+        return key.length;
     }
 
     @Override
@@ -39,16 +95,13 @@ public class KeySpec {
 
         if (KeySpec.class.isInstance(other)) {
             KeySpec ksOther = (KeySpec)other;
-            return ksOther.vbId == vbId && ksOther.key.equals(key);
+            return ksOther.vbId == vbId && ksOther.hash == hash && Arrays.equals(ksOther.key, key);
         }
         return false;
     }
 
     @Override
     public final int hashCode() {
-        int hash = 5;
-        hash = 19 * hash + this.vbId;
-        hash = 19 * hash + ( this.key != null ? this.key.hashCode() : 0 );
         return hash;
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (in microseconds), in the spirit of HdrHistogram.
+ *
+ * Each power-of-two range is split into {@value #SUB_BUCKETS} linear
+ * buckets, so that any recorded value is known to within ~6% no matter how
+ * large it is. Values below {@value #SUB_BUCKETS} microseconds are counted
+ * exactly. Recording is lock free, so that it may be done from any thread
+ * executing commands; reading while recording is in progress gives a
+ * slightly inconsistent (but never corrupt) view.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    // The largest value which is told apart from the rest (~19 hours)
+    private static final int MAX_MAGNITUDE = 36;
+    static final int NUM_BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    static int bucketFor(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return NUM_BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket The bucket index
+     * @return the smallest value counted in the bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param bucket The bucket index
+     * @return the largest value counted in the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket == NUM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos The duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        buckets.incrementAndGet(bucketFor(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all recorded durations, in microseconds
+     */
+    public long getTotalMicros() {
+        return totalMicros.get();
+    }
+
+    /**
+     * @return the longest recorded duration, in microseconds
+     */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @return the average duration, in microseconds (0 if nothing was recorded)
+     */
+    public long getMeanMicros() {
+        long num = count.get();
+        return num == 0 ? 0 : totalMicros.get() / num;
+    }
+
+    /**
+     * Get the duration below which the given share of the recorded durations fall
+     *
+     * @param percentile The percentile (0-100)
+     * @return the duration, in microseconds. This is the largest value of the
+     *         bucket the percentile lies in (but no more than the maximum).
+     */
+    public long getPercentileMicros(double percentile) {
+        long num = count.get();
+        if (num == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(num * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+            seen += buckets.get(ii);
+            if (seen >= wanted) {
+                return Math.min(upperBound(ii), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * @param bucket The bucket index
+     * @return the number of durations recorded in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int getNumBuckets() {
+        return NUM_BUCKETS;
+    }
+
+    /**
+     * @param bucket The bucket index
+     * @return the smallest duration (in microseconds) counted in the bucket
+     */
+    public long getBucketStart(int bucket) {
+        return lowerBound(bucket);
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+            buckets.set(ii, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+}
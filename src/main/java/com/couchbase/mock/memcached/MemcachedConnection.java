@@ -15,46 +15,83 @@
  */
 package com.couchbase.mock.memcached;
 
+import com.couchbase.mock.Bucket;
 import com.couchbase.mock.memcached.protocol.BinaryCommand;
 import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
 import com.couchbase.mock.memcached.protocol.BinaryResponse;
 import com.couchbase.mock.memcached.protocol.CommandFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Class representing a single <i>client</i> connection to the server
  */
 public class MemcachedConnection {
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
 
-    private final BinaryProtocolHandler protocolHandler;
+    private BinaryProtocolHandler protocolHandler;
     private final byte header[];
-    private final MemcachedServer server;
+    private final ByteBuffer headerBuffer;
+    private MemcachedServer server;
     private final ByteBuffer input;
     private final MutationInfoWriter miw = new MutationInfoWriter();
     private BinaryCommand command;
-    private List<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+    private final OutputContext output;
+    private final SocketAddress remoteAddress;
+    private final long connectedAt;
+    private volatile long commandsExecuted;
+    // Responses sent right after the read, and times the socket couldn't take them all
+    private volatile long inlineWrites;
+    private volatile long writesBlocked;
+    private EventLoop eventLoop;
+    private SocketChannel channel;
+    private boolean writeStalled;
+    private boolean readSuspended;
+    // Commands handed to the worker pool which have not completed yet
+    private int pendingAsync;
+    // Whether a command is held back until the commands running elsewhere complete
+    private boolean waitingForAsync;
+    // Whether the input is left unprocessed until the output queued for the client drains
+    private boolean outputBacklogged;
     private boolean authenticated;
+    // The bucket the client authenticated as (null if it didn't)
+    private String authenticatedBucket;
     private boolean closed;
     private boolean[] supportedFeatures = new boolean[BinaryHelloCommand.Feature.MAX.getValue()];
 
     public MemcachedConnection(MemcachedServer server) {
+        this(server, null);
+    }
+
+    /**
+     * @param server The server the client connected to
+     * @param remoteAddress The address of the client (may be null)
+     */
+    public MemcachedConnection(MemcachedServer server, SocketAddress remoteAddress) {
         closed = false;
-        authenticated = server.getBucket().getPassword().length() <= 0;
+        this.remoteAddress = remoteAddress;
+        connectedAt = System.currentTimeMillis();
+        authenticated = mayAccess(server.getBucket());
         header = new byte[24];
-        input = ByteBuffer.wrap(header);
+        headerBuffer = ByteBuffer.wrap(header);
+        input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        output = new OutputContext(server.getOutputPool());
         protocolHandler = server.getProtocolHandler();
         this.server = server;
     }
 
     /**
-     * Attempt to process a single command from the input buffer. Note this does
-     * not actually read from the socket.
+     * Process all of the complete commands available in the input buffer.
+     * Note this does not actually read from the socket.
      *
      * @throws IOException if the client has been closed
      */
@@ -62,17 +99,62 @@ public class MemcachedConnection {
         if (closed) {
             throw new ClosedChannelException();
         }
-        if (input.position() == header.length) {
-            if (command == null) {
-                command = CommandFactory.create(input);
-            }
 
-            if (command.complete()) {
-                command.process();
-                protocolHandler.execute(command, this);
+        input.flip();
+        waitingForAsync = false;
+        outputBacklogged = false;
+        // Clients in the same process read their responses on the thread writing the requests
+        long high = channel == null ? 0 : server.getOutputHighWatermark();
+        try {
+            while (!closed) {
+                if (command == null) {
+                    if (input.remaining() < header.length) {
+                        break;
+                    }
+                    if (high > 0 && output.getPendingBytes() > high) {
+                        // Leave the rest of the input until the client reads its responses
+                        outputBacklogged = true;
+                        break;
+                    }
+                    input.get(header);
+                    command = CommandFactory.create(headerBuffer, server.getBufferPool());
+                }
+
+                ByteBuffer body = command.getInputBuffer();
+                if (body != null && body.hasRemaining() && input.hasRemaining()) {
+                    int nbytes = Math.min(body.remaining(), input.remaining());
+                    body.put(input.array(), input.arrayOffset() + input.position(), nbytes);
+                    input.position(input.position() + nbytes);
+                }
+
+                if (!command.complete()) {
+                    break;
+                }
+                if (command.isServerResponse()) {
+                    // The reply to a notification we sent; nothing to do
+                    command.release();
+                    command = null;
+                    continue;
+                }
+                if (pendingAsync > 0 && !server.isReorderable(command)) {
+                    // Wait for the commands running elsewhere to complete
+                    waitingForAsync = true;
+                    break;
+                }
+
+                BinaryCommand current = command;
                 command = null;
-                input.rewind();
+                current.process();
+                commandsExecuted++;
+                if (supportsUnorderedExecution() && server.executeAsync(current, this)) {
+                    // Released by the server once it is done with it
+                    continue;
+                }
+                protocolHandler.execute(current, this);
+                current.release();
             }
+        } finally {
+            input.compact();
         }
     }
 
@@ -82,11 +164,8 @@ public class MemcachedConnection {
      *
      * @param response the response to enqueue
      */
-    public synchronized void sendResponse(BinaryResponse response) {
-        if (pending == null) {
-            pending = new LinkedList<ByteBuffer>();
-        }
-        pending.add(response.getBuffer());
+    public void sendResponse(BinaryResponse response) {
+        output.add(response.getBuffer());
     }
 
     /**
@@ -95,65 +174,116 @@ public class MemcachedConnection {
      * @return true  there are pending responses
      */
     boolean hasOutput() {
-        if (pending == null) {
-            return false;
-        }
-
-        if (pending.isEmpty()) {
-            return false;
-        }
-
-        if (!pending.get(0).hasRemaining()) {
-            return false;
-        }
-        return true;
+        return output.hasRemaining();
     }
 
     /**
-     * Gets the raw input buffer. This may be used to add additional request data
+     * Gets the raw input buffer. This may be used to add additional request data.
+     *
+     * Data is normally read into the connection's own buffer so that a single
+     * read may pick up several commands, but the remainder of a body which would
+     * not fit there anyway is read straight into the command.
      *
      * @return The input buffer
      */
     public ByteBuffer getInputBuffer() {
-        if (command == null) {
-            return input;
-        } else {
-            return command.getInputBuffer();
+        if (command != null) {
+            ByteBuffer body = command.getInputBuffer();
+            if (body != null && body.remaining() >= input.remaining()) {
+                return body;
+            }
         }
+        return input;
     }
 
     /**
-     * Temporarily borrow the head chunk of the output buffers. This may be used
-     * to efficiently send responses or perform socket/buffer manipulation.
-     *
-     * When done with the context, ensure to call {@link #returnOutputContext(OutputContext)}
+     * Get the output queue of the connection. This may be used to send
+     * responses or perform socket/buffer manipulation.
      *
      * @return The output context
      */
-    public OutputContext borrowOutputContext() {
-        if (!hasOutput()) {
-            return null;
-        }
+    public OutputContext getOutputContext() {
+        return output;
+    }
+
+    /**
+     * @return the event loop serving this connection
+     */
+    EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
 
-        OutputContext ctx = new OutputContext(pending);
-        pending = null;
-        return ctx;
+    /**
+     * @param channel The socket of the client (used to apply socket options requested by it)
+     */
+    void setChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void beginAsync() {
+        pendingAsync++;
+    }
+
+    void endAsync() {
+        pendingAsync--;
     }
 
     /**
-     * Re-transfer ownership of a given output buffer to the connection
+     * Check if the processing of the input is on hold until the commands
+     * running on the worker pool complete. Nothing should be read from the
+     * client meanwhile: the input buffer may be full, and reading would
+     * then make no progress.
      *
-     * @param ctx An OutputContext previously returned by {@link #borrowOutputContext()}
+     * @return true if a command is waiting for the commands before it
      */
-    public void returnOutputContext(OutputContext ctx) {
-        List<ByteBuffer> remaining = ctx.releaseRemaining();
-        if (pending == null) {
-            pending = remaining;
-        } else {
-            List<ByteBuffer> tmp = pending;
-            pending = remaining;
-            pending.addAll(tmp);
-        }
+    boolean isWaitingForAsync() {
+        return waitingForAsync;
+    }
+
+    /**
+     * Check if the processing of the input stopped because too much output
+     * is queued for the client. It should be resumed (see {@link #step()})
+     * once the output drains, even if nothing more is read from the client.
+     *
+     * @return true if complete commands may be left in the input
+     */
+    boolean isOutputBacklogged() {
+        return outputBacklogged;
+    }
+
+    /**
+     * Check if sending is on hold (the output is kept until the stall is over)
+     *
+     * @return true if nothing should be written to the client for now
+     */
+    boolean isWriteStalled() {
+        return writeStalled;
+    }
+
+    void setWriteStalled(boolean writeStalled) {
+        this.writeStalled = writeStalled;
+    }
+
+    /**
+     * Check if the server stopped reading from this connection because too
+     * much output is queued for it
+     *
+     * @return true if no requests are read from the client for now
+     */
+    boolean isReadSuspended() {
+        return readSuspended;
+    }
+
+    void setReadSuspended(boolean readSuspended) {
+        this.readSuspended = readSuspended;
     }
 
     /**
@@ -165,9 +295,42 @@ public class MemcachedConnection {
 
     /**
      * Mark this connection as having been successfully authenticated
+     *
+     * @param bucket The name of the bucket the client authenticated as
      */
-    void setAuthenticated() {
+    void setAuthenticated(String bucket) {
         authenticated = true;
+        authenticatedBucket = bucket;
+    }
+
+    /**
+     * Check if the client may use a bucket
+     *
+     * @param bucket The bucket
+     * @return true if the bucket has no password or the client authenticated as the bucket
+     */
+    boolean mayAccess(Bucket bucket) {
+        return bucket.getPassword().length() <= 0 || bucket.getName().equals(authenticatedBucket);
+    }
+
+    /**
+     * Refuse all commands but those needed to select a bucket (or to
+     * authenticate) until the client did so
+     */
+    void requireBucketSelection() {
+        authenticated = false;
+    }
+
+    /**
+     * Bind the connection to the server of another bucket on the same node.
+     * The client is authenticated if it may access the bucket.
+     *
+     * @param server The server
+     */
+    void setServer(MemcachedServer server) {
+        this.server = server;
+        protocolHandler = server.getProtocolHandler();
+        authenticated = mayAccess(server.getBucket());
     }
 
     /**
@@ -179,6 +342,57 @@ public class MemcachedConnection {
         return authenticated;
     }
 
+    /**
+     * @return the address of the client, or null if unknown
+     */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return the time the client connected (in milliseconds since the epoch)
+     */
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    /**
+     * @return the number of commands received on this connection
+     */
+    public long getCommandsExecuted() {
+        return commandsExecuted;
+    }
+
+    /**
+     * @return the number of times the responses to a read were all sent right away
+     */
+    public long getInlineWrites() {
+        return inlineWrites;
+    }
+
+    /**
+     * @return the number of times the socket couldn't take all the responses to a read
+     */
+    public long getWritesBlocked() {
+        return writesBlocked;
+    }
+
+    void countWrite(boolean inline) {
+        if (inline) {
+            inlineWrites++;
+        } else {
+            writesBlocked++;
+        }
+    }
+
+    /**
+     * @return the server this connection belongs to (the server of the
+     *         bucket the client selected, if it connected to a shared port)
+     */
+    MemcachedServer getServer() {
+        return server;
+    }
+
     public MutationInfoWriter getMutinfoWriter() {
         return miw;
     }
@@ -187,6 +401,14 @@ public class MemcachedConnection {
         return supportedFeatures[BinaryHelloCommand.Feature.XERROR.getValue()];
     }
 
+    public boolean supportsUnorderedExecution() {
+        return supportedFeatures[BinaryHelloCommand.Feature.UNORDERED_EXECUTION.getValue()];
+    }
+
+    public boolean supportsClusterMapNotifications() {
+        return supportedFeatures[BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION.getValue()];
+    }
+
     public boolean supportsTracing() {
         return supportedFeatures[BinaryHelloCommand.Feature.TRACING.getValue()];
     }
@@ -207,8 +429,8 @@ public class MemcachedConnection {
      * Sets the supported features from a HELLO command.
      *
      * Note that the actual enabled features will be the ones supported by the mock
-     * and also supported by the client. Currently the only supported feature is
-     * MUTATION_SEQNO.
+     * and also supported by the client. Requesting TCP_NODELAY disables Nagle's
+     * algorithm on the socket; otherwise the socket reverts to the server setting.
      *
      * @param input The features requested by the client.
      */
@@ -231,6 +453,9 @@ public class MemcachedConnection {
                 case XATTR:
                 case SELECT_BUCKET:
                 case TRACING:
+                case TCP_NODELAY:
+                case DUPLEX:
+                case CLUSTERMAP_CHANGE_NOTIFICATION:
                     supportedFeatures[i] = input[i];
                     break;
 
@@ -238,6 +463,10 @@ public class MemcachedConnection {
                     supportedFeatures[i] = input[i] && server.getCompression() != CompressionMode.DISABLED;
                     break;
 
+                case UNORDERED_EXECUTION:
+                    supportedFeatures[i] = input[i] && server.getWorkerPool() != null;
+                    break;
+
                 default:
                     supportedFeatures[i] = false;
                     break;
@@ -245,10 +474,41 @@ public class MemcachedConnection {
         }
 
         // Post-processing
+        if (!supportedFeatures[BinaryHelloCommand.Feature.DUPLEX.getValue()]) {
+            // The server can't send notifications unless the client accepts requests from it
+            supportedFeatures[BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION.getValue()] = false;
+        }
         if (supportedFeatures[BinaryHelloCommand.Feature.MUTATION_SEQNO.getValue()]) {
             miw.setEnabled(true);
         } else {
             miw.setEnabled(false);
         }
+
+        int nodelay = BinaryHelloCommand.Feature.TCP_NODELAY.getValue();
+        if (channel != null && remoteAddress instanceof InetSocketAddress) {
+            try {
+                channel.socket().setTcpNoDelay(supportedFeatures[nodelay] || server.getSocketOptions().isTcpNoDelay());
+            } catch (SocketException ex) {
+                Logger.getLogger(MemcachedConnection.class.getName()).log(Level.FINE, "Failed to set TCP_NODELAY", ex);
+                supportedFeatures[nodelay] = false;
+            }
+        } else {
+            // Not a TCP connection
+            supportedFeatures[nodelay] = false;
+        }
+    }
+
+    /**
+     * @return true if Nagle's algorithm is disabled for this connection
+     */
+    boolean isTcpNoDelay() {
+        if (channel == null || !(remoteAddress instanceof InetSocketAddress)) {
+            return false;
+        }
+        try {
+            return channel.socket().getTcpNoDelay();
+        } catch (SocketException ex) {
+            return false;
+        }
     }
 }
@@ -22,9 +22,13 @@ import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.BinaryCommand;
 import com.couchbase.mock.memcached.protocol.BinaryConfigResponse;
 import com.couchbase.mock.memcached.protocol.BinaryResponse;
+import com.couchbase.mock.memcached.protocol.BinaryServerRequest;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -33,16 +37,22 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.AccessControlException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,24 +60,72 @@ import java.util.logging.Logger;
  * This is a small implementation of a Memcached server. It listens
  * to exactly one port and implements the binary protocol.
  *
+ * The server thread accepts new connections. By default it serves the
+ * clients as well, but the connections may be spread over a number of
+ * I/O threads (each running its own {@link EventLoop}) instead. Commands
+ * operating on a single vBucket are serialized per vBucket, all other
+ * commands are serialized with respect to everything else on the node.
+ *
  * @author Trond Norbye
  */
 public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     private final Storage storage;
+    private final BufferPool bufferPool = new BufferPool();
+    private final BufferPool outputPool = new BufferPool(16 * 1024 * 1024, true);
     private final long bootTime;
     private final String hostname;
+    // The listening socket (null when the server is reached through a shared port)
     private final ServerSocketChannel server;
-    private Selector selector;
+    private final SharedPort sharedPort;
+    // The loop of the server thread (null when the server uses a shared group)
+    private final EventLoop eventLoop;
+    private final EventLoopGroup eventLoopGroup;
+    private final SocketOptions socketOptions;
+    // The additional listening socket for local clients (null if not enabled)
+    private ServerSocketChannel unixServer;
+    private File unixSocketFile;
+    private volatile boolean inProcessEnabled = false;
+    private final EventLoop[] ioLoops;
+    private final Thread[] ioThreads;
+    private int nextIoLoop = 0;
+    private final ReentrantReadWriteLock executionLock = new ReentrantReadWriteLock();
+    // Responses sent right after being produced, without waiting for OP_WRITE
+    private final AtomicLong inlineWrites = new AtomicLong();
+    // Times a connection had to wait for OP_WRITE because the socket was full
+    private final AtomicLong writesBlocked = new AtomicLong();
+    // OP_WRITE wakeups handled
+    private final AtomicLong writeWakeups = new AtomicLong();
+    // Connections we currently don't read from because too much output is queued for them
+    private final AtomicInteger suspendedConnections = new AtomicInteger();
+    // Times reading from a connection was suspended
+    private final AtomicLong readSuspensions = new AtomicLong();
+    // Cluster map change notifications sent to clients
+    private final AtomicLong clustermapNotifications = new AtomicLong();
+    // Commands executed on the worker pool
+    private final AtomicLong workerCommands = new AtomicLong();
+    private volatile Executor workerPool;
+    private volatile long outputHighWatermark = 0;
+    private volatile long outputLowWatermark = 0;
+    // Live client connections, by their remote address
+    private final ConcurrentMap<SocketAddress, MemcachedConnection> connections =
+            new ConcurrentHashMap<SocketAddress, MemcachedConnection>();
+    private final AtomicLong totalConnections = new AtomicLong();
+    // Time spent executing commands, indexed by opcode (created on first use)
+    private final AtomicReferenceArray<LatencyHistogram> timings = new AtomicReferenceArray<LatencyHistogram>(256);
     private final int port;
-    private final CommandExecutor[] executors = new CommandExecutor[0xff];
+    private final CommandExecutor[] executors = new CommandExecutor[256];
+    // How to execute each command, indexed by opcode
+    private final Dispatch[] dispatch = new Dispatch[256];
     private static final CommandExecutor unknownHandler = new UnknownCommandExecutor();
+    // Appends and prepends of at least this many bytes are executed on the worker pool
+    private static final int LARGE_VALUE_SIZE = 16 * 1024;
     private final Bucket bucket;
     private boolean active = true;
     private int hiccupTime = 0;
     private int hiccupOffset = 0;
     private int truncateLimit = 0;
     private boolean cccpEnabled = false;
-    private final List<CommandLogEntry> commandLog = new ArrayList<CommandLogEntry>();
+    private final List<CommandLogEntry> commandLog = Collections.synchronizedList(new ArrayList<CommandLogEntry>());
     private boolean shouldLogCommands = false;
     private boolean enhancedErrorsEnabled = false;
     private CompressionMode compression = CompressionMode.DISABLED;
@@ -89,6 +147,123 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return compression;
     }
 
+    /**
+     * Limit the amount of output queued for a single client. When more than
+     * {@code high} bytes are waiting to be sent, the server stops reading
+     * (and thus executing) requests from the client until no more than
+     * {@code low} bytes are left.
+     *
+     * @param high The high watermark in bytes (0 to never suspend reading)
+     * @param low The low watermark in bytes
+     */
+    public void setOutputWatermarks(long high, long low) {
+        if (high < 0 || low < 0 || (high > 0 && low > high)) {
+            throw new IllegalArgumentException("Invalid watermarks: high=" + high + ", low=" + low);
+        }
+        outputHighWatermark = high;
+        outputLowWatermark = low;
+    }
+
+    /**
+     * @return the high watermark of the output queued for a client (0 if there is none)
+     */
+    long getOutputHighWatermark() {
+        return outputHighWatermark;
+    }
+
+    /**
+     * Set the pool expensive commands are executed on for clients which
+     * negotiated unordered execution.
+     *
+     * @param workerPool The pool, or null to execute every command on the
+     *                   thread serving the client (and refuse unordered execution)
+     */
+    public void setWorkerPool(Executor workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    public Executor getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Accept clients on a Unix domain socket as well. This must be called
+     * before the server is started.
+     *
+     * @param path The path of the socket. An existing file is replaced
+     * @throws IOException If the socket could not be created (or Unix
+     *                     domain sockets are not supported by the JVM)
+     */
+    public void enableUnixSocket(File path) throws IOException {
+        if (unixServer != null) {
+            throw new IllegalStateException("Already listening on " + unixSocketFile);
+        }
+        if (path.exists() && !path.delete()) {
+            throw new IOException("Failed to remove " + path);
+        }
+        unixServer = UnixDomainSockets.bind(path, socketOptions.getBacklog());
+        unixSocketFile = path;
+        if (eventLoop != null) {
+            eventLoop.register(unixServer, SelectionKey.OP_ACCEPT, this);
+        }
+    }
+
+    /**
+     * @return the path of the Unix domain socket of the server, or null if it has none
+     */
+    public File getUnixSocketFile() {
+        return unixSocketFile;
+    }
+
+    private void closeUnixSocket() {
+        if (unixServer == null) {
+            return;
+        }
+        try {
+            unixServer.close();
+        } catch (IOException e) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.FINE, null, e);
+        }
+        if (!unixSocketFile.delete()) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.FINE, "Failed to remove {0}", unixSocketFile);
+        }
+    }
+
+    /**
+     * @param enabled Whether clients may connect with {@link #connectInProcess()}
+     */
+    public void setInProcessEnabled(boolean enabled) {
+        inProcessEnabled = enabled;
+    }
+
+    /**
+     * Connect to the server without going through a socket. Requests are
+     * executed on the thread writing them to the returned connection.
+     *
+     * @return the connection
+     * @throws IllegalStateException if the in-process transport is not enabled
+     */
+    public InProcessConnection connectInProcess() {
+        if (!inProcessEnabled) {
+            throw new IllegalStateException("The in-process transport is not enabled");
+        }
+        long id = totalConnections.incrementAndGet();
+        MemcachedConnection client = new MemcachedConnection(this, new LocalAddress("in-process:" + id));
+        connections.put(client.getRemoteAddress(), client);
+        return new InProcessConnection(this, client);
+    }
+
+    void removeConnection(MemcachedConnection client) {
+        connections.remove(client.getRemoteAddress(), client);
+    }
+
+    /**
+     * @return the socket settings used by this server
+     */
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
     public void setSaslMechanisms(List<String> saslMechanisms) {
         this.saslMechanisms = saslMechanisms;
     }
@@ -125,12 +300,12 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         private int remaining = 0;
         private CommandCode operation = CommandCode.ILLEGAL; /* fail any operation by default */
 
-        public void update(ErrorCode code, int count, CommandCode operation) {
+        public synchronized void update(ErrorCode code, int count, CommandCode operation) {
             this.code = code;
             this.remaining = count;
             this.operation = operation;
         }
-        public ErrorCode getFailCode(CommandCode operation) {
+        public synchronized ErrorCode getFailCode(CommandCode operation) {
             if (this.operation != CommandCode.ILLEGAL && this.operation != operation) {
                 return ErrorCode.SUCCESS;
             }
@@ -157,9 +332,71 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
      * @throws IOException If we fail to create the server socket
      */
     public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, 0);
+    }
+
+    /**
+     * Create a new new memcached server.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param numIoThreads The number of I/O threads serving the clients
+     *                     (0 to serve them from the server thread)
+     * @throws IOException If we fail to create the server socket
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled, int numIoThreads) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, numIoThreads, null, new SocketOptions());
+    }
+
+    /**
+     * Create a new new memcached server.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param numIoThreads The number of I/O threads serving the clients
+     *                     (0 to serve them from the server thread). This is
+     *                     ignored if an event loop group is used.
+     * @param eventLoopGroup The event loops to serve the server and its clients
+     *                       from, or null to have the server use its own thread
+     * @param socketOptions The settings for the listening socket and the
+     *                      client connections
+     * @throws IOException If we fail to create the server socket
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled,
+                           int numIoThreads, EventLoopGroup eventLoopGroup, SocketOptions socketOptions) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, numIoThreads, eventLoopGroup, socketOptions, null);
+    }
+
+    /**
+     * Create a new memcached server for a bucket on a node whose port is
+     * shared by all of its buckets. The server does not listen on a port
+     * of its own; it gets its clients from the shared port.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param vbi       Vbucket Info
+     * @param sharedPort The port of the node
+     * @throws IOException If the event loop could not be created
+     */
+    public MemcachedServer(Bucket bucket, VBucketInfo[] vbi, boolean cccpEnabled, SharedPort sharedPort) throws IOException {
+        this(bucket, null, 0, vbi, cccpEnabled, 0, sharedPort.getEventLoopGroup(), sharedPort.getSocketOptions(), sharedPort);
+    }
+
+    private MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled,
+                            int numIoThreads, EventLoopGroup eventLoopGroup, SocketOptions socketOptions,
+                            SharedPort sharedPort) throws IOException {
+        if (numIoThreads < 0) {
+            throw new IllegalArgumentException("The number of I/O threads must be >= 0");
+        }
         this.bucket = bucket;
         this.storage = new Storage(vbi, this);
         this.cccpEnabled = cccpEnabled;
+        this.socketOptions = socketOptions;
         this.saslMechanisms = new ArrayList<String>();
         saslMechanisms.add("PLAIN"); /* only PLAIN should be supported by default */
 
@@ -233,36 +470,116 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             executors[CommandCode.GET_RANDOM.cc()] = new GetRandomCommandExecutor();
         }
 
+        for (int ii = 0; ii < dispatch.length; ++ii) {
+            CommandCode cc = CommandCode.valueOf(ii);
+            dispatch[ii] = new Dispatch(executors[ii], isAuthFree(cc), isVBucketCommand(cc),
+                    isVBucketCommand(cc) || cc == CommandCode.GET_RANDOM);
+        }
+
         bootTime = System.currentTimeMillis() / 1000;
-        selector = Selector.open();
-        server = ServerSocketChannel.open();
-        server.configureBlocking(false);
-        if (hostname != null && !hostname.equals("*")) {
-            server.socket().bind(new InetSocketAddress(hostname, port));
-            this.hostname = hostname;
+        this.eventLoopGroup = eventLoopGroup;
+        if (eventLoopGroup == null) {
+            eventLoop = new EventLoop();
         } else {
-            server.socket().bind(new InetSocketAddress(port));
-            InetAddress address = server.socket().getInetAddress();
-            if (address.isAnyLocalAddress()) {
-                String name;
-                try {
-                    name = InetAddress.getLocalHost().getHostAddress();
-                } catch (UnknownHostException ex) {
-                    name = "localhost";
-                }
-                this.hostname = name;
-            } else {
-                this.hostname = address.getHostName();
+            eventLoop = null;
+            numIoThreads = 0;
+        }
+        ioLoops = new EventLoop[numIoThreads];
+        ioThreads = new Thread[numIoThreads];
+        for (int ii = 0; ii < ioLoops.length; ++ii) {
+            ioLoops[ii] = new EventLoop();
+        }
+        this.sharedPort = sharedPort;
+        if (sharedPort != null) {
+            server = null;
+            this.hostname = sharedPort.getHostname();
+            this.port = sharedPort.getPort();
+        } else {
+            server = bind(hostname, port, socketOptions.getBacklog());
+            this.hostname = getAdvertisedHostname(server, hostname);
+            this.port = server.socket().getLocalPort();
+            if (eventLoop != null) {
+                eventLoop.register(server, SelectionKey.OP_ACCEPT, this);
             }
         }
-        this.port = server.socket().getLocalPort();
-        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Open a non-blocking listening socket
+     *
+     * @param hostname The hostname to listen on (null or "*" == any)
+     * @param port The port to listen on (0 to choose an ephemeral port)
+     * @param backlog The listen backlog (0 for the system default)
+     * @return the socket
+     * @throws IOException If the socket could not be bound
+     */
+    static ServerSocketChannel bind(String hostname, int port, int backlog) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        if (hostname != null && !hostname.equals("*")) {
+            channel.socket().bind(new InetSocketAddress(hostname, port), backlog);
+        } else {
+            channel.socket().bind(new InetSocketAddress(port), backlog);
+        }
+        return channel;
+    }
+
+    /**
+     * @param channel A socket opened with {@link #bind(String, int, int)}
+     * @param hostname The hostname it was bound to
+     * @return the name clients should use to connect to the socket
+     */
+    static String getAdvertisedHostname(ServerSocketChannel channel, String hostname) {
+        if (hostname != null && !hostname.equals("*")) {
+            return hostname;
+        }
+        InetAddress address = channel.socket().getInetAddress();
+        if (!address.isAnyLocalAddress()) {
+            return address.getHostName();
+        }
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException ex) {
+            return "localhost";
+        }
     }
 
     public Storage getStorage() {
         return storage;
     }
 
+    /**
+     * @return the pool connections borrow their request bodies from
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the pool of (direct) chunks connections combine their responses in
+     */
+    BufferPool getOutputPool() {
+        return outputPool;
+    }
+
+    /**
+     * @param cc The command
+     * @return the histogram of the time spent executing the command
+     */
+    public LatencyHistogram getTimings(CommandCode cc) {
+        LatencyHistogram histogram = timings.get(cc.cc());
+        return histogram == null ? new LatencyHistogram() : histogram;
+    }
+
+    private LatencyHistogram getOrCreateTimings(int opcode) {
+        LatencyHistogram histogram = timings.get(opcode);
+        if (histogram == null) {
+            timings.compareAndSet(opcode, null, new LatencyHistogram());
+            histogram = timings.get(opcode);
+        }
+        return histogram;
+    }
+
     public void updateFailMakerContext(ErrorCode code, int count, CommandCode operation) {
         failmaker.update(code, count, operation);
     }
@@ -309,8 +626,57 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         stats.put("cas_badval", "0");
         stats.put("cas_hits", "0");
         stats.put("cas_misses", "0");
-        stats.put("mem_used", "100000000000000000000");
-        stats.put("curr_connections", "-1");
+        stats.putAll(getMemoryQuotaStats());
+        stats.put("curr_connections", Integer.toString(connections.size()));
+        stats.put("total_connections", Long.toString(totalConnections.get()));
+        stats.put("io_inline_writes", Long.toString(inlineWrites.get()));
+        stats.put("io_writes_blocked", Long.toString(writesBlocked.get()));
+        stats.put("io_write_wakeups", Long.toString(writeWakeups.get()));
+        stats.put("io_read_suspended_conns", Integer.toString(suspendedConnections.get()));
+        stats.put("io_read_suspensions", Long.toString(readSuspensions.get()));
+        stats.put("worker_commands", Long.toString(workerCommands.get()));
+        stats.put("clustermap_notifications", Long.toString(clustermapNotifications.get()));
+        return stats;
+    }
+
+    private Map<String, String> getMemoryQuotaStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        VBucketStore cache = storage.getCacheStore();
+        ItemPager pager = storage.getPager();
+        stats.put("mem_used", Long.toString(cache.getMemoryUsed()));
+        stats.put("ep_max_size", Long.toString(cache.getMemoryQuota()));
+        stats.put("ep_mem_high_wat", Long.toString(pager.getHighWatermark()));
+        stats.put("ep_mem_low_wat", Long.toString(pager.getLowWatermark()));
+        stats.put("ep_item_eviction_policy", pager.getPolicy() == Bucket.EvictionPolicy.FULL ? "full_eviction" : "value_only");
+        stats.put("ep_num_value_ejects", Long.toString(pager.getNumValueEjects()));
+        stats.put("ep_num_item_ejects", Long.toString(pager.getNumItemEjects()));
+        stats.put("ep_num_pager_runs", Long.toString(pager.getNumRuns()));
+        stats.put("ep_tmp_oom_errors", Long.toString(cache.getTmpOomErrors()));
+        stats.put("ep_bg_fetched", Long.toString(cache.getBgFetched()));
+        ExpiryPager expiryPager = storage.getExpiryPager();
+        stats.put("ep_expired_pager", Long.toString(expiryPager.getNumExpired()));
+        stats.put("ep_expired_access", Long.toString(cache.getExpiredAccess()));
+        stats.put("ep_num_expiry_pager_runs", Long.toString(expiryPager.getNumRuns()));
+
+        long items = 0;
+        long nonResident = 0;
+        long activeItems = 0;
+        long activeNonResident = 0;
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (int vb = 0; vb < cache.getNumPartitions(); vb++) {
+            VBucketPartition partition = cache.getPartition(vb);
+            items += partition.getNumItems();
+            nonResident += partition.getNumNonResident();
+            if (vb < vbi.length && vbi[vb].getOwner() == this) {
+                activeItems += partition.getNumItems();
+                activeNonResident += partition.getNumNonResident();
+            }
+        }
+        stats.put("curr_items", Long.toString(activeItems));
+        stats.put("curr_items_tot", Long.toString(items));
+        stats.put("ep_num_non_resident", Long.toString(nonResident));
+        stats.put("vb_active_perc_mem_resident",
+                Long.toString(activeItems == 0 ? 100 : (activeItems - activeNonResident) * 100 / activeItems));
         return stats;
     }
 
@@ -324,11 +690,24 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             memStats.put("mem_used", Long.toString(rt.totalMemory()));
             memStats.put("mem_free", Long.toString(rt.freeMemory()));
             memStats.put("mem_max", Long.toString(rt.maxMemory()));
+            // The allocator is shared by all the nodes of the bucket
+            SlabAllocator allocator = bucket == null ? null : bucket.getValueAllocator();
+            if (allocator != null) {
+                memStats.putAll(allocator.getStats());
+            }
             return memStats;
         } else if (about.equals("tap")) {
             Map<String, String> tapStats = new HashMap<String, String>();
             tapStats.put("ep_tap_count", "0");
             return tapStats;
+        } else if (about.equals("connections")) {
+            return getConnectionStats();
+        } else if (about.equals("timings")) {
+            return getTimingStats();
+        } else if (about.equals("vbucket-details") || about.startsWith("vbucket-details ")) {
+            return getVBucketDetailStats(about.substring("vbucket-details".length()).trim());
+        } else if (about.equals("replication")) {
+            return getReplicationStats();
         } else if (about.equals("__MOCK__")) {
             Map<String,String> mockInfo = new HashMap<String, String>();
             mockInfo.put("implementation", "java");
@@ -339,6 +718,146 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
+    private Map<String, String> getConnectionStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        Gson gson = new Gson();
+        for (Map.Entry<SocketAddress, MemcachedConnection> entry : connections.entrySet()) {
+            MemcachedConnection client = entry.getValue();
+            JsonObject info = new JsonObject();
+            info.addProperty("connected_at", client.getConnectedAt());
+            info.addProperty("commands", client.getCommandsExecuted());
+            info.addProperty("inline_writes", client.getInlineWrites());
+            info.addProperty("writes_blocked", client.getWritesBlocked());
+            info.addProperty("authenticated", client.isAuthenticated());
+            info.addProperty("pending_output", client.hasOutput());
+            info.addProperty("pending_bytes", client.getOutputContext().getPendingBytes());
+            info.addProperty("read_suspended", client.isReadSuspended());
+            info.addProperty("tcp_nodelay", client.isTcpNoDelay());
+            info.addProperty("write_stalled", client.isWriteStalled());
+            stats.put(entry.getKey().toString(), gson.toJson(info));
+        }
+        return stats;
+    }
+
+    /**
+     * Describe how far behind the replicas of the vBuckets this node is active
+     * for are: {@code vb_<id>:replica_<n>:<stat>} describes the n-th replica
+     * of a vBucket, and {@code replica_<host:port>:<stat>} the stream of
+     * mutations to a replica node.
+     *
+     * @return the stats
+     */
+    private Map<String, String> getReplicationStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("ep_replication_async", Boolean.toString(storage.isAsyncReplication()));
+        stats.put("ep_replication_lag_ms", Long.toString(storage.getReplicationLag()));
+        stats.put("ep_replication_rate", Integer.toString(storage.getReplicationRate()));
+        stats.put("ep_replication_queue_size", Integer.toString(storage.getReplicationQueueSize()));
+
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (int vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() != this) {
+                continue;
+            }
+            List<MemcachedServer> replicas = vbi[vb].getReplicas();
+            for (int ii = 0; ii < replicas.size(); ii++) {
+                MemcachedServer replica = replicas.get(ii);
+                ReplicationStream stream = storage.findReplicationStream(replica);
+                String prefix = String.format("vb_%d:replica_%d:", vb, ii);
+                stats.put(prefix + "node", replica.getHostname() + ":" + replica.getPort());
+                stats.put(prefix + "pending", Integer.toString(stream == null ? 0 : stream.getPending(vb)));
+                stats.put(prefix + "seqno_lag", Long.toString(stream == null ? 0 : stream.getSeqnoLag(vb)));
+                stats.put(prefix + "last_lag_ms", Long.toString(stream == null ? 0 : stream.getLastLagMillis(vb)));
+            }
+        }
+        for (ReplicationStream stream : storage.getReplicationStreams()) {
+            MemcachedServer replica = stream.getReplica();
+            String prefix = "replica_" + replica.getHostname() + ":" + replica.getPort() + ":";
+            stats.put(prefix + "queue_size", Integer.toString(stream.getQueueSize()));
+            stats.put(prefix + "replicated", Long.toString(stream.getNumReplicated()));
+            stats.put(prefix + "refused", Long.toString(stream.getNumRefused()));
+            stats.put(prefix + "failed", Long.toString(stream.getNumFailed()));
+        }
+        return stats;
+    }
+
+    /**
+     * Describe the vBuckets held by this node the way ep-engine does:
+     * {@code vb_<id>} is the state of the vBucket, and {@code vb_<id>:<stat>}
+     * its details.
+     *
+     * @param which The vBucket to describe, or an empty string for all of them
+     * @return the stats, or null if there is no such vBucket
+     */
+    private Map<String, String> getVBucketDetailStats(String which) {
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        int first = 0;
+        int last = vbi.length - 1;
+        if (!which.isEmpty()) {
+            try {
+                first = last = Integer.parseInt(which);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (first < 0 || first >= vbi.length) {
+                return null;
+            }
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        for (int vb = first; vb <= last; vb++) {
+            String state;
+            if (vbi[vb].getOwner() == this) {
+                state = "active";
+            } else if (vbi[vb].getReplicas().contains(this)) {
+                state = "replica";
+            } else {
+                continue;
+            }
+            VBucketPartition partition = storage.getPartition((short) vb);
+            VBucketCoordinates coords = storage.getCache((short) vb).getCurrentCoords(vb);
+            String prefix = "vb_" + vb;
+            stats.put(prefix, state);
+            stats.put(prefix + ":num_items", Integer.toString(partition.getNumItems()));
+            stats.put(prefix + ":num_non_resident", Integer.toString(partition.getNumNonResident()));
+            stats.put(prefix + ":ht_item_memory", Long.toString(partition.getMemoryUsed()));
+            stats.put(prefix + ":high_seqno", Long.toString(coords.getSeqno()));
+            stats.put(prefix + ":uuid", Long.toString(coords.getUuid()));
+            stats.put(prefix + ":persistence_seqno", Long.toString(storage.getPersistedSeqno((short) vb)));
+        }
+        return stats;
+    }
+
+    private Map<String, String> getTimingStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        for (CommandCode cc : CommandCode.values()) {
+            LatencyHistogram histogram = timings.get(cc.cc());
+            if (histogram == null || histogram.getCount() == 0) {
+                continue;
+            }
+            String prefix = cc.name().toLowerCase() + "_";
+            stats.put(prefix + "count", Long.toString(histogram.getCount()));
+            stats.put(prefix + "mean_us", Long.toString(histogram.getMeanMicros()));
+            stats.put(prefix + "p50_us", Long.toString(histogram.getPercentileMicros(50)));
+            stats.put(prefix + "p90_us", Long.toString(histogram.getPercentileMicros(90)));
+            stats.put(prefix + "p99_us", Long.toString(histogram.getPercentileMicros(99)));
+            stats.put(prefix + "max_us", Long.toString(histogram.getMaxMicros()));
+        }
+        return stats;
+    }
+
+    /**
+     * Forget the execution times recorded so far
+     */
+    public void resetTimings() {
+        for (int ii = 0; ii < timings.length(); ii++) {
+            LatencyHistogram histogram = timings.get(ii);
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+    }
+
     public String getSocketName() {
         return hostname + ":" + port;
     }
@@ -351,76 +870,206 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return hostname;
     }
 
-    private void writeResponse(SocketChannel channel, OutputContext ctx) throws IOException {
-        while (ctx.hasRemaining()) {
-            ByteBuffer[] bufs = ctx.getIov();
-            long nw = channel.write(bufs);
-            if (nw < 0) {
-                channel.close();
-                throw new ClosedChannelException();
-            } else if (nw == 0) {
-                return;
+    /**
+     * @return the port this server shares with the other buckets of its
+     *         node, or null if the server has a port of its own
+     */
+    public SharedPort getSharedPort() {
+        return sharedPort;
+    }
+
+    /**
+     * Start accepting clients. The server either runs on its own thread,
+     * or on the event loop group it was created with.
+     */
+    public void startServing() {
+        if (eventLoopGroup == null) {
+            setDaemon(true);
+            start();
+        } else {
+            if (sharedPort != null) {
+                sharedPort.addServer(this);
+            } else {
+                eventLoopGroup.next().register(server, SelectionKey.OP_ACCEPT, this);
+            }
+            if (unixServer != null) {
+                eventLoopGroup.next().register(unixServer, SelectionKey.OP_ACCEPT, this);
             }
-            ctx.updateBytesSent(nw);
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
+    /**
+     * Stop accepting clients and disconnect all the connected ones. If the
+     * server runs on its own thread this waits for the thread to terminate.
+     */
+    public void stopServing() {
+        if (eventLoopGroup == null) {
+            interrupt();
+            boolean interrupted = false;
+            while (isAlive()) {
                 try {
-                    selector.select();
-                    if (!active) {
-                        // server is suspended: ignore all events
-                        selector.selectedKeys().clear();
-                        continue;
-                    }
-                } catch (IOException ex) {
-                    continue;
+                    join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
                 }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
 
-                try {
-                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-                    // @todo we should probably drive the state machine until it
-                    // step doesn't do any progress to avoid jumping back to the
-                    // core
-                    while (iterator.hasNext()) {
-                        SelectionKey key = iterator.next();
-                        iterator.remove();
-                        handleClient(key);
-                    }
-                } catch (IOException e) {
-
-                    Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
-                }
+        if (sharedPort != null) {
+            sharedPort.removeServer(this);
+        } else {
+            try {
+                server.close();
+            } catch (IOException e) {
+                Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
             }
+        }
+        closeUnixSocket();
+        for (EventLoop loop : eventLoopGroup.getLoops()) {
+            loop.closeChannels(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (eventLoopGroup != null) {
+            throw new IllegalStateException("The server is served by an event loop group");
+        }
+        for (int ii = 0; ii < ioLoops.length; ++ii) {
+            ioThreads[ii] = new Thread(ioLoops[ii], String.format("%s:IO[%d]", getName(), ii));
+            ioThreads[ii].setDaemon(true);
+            ioThreads[ii].start();
+        }
+
+        try {
+            eventLoop.run();
         } finally {
             try {
                 server.close();
-                selector.close();
             } catch (IOException e) {
                 Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
             }
+            closeUnixSocket();
+            // The event loops closed all the client channels on their way out
+            connections.clear();
+
+            for (Thread thread : ioThreads) {
+                if (thread == null) {
+                    continue;
+                }
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
-    private void handleClientWrite(SocketChannel channel, OutputContext ctx) throws IOException {
-        OutputContext effectiveCtx = ctx;
+    private void handleClientWrite(final SelectionKey key) throws IOException {
+        final MemcachedConnection client = (MemcachedConnection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        OutputContext ctx = client.getOutputContext();
+        if (client.isWriteStalled()) {
+            return;
+        }
+
         if (truncateLimit > 0) {
-            effectiveCtx = ctx.getSlice(truncateLimit);
-        } else if (hiccupOffset > 0) {
-            effectiveCtx = ctx.getSlice(hiccupOffset);
+            // Send the first bytes of the output and chop off the rest
+            ctx.getSlice(truncateLimit).write(channel);
+            ctx.discard();
+            return;
         }
 
-        writeResponse(channel, effectiveCtx);
-        if (hiccupOffset > 0) {
-            try {
-                Thread.sleep(hiccupTime);
-            } catch (InterruptedException ex) {
+        if (hiccupOffset > 0 && hiccupTime > 0) {
+            ctx.getSlice(hiccupOffset).write(channel);
+            if (ctx.hasRemaining()) {
+                // Hold the rest of the output of this client (and only this
+                // client) until the hiccup is over
+                client.setWriteStalled(true);
+                client.getEventLoop().schedule(hiccupTime, new Runnable() {
+                    @Override
+                    public void run() {
+                        client.setWriteStalled(false);
+                        resumeClientWrite(key);
+                    }
+                });
+                return;
+            }
+        }
+        ctx.write(channel);
+    }
+
+    private void resumeClientWrite(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
+        try {
+            client.getOutputContext().write((SocketChannel) key.channel());
+        } catch (IOException ex) {
+            closeClient(key);
+            return;
+        }
+        updateInterestOps(key, client);
+    }
+
+    private void updateInterestOps(SelectionKey key, MemcachedConnection client) {
+        long high = outputHighWatermark;
+        long pending = client.getOutputContext().getPendingBytes();
+        if (client.isReadSuspended()) {
+            if (high == 0 || pending <= outputLowWatermark) {
+                client.setReadSuspended(false);
+                suspendedConnections.decrementAndGet();
+            }
+        } else if (high > 0 && pending > high) {
+            client.setReadSuspended(true);
+            suspendedConnections.incrementAndGet();
+            readSuspensions.incrementAndGet();
+        }
+
+        if (client.isOutputBacklogged() && !client.isReadSuspended()) {
+            // The output drained; go on with the commands left in the input
+            final MemcachedConnection backlogged = client;
+            client.getEventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    serviceClient(backlogged);
+                }
+            });
+        }
+
+        // Reading resumes once the commands holding up the input complete (see completeAsync)
+        int ioEvents = client.isReadSuspended() || client.isWaitingForAsync() ? 0 : SelectionKey.OP_READ;
+        if (client.hasOutput() && !client.isWriteStalled()) {
+            ioEvents |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ioEvents) {
+            key.interestOps(ioEvents);
+        }
+    }
+
+    void closeClient(SelectionKey key) {
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            Logger.getLogger(MemcachedServer.class.getName()).log(Level.FINE, null, ex);
+        } finally {
+            key.cancel();
+            client.getOutputContext().discard();
+            if (client.isReadSuspended()) {
+                client.setReadSuspended(false);
+                suspendedConnections.decrementAndGet();
+            }
+            if (client.getRemoteAddress() != null) {
+                connections.remove(client.getRemoteAddress(), client);
             }
-            writeResponse(channel, ctx);
         }
     }
 
@@ -434,47 +1083,80 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
-    private void handleNewClient() throws IOException {
-        SocketChannel cc = server.accept();
+    void handleNewClient(ServerSocketChannel listener) throws IOException {
+        SocketChannel cc = listener.accept();
+        if (cc == null) {
+            return;
+        }
         cc.configureBlocking(false);
-        cc.socket().setTcpNoDelay(false);
-        cc.socket().setSendBufferSize(1<<20);
-        cc.socket().setReceiveBufferSize(1<<20);
-        cc.register(selector, SelectionKey.OP_READ, new MemcachedConnection(this));
+        if (listener == server) {
+            socketOptions.apply(cc.socket());
+            registerClient(cc, cc.socket().getRemoteSocketAddress(), true);
+        } else {
+            registerClient(cc, null, true);
+        }
     }
 
-    private void handleClient(SelectionKey key) throws IOException {
-        MemcachedConnection client = (MemcachedConnection) key.attachment();
-        if (client == null) {
-            handleNewClient();
-            return;
+    /**
+     * Start serving a newly accepted client
+     *
+     * @param cc The connection of the client
+     * @param remote The address of the client (null for a client of the Unix domain socket)
+     * @param bucketSelected false if the client must select a bucket (or
+     *                       authenticate) before it may use this one
+     */
+    void registerClient(SocketChannel cc, SocketAddress remote, boolean bucketSelected) {
+        long id = totalConnections.incrementAndGet();
+        if (remote == null) {
+            // All the clients of a Unix domain socket have the same (unnamed) address
+            remote = new LocalAddress("unix:" + id);
         }
 
+        EventLoop loop = eventLoop;
+        if (eventLoopGroup != null) {
+            loop = eventLoopGroup.next();
+        } else if (ioLoops.length > 0) {
+            loop = ioLoops[nextIoLoop];
+            nextIoLoop = (nextIoLoop + 1) % ioLoops.length;
+        }
+        MemcachedConnection client = new MemcachedConnection(this, remote);
+        if (!bucketSelected) {
+            client.requireBucketSelection();
+        }
+        client.setChannel(cc);
+        client.setEventLoop(loop);
+        connections.put(remote, client);
+        loop.register(cc, SelectionKey.OP_READ, client);
+    }
+
+    void handleClient(SelectionKey key) throws IOException {
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
         SocketChannel channel = (SocketChannel) key.channel();
         try {
-            if (key.isReadable()) {
-                handleClientRead(channel, client);
-            }
-
             if (key.isWritable()) {
-                OutputContext ctx = client.borrowOutputContext();
+                writeWakeups.incrementAndGet();
+                if (client.hasOutput()) {
+                    handleClientWrite(key);
+                }
+            }
 
-                if (ctx != null) {
-                    try {
-                        handleClientWrite(channel, ctx);
-                    } finally {
-                        client.returnOutputContext(ctx);
+            if (key.isReadable()) {
+                handleClientRead(channel, client);
+                // Try to send the responses right away; we only need to
+                // wait for OP_WRITE if the socket can't take all of them
+                if (client.hasOutput() && !client.isWriteStalled()) {
+                    handleClientWrite(key);
+                    if (!client.hasOutput()) {
+                        inlineWrites.incrementAndGet();
+                        client.countWrite(true);
+                    } else if (!client.isWriteStalled()) {
+                        writesBlocked.incrementAndGet();
+                        client.countWrite(false);
                     }
                 }
             }
-
-
         } catch (IOException ex) {
-            try {
-                channel.close();
-            } finally {
-                key.cancel();
-            }
+            closeClient(key);
 
             try {
                 // Windows doesnt' seem to want to propagate a proper
@@ -490,28 +1172,121 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             return;
         }
 
-        int ioEvents = SelectionKey.OP_READ;
-        if (client.hasOutput()) {
-            ioEvents |= SelectionKey.OP_WRITE;
-        }
-        channel.register(selector, ioEvents, client);
+        updateInterestOps(key, client);
     }
 
     public Bucket getBucket() {
         return bucket;
     }
 
-    private boolean authOk(BinaryCommand cmd, MemcachedConnection client) {
-        if (client.isAuthenticated()) {
-            return true;
+    /**
+     * How a command with a given opcode is executed
+     */
+    private static final class Dispatch {
+        final CommandExecutor executor;
+        // Whether the command may be executed before the client authenticated
+        final boolean authFree;
+        // Whether the command only touches the vBucket it is addressed to
+        final boolean vbucketScoped;
+        // Whether the command may complete out of order for a client
+        // which negotiated unordered execution
+        final boolean reorderable;
+
+        Dispatch(CommandExecutor executor, boolean authFree, boolean vbucketScoped, boolean reorderable) {
+            this.executor = executor;
+            this.authFree = authFree;
+            this.vbucketScoped = vbucketScoped;
+            this.reorderable = reorderable;
         }
+    }
 
-        switch (cmd.getComCode()) {
+    private static boolean isAuthFree(CommandCode code) {
+        switch (code) {
             case SASL_AUTH:
             case SASL_LIST_MECHS:
             case SASL_STEP:
             case HELLO:
             case GET_ERRMAP:
+            // Checks whether the client may use the bucket by itself
+            case SELECT_BUCKET:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if a command is expensive enough to be worth executing on the
+     * worker pool
+     *
+     * @param cmd The command
+     * @return true if the command should not hold up the commands behind it
+     */
+    private static boolean isExpensive(BinaryCommand cmd) {
+        switch (cmd.getComCode()) {
+            case SUBDOC_MULTI_MUTATION:
+            case SUBDOC_MULTI_LOOKUP:
+            case GET_RANDOM:
+                return true;
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+                return cmd.getValueLength() >= LARGE_VALUE_SIZE;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if the command only touches the vBucket it is addressed to (and
+     * may thus run in parallel with commands for other vBuckets)
+     */
+    private static boolean isVBucketCommand(CommandCode code) {
+        switch (code) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+            case GAT:
+            case GATQ:
+            case TOUCH:
+            case GETL:
+            case UNL:
+            case GET_REPLICA:
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ:
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+            case DELETE:
+            case DELETEQ:
+            case INCREMENT:
+            case INCREMENTQ:
+            case DECREMENT:
+            case DECREMENTQ:
+            case EVICT:
+            case OBSERVE_SEQNO:
+            case SUBDOC_GET:
+            case SUBDOC_EXISTS:
+            case SUBDOC_DICT_ADD:
+            case SUBDOC_DICT_UPSERT:
+            case SUBDOC_DELETE:
+            case SUBDOC_REPLACE:
+            case SUBDOC_ARRAY_PUSH_LAST:
+            case SUBDOC_ARRAY_PUSH_FIRST:
+            case SUBDOC_ARRAY_INSERT:
+            case SUBDOC_ARRAY_ADD_UNIQUE:
+            case SUBDOC_COUNTER:
+            case SUBDOC_GET_COUNT:
+            case SUBDOC_MULTI_LOOKUP:
+            case SUBDOC_MULTI_MUTATION:
                 return true;
 
             default:
@@ -519,16 +1294,34 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
-    private CommandExecutor getExecutor(CommandCode code) {
-        if (code == CommandCode.ILLEGAL) {
-            return unknownHandler;
+    private BinaryResponse executeLocked(Dispatch entry, BinaryCommand cmd, MemcachedConnection client) throws IOException {
+        if (entry.vbucketScoped) {
+            BinaryResponse response;
+            executionLock.readLock().lock();
+            try {
+                synchronized (storage.getVBucketLock(cmd.getVBucketId())) {
+                    response = entry.executor.execute(cmd, this, client);
+                }
+                // Now that the vBucket is unlocked, make room for the next mutations if need be
+                storage.getPager().runIfNeeded();
+            } finally {
+                executionLock.readLock().unlock();
+            }
+            return response;
+        }
+
+        executionLock.writeLock().lock();
+        try {
+            return entry.executor.execute(cmd, this, client);
+        } finally {
+            executionLock.writeLock().unlock();
         }
-        return executors[code.cc()];
     }
 
     @Override
     public void execute(BinaryCommand cmd, MemcachedConnection client)
             throws IOException {
+        Dispatch entry = dispatch[cmd.getOpcode() & 0xff];
         try {
             if (enhancedErrorsEnabled) {
                 cmd.generateEventId();
@@ -541,45 +1334,17 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             ErrorCode failcode = failmaker.getFailCode(cmd.getComCode());
             if (failcode != ErrorCode.SUCCESS) {
                 client.sendResponse(new BinaryResponse(cmd, failcode));
-            } else if (authOk(cmd, client)) {
+            } else if (client.isAuthenticated() || entry.authFree) {
+                // Responses to traced commands are built with room for the
+                // duration, which is filled in once we know it. The HELLO
+                // response should not be ever traced.
+                cmd.setTraced(client.supportsTracing() && cmd.getComCode() != CommandCode.HELLO);
                 long start = System.nanoTime();
-                BinaryResponse response = getExecutor(cmd.getComCode()).execute(cmd, this, client);
-                long end = System.nanoTime();
+                BinaryResponse response = executeLocked(entry, cmd, client);
+                long elapsed = System.nanoTime() - start;
+                getOrCreateTimings(cmd.getOpcode() & 0xff).record(elapsed);
                 if (response != null) {
-                    if (client.supportsTracing()) {
-                        long elapsedMicros = (end - start) / 1000;
-                        long maxVal = 120125042;
-                        elapsedMicros = Math.min(elapsedMicros, maxVal);
-                        short encodedMicros = (short)Math.round(Math.pow(elapsedMicros * 2, 1.0 / 1.74));
-                        response.getBuffer().get();
-                        byte opcode = response.getBuffer().get();
-                        short keyLength = response.getBuffer().getShort();
-                        byte extraLength = response.getBuffer().get();
-                        byte datatype = response.getBuffer().get();
-                        short errorCode = response.getBuffer().getShort();
-                        int bodyLength = response.getBuffer().getInt();
-                        int opaque = response.getBuffer().getInt();
-                        long cas = response.getBuffer().getLong();
-                        byte framingExtrasLength = 3;
-                        bodyLength += framingExtrasLength;
-                        ByteBuffer message = ByteBuffer.allocate(24 + bodyLength);
-                        message.put(BinaryResponse.ALT_MAGIC);
-                        message.put(opcode);
-                        message.put(framingExtrasLength);
-                        message.put((byte)keyLength);
-                        message.put(extraLength);
-                        message.put(datatype);
-                        message.putShort(errorCode);
-                        message.putInt(bodyLength);
-                        message.putInt(opaque);
-                        message.putLong(cas);
-                        byte tracing_framing_id = 0x02;
-                        message.put(tracing_framing_id);
-                        message.putShort(encodedMicros);
-                        message.put(response.getBuffer());
-                        message.rewind();
-                        response.setBuffer(message);
-                    }
+                    response.setServerDuration(elapsed);
                     client.sendResponse(response);
                 }
             } else {
@@ -587,6 +1352,115 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             }
         } catch (AccessControlException ex) {
             client.sendResponse(BinaryConfigResponse.createNotMyVbucket(cmd, this));
+        } catch (ValueFreedException ex) {
+            // The item was replaced or removed while we read it; let the client retry
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.ETMPFAIL));
+        }
+    }
+
+    /**
+     * Check if a command may be executed while commands received before it
+     * are still running on the worker pool
+     *
+     * @param cmd The command
+     * @return false if the command must wait for the pending ones
+     */
+    boolean isReorderable(BinaryCommand cmd) {
+        return dispatch[cmd.getOpcode() & 0xff].reorderable;
+    }
+
+    /**
+     * Execute a command on the worker pool if it is expensive. Its response
+     * is sent (and the command released) once it completes, possibly after
+     * the responses to commands received after it.
+     *
+     * @param cmd The command
+     * @param client The client which negotiated unordered execution
+     * @return false if the command should be executed by the caller
+     */
+    boolean executeAsync(final BinaryCommand cmd, final MemcachedConnection client) {
+        Executor pool = workerPool;
+        if (pool == null || client.getEventLoop() == null || !isReorderable(cmd) || !isExpensive(cmd)) {
+            return false;
+        }
+
+        client.beginAsync();
+        workerCommands.incrementAndGet();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute(cmd, client);
+                } catch (IOException ex) {
+                    Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    cmd.release();
+                    client.getEventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            completeAsync(client);
+                        }
+                    });
+                }
+            }
+        });
+        return true;
+    }
+
+    private void completeAsync(MemcachedConnection client) {
+        client.endAsync();
+        serviceClient(client);
+    }
+
+    /**
+     * Process the input and send the output of a client outside of the
+     * handling of its I/O events. This must be called on its event loop.
+     *
+     * @param client The client
+     */
+    private void serviceClient(MemcachedConnection client) {
+        SelectionKey key = client.getEventLoop().keyFor(client.getChannel());
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            // Run whatever was held back waiting for a command to complete
+            client.step();
+            if (client.hasOutput() && !client.isWriteStalled()) {
+                handleClientWrite(key);
+            }
+        } catch (IOException ex) {
+            closeClient(key);
+            return;
+        }
+        updateInterestOps(key, client);
+    }
+
+    /**
+     * Send the current cluster map to all the clients which subscribed to
+     * changes to it. This may be called from any thread.
+     */
+    public void notifyClusterMapChange() {
+        if (!isActive() || !isCccpEnabled()) {
+            return;
+        }
+        final ByteBuffer notification = BinaryServerRequest.createClusterMapNotification(
+                bucket.getName(), Info.getConfigRevision(), BinaryConfigResponse.getConfig(this));
+        for (final MemcachedConnection client : connections.values()) {
+            EventLoop loop = client.getEventLoop();
+            if (loop == null) {
+                continue;
+            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (client.supportsClusterMapNotifications()) {
+                        client.getOutputContext().add(notification.duplicate());
+                        clustermapNotifications.incrementAndGet();
+                        serviceClient(client);
+                    }
+                }
+            });
         }
     }
 
@@ -594,6 +1468,27 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return this;
     }
 
+    /**
+     * Move a client of the shared port of the node over to this server (and
+     * thus to its bucket). This must be called on the thread serving the client.
+     *
+     * @param client The client
+     */
+    void adopt(MemcachedConnection client) {
+        MemcachedServer previous = client.getServer();
+        if (previous == this) {
+            return;
+        }
+        SocketAddress address = client.getRemoteAddress();
+        previous.connections.remove(address, client);
+        if (client.isReadSuspended()) {
+            previous.suspendedConnections.decrementAndGet();
+            suspendedConnections.incrementAndGet();
+        }
+        client.setServer(this);
+        connections.put(address, client);
+    }
+
     public void shutdown() {
         active = false;
     }
@@ -682,18 +1577,21 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return bucket.getType();
     }
 
+    /**
+     * Find the connection of a client
+     *
+     * @param address The address of the client
+     * @return the connection, or null if there is no such client
+     */
     public MemcachedConnection findConnection(SocketAddress address) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            Object o = key.attachment();
-            if (o == null || !(o instanceof MemcachedConnection)) {
-                continue;
-            }
-            SocketChannel ch = (SocketChannel) key.channel();
-            if (ch.socket().getRemoteSocketAddress().equals(address)) {
-                return (MemcachedConnection) o;
-            }
-        }
-        return null;
+        return connections.get(address);
+    }
+
+    /**
+     * @return the number of clients currently connected
+     */
+    public int getConnectionCount() {
+        return connections.size();
     }
 
     public void startLog() {
@@ -706,6 +1604,8 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
     public List<CommandLogEntry> getLogs() {
-        return commandLog;
+        synchronized (commandLog) {
+            return new ArrayList<CommandLogEntry>(commandLog);
+        }
     }
 }
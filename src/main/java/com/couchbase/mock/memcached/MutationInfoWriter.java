@@ -44,16 +44,15 @@ public class MutationInfoWriter {
     /**
      * Write the appropriate mutation information into the output buffers.
      * This method will do nothing if extra mutation information is not enabled.
-     * @param bb The output buffer
+     * @param bb The output buffer, positioned at the extras
      * @param coords The coordinates to write
      */
     public void write(ByteBuffer bb, VBucketCoordinates coords) {
         if (!enabled) {
             return;
         }
-        bb.putLong(24, coords.getUuid());
-        bb.putLong(32, coords.getSeqno());
-
+        bb.putLong(coords.getUuid());
+        bb.putLong(coords.getSeqno());
     }
 
     /**
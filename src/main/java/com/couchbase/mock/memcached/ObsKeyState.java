@@ -27,13 +27,13 @@ public class ObsKeyState extends KeySpec {
     public final long cas;
 
     public ObsKeyState(KeySpec ks, ObserveCode status, long cas) {
-        super(ks.key, ks.vbId);
+        super(ks);
         this.status = status;
         this.cas = cas;
     }
 
     public ObsKeyState(Item itm, ObserveCode status) {
-        super(itm.getKeySpec().key, itm.getKeySpec().vbId);
+        super(itm.getKeySpec());
         this.status = status;
         this.cas = itm.getCas();
     }
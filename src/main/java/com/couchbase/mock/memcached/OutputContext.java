@@ -15,31 +15,112 @@
  */
 package com.couchbase.mock.memcached;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.channels.GatheringByteChannel;
 
 /**
- * This class is used for fine-grained output manipulation. It implements
- * a system of smaller chunks into which responses are buffered. This is used by
- * the {@link MemcachedServer} class to simulate network
- * slowness.
+ * The output queue of a connection.
+ *
+ * Small responses are copied back to back into chunks borrowed from a
+ * {@link BufferPool}, so that a batch of pipelined responses may be sent
+ * with a single write. Larger responses are queued as they are and handed
+ * to the channel as part of a gathering write.
+ *
+ * The context also allows for fine-grained output manipulation, which is
+ * used by the {@link MemcachedServer} class to simulate network slowness
+ * (see {@link #getSlice(int)}).
  */
 public class OutputContext {
-    private List<ByteBuffer> buffers;
-    private final ByteBuffer[] singleArray = new ByteBuffer[1];
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final int COMBINE_LIMIT = 4 * 1024;
+
+    private final BufferPool pool;
+    private final OutputContext parent;
+    private ByteBuffer[] entries;
+    private boolean[] pooled;
+    private int head;
+    private int tail;
+    // The pooled chunk at the tail of the queue which small responses are appended to
+    private ByteBuffer fillChunk;
+    // The number of bytes queued but not yet sent
+    private long pendingBytes;
 
     /**
-     * Get an array of buffers representing all the active chunks
-     * @return An array of buffers
+     * Create a new OutputContext
+     *
+     * @param pool The pool to borrow chunks from. If null, every response is
+     *             queued as a separate buffer
      */
-    public ByteBuffer[] getIov() {
-        if (buffers.size() == 1) {
-            singleArray[0] = buffers.get(0);
-            return singleArray;
+    public OutputContext(BufferPool pool) {
+        this(pool, null, 16);
+    }
+
+    private OutputContext(BufferPool pool, OutputContext parent, int capacity) {
+        this.pool = pool;
+        this.parent = parent;
+        entries = new ByteBuffer[capacity];
+        pooled = new boolean[capacity];
+    }
+
+    private void append(ByteBuffer buffer, boolean isPooled) {
+        if (tail == entries.length) {
+            if (head > 0) {
+                int count = tail - head;
+                System.arraycopy(entries, head, entries, 0, count);
+                System.arraycopy(pooled, head, pooled, 0, count);
+                for (int ii = count; ii < tail; ii++) {
+                    entries[ii] = null;
+                }
+                head = 0;
+                tail = count;
+            } else {
+                ByteBuffer[] newEntries = new ByteBuffer[entries.length * 2];
+                boolean[] newPooled = new boolean[entries.length * 2];
+                System.arraycopy(entries, 0, newEntries, 0, tail);
+                System.arraycopy(pooled, 0, newPooled, 0, tail);
+                entries = newEntries;
+                pooled = newPooled;
+            }
         }
-        return buffers.toArray(new ByteBuffer[buffers.size()]);
+        entries[tail] = buffer;
+        pooled[tail] = isPooled;
+        tail++;
+    }
+
+    /**
+     * Queue the remaining content of a buffer for sending. Small buffers are
+     * copied (and the buffer may be reused by the caller), larger ones are
+     * referenced until they have been sent.
+     *
+     * @param buffer The data to send
+     */
+    public synchronized void add(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return;
+        }
+        pendingBytes += length;
+        if (pool == null || length > COMBINE_LIMIT) {
+            append(buffer, false);
+            fillChunk = null;
+            return;
+        }
+
+        if (fillChunk == null || fillChunk.capacity() - fillChunk.limit() < length) {
+            fillChunk = pool.allocate(CHUNK_SIZE);
+            fillChunk.limit(0);
+            append(fillChunk, true);
+        }
+
+        // Append after the pending bytes of the chunk, leaving its position
+        // (i.e. what has already been sent) untouched
+        int position = fillChunk.position();
+        int end = fillChunk.limit();
+        fillChunk.limit(end + length);
+        fillChunk.position(end);
+        fillChunk.put(buffer);
+        fillChunk.position(position);
     }
 
     /**
@@ -47,74 +128,116 @@ public class OutputContext {
      *
      * @return true if not empty
      */
-    public boolean hasRemaining() {
-        return !buffers.isEmpty();
+    public synchronized boolean hasRemaining() {
+        return head < tail;
     }
 
     /**
-     * Get an OutputBuffer containing a subset of the current one
+     * @return the number of bytes queued for sending
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Get an OutputContext exposing (at most) the first {@code limit} bytes of
+     * this one. Data written from the slice is consumed from this context as well
      *
      * @param limit How many bytes should be available
      * @return a new OutputContext
      */
-    public OutputContext getSlice(int limit) {
-        List<ByteBuffer> newBufs = new LinkedList<ByteBuffer>();
-        ByteBuffer buf = ByteBuffer.allocate(limit);
-        Iterator<ByteBuffer> iter = buffers.iterator();
-
-        while (iter.hasNext() && buf.position() < buf.limit()) {
-            ByteBuffer cur = iter.next();
-            int diff = buf.limit() - buf.position();
-            if (diff > cur.limit()) {
-                buf.put(cur);
-                iter.remove();
-            } else {
-                ByteBuffer slice = cur.duplicate();
-                slice.limit(diff);
-                buf.put(slice);
+    public synchronized OutputContext getSlice(int limit) {
+        OutputContext slice = new OutputContext(null, this, Math.max(1, tail - head));
+        for (int ii = head; ii < tail && limit > 0; ii++) {
+            ByteBuffer view = entries[ii].duplicate();
+            if (view.remaining() > limit) {
+                view.limit(view.position() + limit);
             }
+            limit -= view.remaining();
+            slice.pendingBytes += view.remaining();
+            slice.append(view, false);
         }
-        return new OutputContext(newBufs);
+        return slice;
     }
 
     /**
-     * Indicate that some data has been flushed to the network
-     * @param num ignored for now. This is because each individual {@link java.nio.ByteBuffer} keeps track
-     *            of how many of its bytes were sent
+     * Send as much as possible of the pending data
+     *
+     * @param channel The channel to write to
+     * @return The number of bytes written
+     * @throws IOException If an error occurs while writing
      */
-    public void updateBytesSent(long num) {
-        Iterator<ByteBuffer> iter = buffers.iterator();
-
-        while (iter.hasNext()) {
-            ByteBuffer cur = iter.next();
-            if (cur.hasRemaining()) {
+    public synchronized long write(GatheringByteChannel channel) throws IOException {
+        long total = 0;
+        while (head < tail) {
+            long nw = channel.write(entries, head, tail - head);
+            if (nw <= 0) {
                 break;
             }
-            iter.remove();
+            total += nw;
+            updateBytesSent(nw);
+        }
+        return total;
+    }
+
+    /**
+     * Indicate that some data has been flushed to the network. The buffers
+     * themselves keep track of how much of them was sent; this drops (and
+     * recycles) those which are complete.
+     *
+     * @param num the number of bytes sent
+     */
+    public synchronized void updateBytesSent(long num) {
+        pendingBytes -= num;
+        while (head < tail && !entries[head].hasRemaining()) {
+            if (entries[head] == fillChunk) {
+                fillChunk = null;
+            }
+            if (pooled[head]) {
+                pool.release(entries[head]);
+            }
+            entries[head++] = null;
+        }
+        if (head == tail) {
+            head = tail = 0;
+        }
+        if (parent != null) {
+            parent.skip(num);
         }
     }
 
     /**
-     * Create a new OuputContext
-     * @param origBufs A list of buffers which should be set as the initial buffers. If empty, additional buffers
-     *                 will be created as needed
+     * Consume data without sending it
+     *
+     * @param num the number of bytes to consume
      */
-    public OutputContext(List<ByteBuffer> origBufs) {
-        buffers = origBufs;
+    synchronized void skip(long num) {
+        for (int ii = head; ii < tail && num > 0; ii++) {
+            int count = (int) Math.min(num, entries[ii].remaining());
+            entries[ii].position(entries[ii].position() + count);
+            num -= count;
+            pendingBytes -= count;
+        }
+        updateBytesSent(0);
     }
 
     /**
-     * Truncate the output. This will empty the list of chunks
-     * @return The list of remaining chunks.
+     * Drop all of the pending data
      */
-    public List<ByteBuffer> releaseRemaining() {
-        List<ByteBuffer> ret = buffers;
-        buffers = null;
-        return ret;
+    public synchronized void discard() {
+        for (int ii = head; ii < tail; ii++) {
+            if (pooled[ii]) {
+                pool.release(entries[ii]);
+            }
+            entries[ii] = null;
+        }
+        head = tail = 0;
+        fillChunk = null;
+        pendingBytes = 0;
     }
 
     @Override
-    public String toString() {
-        return "IOV: " + buffers.size();
+    public synchronized String toString() {
+        return "IOV: " + (tail - head);
     }
 }
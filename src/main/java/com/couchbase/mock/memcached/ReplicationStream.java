@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The stream of mutations from a node to one of its replicas (for the
+ * vBuckets the node is active for), in the spirit of a DCP connection.
+ *
+ * By default mutations are applied to the replica right away, on the thread
+ * which performed them. If the bucket replicates asynchronously, they are
+ * queued instead, and applied in order by a worker thread of the stream,
+ * optionally only once they are a given time old, and no faster than a given
+ * rate. This makes the replicas fall behind the active node, the way they do
+ * on a real cluster under load.
+ *
+ * The thread performing a mutation never waits for the stream, since it may
+ * be an event loop serving many connections. Instead, once the stream holds
+ * as many mutations as the replication queue size of the bucket, the store
+ * refuses further mutations of the vBuckets it replicates with a temporary
+ * failure (see {@link #isFull()}), as ep-engine does when its checkpoints
+ * are full. Mutations the node makes on its own, such as expiring items,
+ * are always queued.
+ */
+public class ReplicationStream {
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private static class Mutation {
+        final KeySpec ks;
+        // Null for a deletion
+        final Item item;
+        final VBucketCoordinates coords;
+        // The epoch of the stream when the mutation was made
+        final int epoch;
+        final long queuedAt = System.nanoTime();
+
+        Mutation(KeySpec ks, Item item, VBucketCoordinates coords, int epoch) {
+            this.ks = ks;
+            this.item = item;
+            this.coords = coords;
+            this.epoch = epoch;
+        }
+    }
+
+    private final Storage source;
+    private final MemcachedServer replica;
+    private final BlockingQueue<Mutation> queue = new LinkedBlockingQueue<Mutation>();
+    private final AtomicIntegerArray pending;
+    private final AtomicLongArray queuedSeqnos;
+    private final AtomicLongArray appliedSeqnos;
+    private final AtomicLongArray lastLagMillis;
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Queued, or being applied by the worker
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final String name;
+    private Thread worker;
+    private volatile boolean stopped = false;
+    // Bumped when the mutations not applied yet are dropped; held while one is applied
+    private final Object epochLock = new Object();
+    private volatile int epoch = 0;
+    // When the worker may apply the next mutation, if the rate is limited
+    private long nextSlot = 0;
+
+    /**
+     * @param name The name of the stream (used to name the thread of the worker)
+     * @param source The storage of the active node
+     * @param replica The replica the mutations are sent to
+     * @param numVBuckets The number of vBuckets in the bucket
+     */
+    ReplicationStream(String name, Storage source, MemcachedServer replica, int numVBuckets) {
+        this.name = name;
+        this.source = source;
+        this.replica = replica;
+        pending = new AtomicIntegerArray(numVBuckets);
+        queuedSeqnos = new AtomicLongArray(numVBuckets);
+        appliedSeqnos = new AtomicLongArray(numVBuckets);
+        lastLagMillis = new AtomicLongArray(numVBuckets);
+    }
+
+    public MemcachedServer getReplica() {
+        return replica;
+    }
+
+    /**
+     * @param item A copy of the mutated item, which the replica takes over
+     * @param coords The coordinates of the mutation
+     */
+    void mutated(Item item, VBucketCoordinates coords) {
+        submit(new Mutation(item.getKeySpec(), item, coords, epoch));
+    }
+
+    /**
+     * @param ks The key of the deleted item
+     * @param coords The coordinates of the deletion
+     */
+    void deleted(KeySpec ks, VBucketCoordinates coords) {
+        submit(new Mutation(ks, null, coords, epoch));
+    }
+
+    private void submit(Mutation mutation) {
+        if (stopped) {
+            drop(mutation);
+            return;
+        }
+        int vb = mutation.ks.vbId;
+        queuedSeqnos.set(vb, mutation.coords.getSeqno());
+        // Once mutations are queued, the ones after them must be queued too to keep them in order
+        if (!source.isAsyncReplication() && inFlight.get() == 0) {
+            apply(mutation);
+            return;
+        }
+        startWorker();
+        if (pending.getAndIncrement(vb) == 0) {
+            // The replica has caught up with everything before this mutation
+            appliedSeqnos.set(vb, mutation.coords.getSeqno() - 1);
+        }
+        inFlight.incrementAndGet();
+        // The queue isn't bounded; the store stops taking mutations while the stream is full
+        queue.offer(mutation);
+    }
+
+    /**
+     * Check whether the stream has as many mutations as it may hold. The
+     * caller is about to refuse a mutation because of it, which is counted.
+     *
+     * @return true if mutations should be refused until the replica catches up
+     */
+    boolean isFull() {
+        if (inFlight.get() < source.getReplicationQueueSize()) {
+            return false;
+        }
+        refused.incrementAndGet();
+        return true;
+    }
+
+    private void apply(Mutation mutation) {
+        if (!source.isReplicatedTo(mutation.ks.vbId, replica)) {
+            // The vBucket changed hands since; the replica may even be active for it now
+            drop(mutation);
+            return;
+        }
+        Storage target = replica.getStorage();
+        if (mutation.item == null) {
+            target.applyReplicatedDeletion(mutation.ks, mutation.coords);
+        } else {
+            target.applyReplicatedMutation(mutation.item, mutation.coords);
+        }
+        int vb = mutation.ks.vbId;
+        appliedSeqnos.set(vb, mutation.coords.getSeqno());
+        lastLagMillis.set(vb, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mutation.queuedAt));
+        replicated.incrementAndGet();
+    }
+
+    private static void drop(Mutation mutation) {
+        if (mutation.item != null) {
+            mutation.item.releaseValue();
+        }
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null || stopped) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!stopped) {
+                        Mutation mutation = queue.take();
+                        try {
+                            waitForTurn(mutation);
+                            synchronized (epochLock) {
+                                // The mutation may have been dropped while we waited for its turn
+                                if (mutation.epoch == epoch) {
+                                    apply(mutation);
+                                } else {
+                                    drop(mutation);
+                                }
+                            }
+                        } catch (InterruptedException ex) {
+                            drop(mutation);
+                            throw ex;
+                        } catch (RuntimeException ex) {
+                            // Lose this mutation rather than the stream
+                            failed.incrementAndGet();
+                            Logger.getLogger(ReplicationStream.class.getName()).log(Level.WARNING,
+                                    "Failed to replicate a mutation of " + mutation.ks.getKey(), ex);
+                        } finally {
+                            pending.decrementAndGet(mutation.ks.vbId);
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // Stopped
+                }
+            }
+        }, "Replication[" + name + "]");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Wait until the mutation is as old as the configured lag, and until the
+     * rate limit allows another mutation
+     */
+    private void waitForTurn(Mutation mutation) throws InterruptedException {
+        long lag = TimeUnit.MILLISECONDS.toNanos(source.getReplicationLag());
+        long remaining = mutation.queuedAt + lag - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+        int rate = source.getReplicationRate();
+        if (rate > 0) {
+            long now = System.nanoTime();
+            if (nextSlot > now) {
+                TimeUnit.NANOSECONDS.sleep(nextSlot - now);
+                now = nextSlot;
+            }
+            nextSlot = now + TimeUnit.SECONDS.toNanos(1) / rate;
+        }
+    }
+
+    /**
+     * Forget the mutations which weren't applied yet, including the one the
+     * worker may be waiting to apply. Once this returns, none of them is.
+     */
+    void clear() {
+        synchronized (epochLock) {
+            epoch++;
+        }
+        List<Mutation> dropped = new ArrayList<Mutation>();
+        queue.drainTo(dropped);
+        for (Mutation mutation : dropped) {
+            pending.decrementAndGet(mutation.ks.vbId);
+            inFlight.decrementAndGet();
+            drop(mutation);
+        }
+    }
+
+    /**
+     * Stop the worker, dropping the mutations which weren't applied yet
+     */
+    void stop() {
+        Thread thread;
+        synchronized (this) {
+            stopped = true;
+            thread = worker;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        clear();
+    }
+
+    /**
+     * @param vb A vBucket
+     * @return the number of mutations of the vBucket which weren't applied to the replica yet
+     */
+    public int getPending(int vb) {
+        return pending.get(vb);
+    }
+
+    /**
+     * @param vb A vBucket
+     * @return how many sequence numbers the replica is behind for the vBucket
+     */
+    public long getSeqnoLag(int vb) {
+        return Math.max(0, queuedSeqnos.get(vb) - appliedSeqnos.get(vb));
+    }
+
+    /**
+     * @param vb A vBucket
+     * @return how long the last mutation of the vBucket applied to the replica took to get there, in milliseconds
+     */
+    public long getLastLagMillis(int vb) {
+        return lastLagMillis.get(vb);
+    }
+
+    /**
+     * @return the number of mutations waiting to be applied
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of mutations refused because the stream was full
+     */
+    public long getNumRefused() {
+        return refused.get();
+    }
+
+    /**
+     * @return the number of mutations which failed to be applied to the replica
+     */
+    public long getNumFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of mutations applied to the replica so far
+     */
+    public long getNumReplicated() {
+        return replicated.get();
+    }
+}
@@ -56,14 +56,14 @@ public class SaslCommandExecutor implements CommandExecutor {
                         response = plainAuth(cmd, server, client);
                     } else {
                         createSaslServer(cmd, server);
-                        response = saslAuth(cmd, client);
+                        response = saslAuth(cmd, server, client);
                     }
                 } else {
                     response = new BinarySaslResponse(cmd);
                 }
                 break;
             case SASL_STEP:
-                response = saslAuth(cmd, client);
+                response = saslAuth(cmd, server, client);
                 break;
             default:
                 response = new BinarySaslResponse(cmd);
@@ -93,13 +93,19 @@ public class SaslCommandExecutor implements CommandExecutor {
 
         BinarySaslResponse response;
 
-        Bucket bucket = server.getBucket();
+        // On a shared port the user picks the bucket
+        MemcachedServer target = server;
+        if (server.getSharedPort() != null && server.getSharedPort().getServer(user) != null) {
+            target = server.getSharedPort().getServer(user);
+        }
+        Bucket bucket = target.getBucket();
         String bPass = bucket.getPassword();
 
         if (!bucket.getName().equals(user) || !bPass.equals(pass)) {
             response = new BinarySaslResponse(cmd);
         } else {
-            client.setAuthenticated();
+            client.setAuthenticated(user);
+            target.adopt(client);
             response = new BinarySaslResponse(cmd, "Authenticated");
         }
         return response;
@@ -116,7 +122,7 @@ public class SaslCommandExecutor implements CommandExecutor {
         }
     }
 
-    private BinaryResponse saslAuth(BinaryCommand cmd, MemcachedConnection client) throws ProtocolException {
+    private BinaryResponse saslAuth(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) throws ProtocolException {
         if (saslServer == null) {
             return new BinarySaslResponse(cmd);
         }
@@ -125,7 +131,7 @@ public class SaslCommandExecutor implements CommandExecutor {
             BinaryResponse response;
             final byte[] challenge = saslServer.evaluateResponse(raw);
             if (saslServer.isComplete()) {
-                client.setAuthenticated();
+                client.setAuthenticated(server.getBucket().getName());
                 response = new BinarySaslResponse(cmd, new String(challenge));
             } else {
                 response = new BinarySaslResponse(cmd, new String(challenge), ErrorCode.AUTH_CONTINUE);
@@ -28,10 +28,17 @@ public class SelectBucketCommandExecutor implements CommandExecutor {
     @Override
     public BinaryResponse execute(BinaryCommand cmdBase, MemcachedServer server, MemcachedConnection client) {
         BinarySelectBucketCommand cmd = (BinarySelectBucketCommand) cmdBase;
-        if (!cmd.getKey().equals(server.getBucket().getName())) {
+        MemcachedServer target = null;
+        if (server.getSharedPort() != null) {
+            target = server.getSharedPort().getServer(cmd.getKey());
+        } else if (cmd.getKey().equals(server.getBucket().getName())) {
+            target = server;
+        }
+
+        if (target == null || !client.mayAccess(target.getBucket())) {
             return new BinaryResponse(cmd, ErrorCode.EACCESS);
-        } else {
-            return new BinaryResponse(cmd, ErrorCode.SUCCESS);
         }
+        target.adopt(client);
+        return new BinaryResponse(cmd, ErrorCode.SUCCESS);
     }
 }
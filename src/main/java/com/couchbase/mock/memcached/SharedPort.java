@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The memcached port of a node serving several buckets, the way a real
+ * server does.
+ *
+ * Each bucket still has a {@link MemcachedServer} (with its own storage) on
+ * the node, but none of them listens on a port of its own. New clients are
+ * handed to the server of the <i>default</i> bucket if there is one; a
+ * client moves to the server of another bucket when it selects the bucket
+ * with {@code SELECT_BUCKET} or authenticates with its name.
+ */
+public class SharedPort {
+    private static final String DEFAULT_BUCKET = "default";
+
+    private final ServerSocketChannel channel;
+    private final String hostname;
+    private final int port;
+    private final EventLoopGroup eventLoopGroup;
+    private final SocketOptions socketOptions;
+    // The servers of the buckets on the node, by bucket name
+    private final Map<String, MemcachedServer> servers = new LinkedHashMap<String, MemcachedServer>();
+
+    /**
+     * Create the port and start accepting clients on it.
+     *
+     * @param hostname The hostname to listen on (null == any)
+     * @param port The port to listen on (0 to choose an ephemeral port)
+     * @param eventLoopGroup The event loops serving the port and its clients
+     * @param socketOptions The settings for the listening socket and the
+     *                      client connections
+     * @throws IOException If we fail to create the server socket
+     */
+    public SharedPort(String hostname, int port, EventLoopGroup eventLoopGroup, SocketOptions socketOptions) throws IOException {
+        this.eventLoopGroup = eventLoopGroup;
+        this.socketOptions = socketOptions;
+        channel = MemcachedServer.bind(hostname, port, socketOptions.getBacklog());
+        this.hostname = MemcachedServer.getAdvertisedHostname(channel, hostname);
+        this.port = channel.socket().getLocalPort();
+        eventLoopGroup.next().register(channel, SelectionKey.OP_ACCEPT, this);
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    synchronized void addServer(MemcachedServer server) {
+        String name = server.getBucket().getName();
+        if (servers.containsKey(name)) {
+            throw new IllegalStateException("Bucket " + name + " is already served on port " + port);
+        }
+        servers.put(name, server);
+    }
+
+    synchronized void removeServer(MemcachedServer server) {
+        String name = server.getBucket().getName();
+        if (servers.get(name) == server) {
+            servers.remove(name);
+        }
+    }
+
+    /**
+     * @param bucket The name of a bucket
+     * @return the server of the bucket on this node, or null if the bucket is not served here
+     */
+    public synchronized MemcachedServer getServer(String bucket) {
+        return servers.get(bucket);
+    }
+
+    void handleNewClient() throws IOException {
+        SocketChannel cc = channel.accept();
+        if (cc == null) {
+            return;
+        }
+
+        MemcachedServer target = null;
+        boolean selected;
+        synchronized (this) {
+            MemcachedServer defaultServer = servers.get(DEFAULT_BUCKET);
+            selected = defaultServer != null;
+            if (selected) {
+                target = defaultServer.isActive() ? defaultServer : null;
+            } else {
+                for (MemcachedServer server : servers.values()) {
+                    if (server.isActive()) {
+                        target = server;
+                        break;
+                    }
+                }
+            }
+        }
+        if (target == null) {
+            // No bucket on the node (yet), or the node is down for it
+            cc.close();
+            return;
+        }
+
+        cc.configureBlocking(false);
+        socketOptions.apply(cc.socket());
+        target.registerClient(cc, cc.socket().getRemoteSocketAddress(), selected);
+    }
+
+    /**
+     * Stop accepting clients. The clients which are connected stay connected
+     * until the servers of their buckets are stopped.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.getLogger(SharedPort.class.getName()).log(Level.FINE, null, e);
+        }
+    }
+}
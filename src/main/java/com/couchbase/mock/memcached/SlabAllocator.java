@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps item values outside of the Java heap, so that a large data set does
+ * not make the garbage collector pause for long.
+ *
+ * Memory is reserved in direct buffers ("slabs") which are carved into
+ * chunks of a fixed size; each size class is {@value #GROWTH_FACTOR} times
+ * as big as the previous one, in the manner of memcached. A value is stored
+ * in the smallest chunk it fits in; values larger than a slab get a direct
+ * buffer of their own. Slabs are never given back, but freed chunks are
+ * reused for values of the same class.
+ *
+ * A value is reference counted, since the copies of an item kept for
+ * persistence and on replicas share the value of the original. Readers
+ * {@link Value#retain()} the value while they copy it out, and give up if
+ * it has already been freed. As a further safeguard, a freed chunk is only
+ * reused once it has been free for a little while.
+ */
+public class SlabAllocator {
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final long DEFAULT_REUSE_DELAY_MILLIS = 1000;
+    static final int MIN_CHUNK_SIZE = 64;
+    static final double GROWTH_FACTOR = 1.25;
+
+    private final int slabSize;
+    private final long reuseDelayNanos;
+    private final SlabClass[] classes;
+    private final AtomicLong largeValues = new AtomicLong();
+    private final AtomicLong largeBytes = new AtomicLong();
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_REUSE_DELAY_MILLIS);
+    }
+
+    /**
+     * @param slabSize The size of each slab (and of the biggest chunk)
+     * @param reuseDelayMillis How long a freed chunk is left alone before it is reused
+     */
+    public SlabAllocator(int slabSize, long reuseDelayMillis) {
+        if (slabSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("The slab size must be >= " + MIN_CHUNK_SIZE);
+        }
+        if (reuseDelayMillis < 0) {
+            throw new IllegalArgumentException("The reuse delay must be >= 0");
+        }
+        this.slabSize = slabSize;
+        this.reuseDelayNanos = TimeUnit.MILLISECONDS.toNanos(reuseDelayMillis);
+
+        int num = 1;
+        for (double size = MIN_CHUNK_SIZE; alignedChunkSize(size) < slabSize; size *= GROWTH_FACTOR) {
+            num++;
+        }
+        classes = new SlabClass[num];
+        double size = MIN_CHUNK_SIZE;
+        for (int ii = 0; ii < num - 1; ii++, size *= GROWTH_FACTOR) {
+            classes[ii] = new SlabClass(alignedChunkSize(size));
+        }
+        classes[num - 1] = new SlabClass(slabSize);
+    }
+
+    private static int alignedChunkSize(double size) {
+        return ((int) size + 7) & ~7;
+    }
+
+    private SlabClass classFor(int size) {
+        int lo = 0;
+        int hi = classes.length - 1;
+        if (size > classes[hi].chunkSize) {
+            return null;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (classes[mid].chunkSize < size) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return classes[lo];
+    }
+
+    /**
+     * Copy a value off the heap
+     *
+     * @param data The value
+     * @return the handle of the stored value, holding a single reference
+     */
+    public Value allocate(byte[] data) {
+        SlabClass sc = classFor(data.length);
+        if (sc != null) {
+            return sc.allocate(data);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        largeValues.incrementAndGet();
+        largeBytes.addAndGet(data.length);
+        return new Value(null, buffer, 0, data.length);
+    }
+
+    /**
+     * @return the number of bytes reserved in slabs
+     */
+    public long getReservedBytes() {
+        long total = 0;
+        for (SlabClass sc : classes) {
+            total += sc.getSlabs() * (long) slabSize;
+        }
+        return total + largeBytes.get();
+    }
+
+    /**
+     * @return the number of bytes taken by the chunks (and large buffers) holding live values
+     */
+    public long getUsedBytes() {
+        long total = 0;
+        for (SlabClass sc : classes) {
+            total += sc.getUsedChunks() * (long) sc.chunkSize;
+        }
+        return total + largeBytes.get();
+    }
+
+    /**
+     * @return the number of live values
+     */
+    public long getNumValues() {
+        long total = 0;
+        for (SlabClass sc : classes) {
+            total += sc.getUsedChunks();
+        }
+        return total + largeValues.get();
+    }
+
+    /**
+     * Describe the allocator, in the manner of memcached's "stats slabs".
+     * Only the classes which have had a slab assigned are listed.
+     *
+     * @return the statistics
+     */
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        long requested = 0;
+        for (int ii = 0; ii < classes.length; ii++) {
+            SlabClass sc = classes[ii];
+            synchronized (sc) {
+                requested += sc.requestedBytes;
+                if (sc.slabs == 0) {
+                    continue;
+                }
+                String prefix = "slab_" + ii + ":";
+                stats.put(prefix + "chunk_size", Integer.toString(sc.chunkSize));
+                stats.put(prefix + "total_pages", Integer.toString(sc.slabs));
+                stats.put(prefix + "total_chunks", Long.toString(sc.slabs * (long) (slabSize / sc.chunkSize)));
+                stats.put(prefix + "used_chunks", Long.toString(sc.usedChunks));
+                stats.put(prefix + "free_chunks", Integer.toString(sc.freed.size()));
+            }
+        }
+        stats.put("slab_bytes_reserved", Long.toString(getReservedBytes()));
+        stats.put("slab_bytes_used", Long.toString(getUsedBytes()));
+        stats.put("slab_bytes_requested", Long.toString(requested + largeBytes.get()));
+        stats.put("slab_values", Long.toString(getNumValues()));
+        stats.put("slab_large_values", Long.toString(largeValues.get()));
+        return stats;
+    }
+
+    /**
+     * A value stored by the allocator
+     */
+    public final class Value {
+        private final SlabClass owner;
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private long freedAt;
+
+        private Value(SlabClass owner, ByteBuffer buffer, int offset, int length) {
+            this.owner = owner;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Copy the value. The caller must hold a reference to it (see
+         * {@link #retain()}), or its chunk may be reused while it is read.
+         *
+         * @return a copy of the value, on the heap
+         */
+        public byte[] get() {
+            byte[] ret = new byte[length];
+            ByteBuffer src = buffer.duplicate();
+            src.position(offset);
+            src.get(ret);
+            return ret;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the allocator the value is stored in
+         */
+        public SlabAllocator getAllocator() {
+            return SlabAllocator.this;
+        }
+
+        /**
+         * Take another reference to the value
+         *
+         * @return false if the value has already been freed
+         */
+        public boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        /**
+         * Drop a reference to the value, freeing it if it was the last one
+         */
+        public void release() {
+            if (refs.decrementAndGet() != 0) {
+                return;
+            }
+            if (owner != null) {
+                owner.free(this);
+            } else {
+                largeValues.decrementAndGet();
+                largeBytes.addAndGet(-length);
+            }
+        }
+    }
+
+    private final class SlabClass {
+        final int chunkSize;
+        final ArrayDeque<Value> freed = new ArrayDeque<Value>();
+        ByteBuffer current;
+        int nextOffset;
+        int slabs;
+        long usedChunks;
+        long requestedBytes;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized Value allocate(byte[] data) {
+            ByteBuffer buffer;
+            int offset;
+            Value head = freed.peekFirst();
+            if (head != null && System.nanoTime() - head.freedAt >= reuseDelayNanos) {
+                freed.pollFirst();
+                buffer = head.buffer;
+                offset = head.offset;
+            } else {
+                if (current == null || nextOffset + chunkSize > current.capacity()) {
+                    current = ByteBuffer.allocateDirect(slabSize);
+                    nextOffset = 0;
+                    slabs++;
+                }
+                buffer = current;
+                offset = nextOffset;
+                nextOffset += chunkSize;
+            }
+
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(offset);
+            dst.put(data);
+            usedChunks++;
+            requestedBytes += data.length;
+            return new Value(this, buffer, offset, data.length);
+        }
+
+        synchronized void free(Value value) {
+            value.freedAt = System.nanoTime();
+            freed.addLast(value);
+            usedChunks--;
+            requestedBytes -= value.length;
+        }
+
+        synchronized int getSlabs() {
+            return slabs;
+        }
+
+        synchronized long getUsedChunks() {
+            return usedChunks;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket settings for the memcached ports of the cluster.
+ *
+ * The listen backlog is used when a server binds its port; the other
+ * settings are applied to every client connection as it is accepted (so
+ * changing them affects only new connections). A client may still turn
+ * on {@code TCP_NODELAY} for its own connection through HELLO.
+ */
+public class SocketOptions {
+    private volatile boolean tcpNoDelay = false;
+    private volatile int sendBufferSize = 1024 * 1024;
+    private volatile int receiveBufferSize = 1024 * 1024;
+    private volatile int backlog = 0;
+
+    /**
+     * @return whether Nagle's algorithm is disabled for new connections
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return the size of the send buffer of new connections (0 to keep the system default)
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        if (sendBufferSize < 0) {
+            throw new IllegalArgumentException("The send buffer size must be >= 0");
+        }
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @return the size of the receive buffer of new connections (0 to keep the system default)
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        if (receiveBufferSize < 0) {
+            throw new IllegalArgumentException("The receive buffer size must be >= 0");
+        }
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @return the maximum number of pending connections on a listening port (0 for the system default)
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("The backlog must be >= 0");
+        }
+        this.backlog = backlog;
+    }
+
+    /**
+     * Apply the settings to a newly accepted client connection
+     *
+     * @param socket The socket of the client
+     * @throws SocketException If an option could not be set
+     */
+    void apply(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+}
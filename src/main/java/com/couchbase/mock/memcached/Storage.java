@@ -16,13 +16,16 @@
 package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.Bucket;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
 
 import java.security.AccessControlException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Class representing a node's storage.
@@ -38,6 +41,9 @@ import java.util.Map;
  * is probably not the most efficient way to go about things, it is crucial in
  * order to be able to test these types of semantics.
  *
+ * Mutations reach each replica through a {@link ReplicationStream}, which
+ * may apply them asynchronously (and with some lag) if so configured.
+ *
  * @author Mark Nunberg
  */
 public class Storage {
@@ -46,15 +52,24 @@ public class Storage {
     private final VBucketStore cacheStore;
     private final PersistentStorage persistStore;
     private final MemcachedServer server;
+    private final Object[] vbLocks;
+    private final ItemPager pager;
+    private final ExpiryPager expiryPager;
     private boolean persistEnabled = true;
     private boolean replicationEnabled = true;
+    private final ConcurrentMap<MemcachedServer, ReplicationStream> replicationStreams =
+            new ConcurrentHashMap<MemcachedServer, ReplicationStream>();
+    private volatile boolean asyncReplication = false;
+    private volatile long replicationLag = 0;
+    private volatile int replicationRate = 0;
+    private volatile int replicationQueueSize = ReplicationStream.DEFAULT_QUEUE_SIZE;
 
     private final static VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
     private class PersistentStorage {
         class Slot {
             long uuid = 0;
             long seqno = 0;
-            Map<KeySpec, Item> mm = new HashMap<KeySpec, Item>();
+            Map<KeySpec, Item> mm = new ConcurrentHashMap<KeySpec, Item>();
         }
         final Slot[] slots;
 
@@ -62,7 +77,7 @@ public class Storage {
             slots = new Slot[nvb];
         }
 
-        private Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
+        private synchronized Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
             Slot slot = slots[ks.vbId];
             if (slot == null) {
                 slot = slots[ks.vbId] = new Slot();
@@ -75,7 +90,10 @@ public class Storage {
         }
 
         public void put(Item item, VBucketCoordinates coords) {
-            updateCommon(item.getKeySpec(), coords).mm.put(item.getKeySpec(), item);
+            Item old = updateCommon(item.getKeySpec(), coords).mm.put(item.getKeySpec(), item);
+            if (old != null && old != item) {
+                old.releaseValue();
+            }
         }
 
         public Item get(KeySpec ks) {
@@ -87,26 +105,33 @@ public class Storage {
             }
         }
 
-        public Collection<Item> values() {
-            ArrayList<Item> ret = new ArrayList<Item>();
-            for (Slot s : slots) {
-                if (s != null) {
-                    ret.addAll(s.mm.values());
-                }
+        public Collection<Item> values(int vbid) {
+            Slot ss = slots[vbid];
+            if (ss != null) {
+                return ss.mm.values();
+            } else {
+                return Collections.emptyList();
             }
-            return ret;
         }
 
         public void clear() {
             for (Slot s : slots) {
                 if (s != null) {
-                    s.mm.clear();
+                    for (KeySpec ks : s.mm.keySet()) {
+                        Item old = s.mm.remove(ks);
+                        if (old != null) {
+                            old.releaseValue();
+                        }
+                    }
                 }
             }
         }
 
         public void remove(KeySpec ks, VBucketCoordinates coords) {
-            updateCommon(ks, coords).mm.remove(ks);
+            Item old = updateCommon(ks, coords).mm.remove(ks);
+            if (old != null) {
+                old.releaseValue();
+            }
         }
 
         VBucketCoordinates getCoords(int vbid) {
@@ -172,7 +197,222 @@ public class Storage {
         persistStore = new PersistentStorage(vbi.length);
         cacheStore.onItemDelete = deleteCallback;
         cacheStore.onItemMutated = mutateCallback;
+        cacheStore.itemFetcher = new VBucketStore.ItemFetcher() {
+            @Override
+            public Item fetch(KeySpec ks) {
+                return persistStore.get(ks);
+            }
+        };
+        cacheStore.replicationCheck = new VBucketStore.ReplicationCheck() {
+            @Override
+            public boolean canReplicate(short vb) {
+                return replicasHaveRoom(vb);
+            }
+        };
+        pager = new ItemPager(this, cacheStore);
+        expiryPager = new ExpiryPager(this, cacheStore);
         this.server = server;
+        vbLocks = new Object[vbi.length];
+        for (int ii = 0; ii < vbLocks.length; ii++) {
+            vbLocks[ii] = new Object();
+        }
+    }
+
+    /**
+     * Keep the values of the cached items off the heap. The persisted and
+     * replica copies of an item share the value of the cached item.
+     *
+     * @param allocator The allocator to store the values in (null to keep them on the heap)
+     */
+    public void setValueAllocator(SlabAllocator allocator) {
+        cacheStore.setValueAllocator(allocator);
+    }
+
+    /**
+     * Limit the memory used by the cached items of this node
+     *
+     * @param quota The most memory the items may use, in bytes (0 for no limit)
+     * @param policy What to evict once the items take too much memory
+     */
+    public void setMemoryQuota(long quota, Bucket.EvictionPolicy policy) {
+        boolean memcached = server != null && server.getBucket() != null
+                && server.getBucket().getType() == Bucket.BucketType.MEMCACHED;
+        pager.setPolicy(policy, memcached);
+        cacheStore.setMemoryQuota(quota);
+    }
+
+    /**
+     * Set how mutations are sent to the replicas of the vBuckets this node is
+     * active for. This may be changed at any time.
+     *
+     * @param async Whether the mutations are queued and applied by a worker of each replica,
+     *              rather than right away by the thread performing them
+     * @param lagMillis How old (in milliseconds) queued mutations must be before they are applied
+     * @param rate The most mutations applied per second to each replica (0 for no limit)
+     */
+    public void setReplication(boolean async, long lagMillis, int rate) {
+        if (lagMillis < 0 || rate < 0) {
+            throw new IllegalArgumentException("The replication lag and rate must be >= 0");
+        }
+        replicationLag = lagMillis;
+        replicationRate = rate;
+        asyncReplication = async;
+    }
+
+    public boolean isAsyncReplication() {
+        return asyncReplication;
+    }
+
+    public long getReplicationLag() {
+        return replicationLag;
+    }
+
+    public int getReplicationRate() {
+        return replicationRate;
+    }
+
+    /**
+     * Set how many mutations may wait for each replica before the vBuckets
+     * it replicates refuse further mutations with a temporary failure
+     *
+     * @param size The number of mutations
+     */
+    public void setReplicationQueueSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The replication queue size must be > 0");
+        }
+        replicationQueueSize = size;
+    }
+
+    public int getReplicationQueueSize() {
+        return replicationQueueSize;
+    }
+
+    private ReplicationStream getReplicationStream(MemcachedServer replica) {
+        ReplicationStream stream = replicationStreams.get(replica);
+        if (stream == null) {
+            String name = (server == null ? "?" : server.getHostname() + ":" + server.getPort())
+                    + " -> " + replica.getHostname() + ":" + replica.getPort();
+            stream = new ReplicationStream(name, this, replica, vbInfo.length);
+            ReplicationStream existing = replicationStreams.putIfAbsent(replica, stream);
+            if (existing != null) {
+                stream = existing;
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * @param replica A node
+     * @return the stream of mutations from this node to the given one, or null if none was sent yet
+     */
+    public ReplicationStream findReplicationStream(MemcachedServer replica) {
+        return replicationStreams.get(replica);
+    }
+
+    /**
+     * @return the streams of mutations from this node to its replicas
+     */
+    public Collection<ReplicationStream> getReplicationStreams() {
+        return Collections.unmodifiableCollection(replicationStreams.values());
+    }
+
+    /**
+     * Drop the mutations the replication streams haven't applied yet. This is
+     * done when the vBuckets change hands, since the replicas they were meant
+     * for may no longer be replicas (or may have been promoted to active).
+     */
+    public void clearReplication() {
+        for (ReplicationStream stream : replicationStreams.values()) {
+            stream.clear();
+        }
+    }
+
+    /**
+     * Check that this node is (still) active for a vBucket, and the given node one of its replicas
+     *
+     * @param vb The vBucket
+     * @param replica The node
+     * @return true if the mutations of the vBucket on this node should go to the given node
+     */
+    boolean isReplicatedTo(short vb, MemcachedServer replica) {
+        VBucketInfo vbi = vbInfo[vb];
+        return vbi.getOwner() == server && vbi.getReplicas().contains(replica);
+    }
+
+    /**
+     * Stop the workers of the replication streams, dropping the mutations they haven't applied yet
+     */
+    public void stopReplication() {
+        for (ReplicationStream stream : replicationStreams.values()) {
+            stream.stop();
+        }
+    }
+
+    public ItemPager getPager() {
+        return pager;
+    }
+
+    public ExpiryPager getExpiryPager() {
+        return expiryPager;
+    }
+
+    VBucketStore getCacheStore() {
+        return cacheStore;
+    }
+
+    /**
+     * @param itm A cached item
+     * @return whether the persisted copy of the item is up to date
+     */
+    boolean isPersisted(Item itm) {
+        Item persisted = persistStore.get(itm.getKeySpec());
+        return persisted != null && persisted.getCasReal() == itm.getCasReal();
+    }
+
+    /**
+     * @param vbid A vBucket
+     * @return whether this node is active for the vBucket (always true for memcached buckets)
+     */
+    boolean isActive(int vbid) {
+        if (server != null && server.getBucket() != null
+                && server.getBucket().getType() == Bucket.BucketType.MEMCACHED) {
+            return true;
+        }
+        return vbInfo[vbid].getOwner() == server;
+    }
+
+    /**
+     * Evict an item from memory, as if the pager had picked it
+     *
+     * @param ks The key of the item
+     * @return {@link ErrorCode#KEY_ENOENT} if there is no such item, {@link ErrorCode#KEY_EEXISTS}
+     *         if it can't be evicted yet, or {@link ErrorCode#SUCCESS}
+     */
+    public ErrorCode evict(KeySpec ks) {
+        VBucketPartition partition = getPartition(ks.vbId);
+        Item item = partition.get(ks);
+        if (item == null) {
+            return partition.isEvicted(ks) ? ErrorCode.SUCCESS : ErrorCode.KEY_ENOENT;
+        }
+        if (!item.isResident()) {
+            return ErrorCode.SUCCESS;
+        }
+        return pager.evict(partition, item) ? ErrorCode.SUCCESS : ErrorCode.KEY_EEXISTS;
+    }
+
+    /**
+     * Get the monitor used to serialize commands operating on a single vBucket
+     * of this node. Commands for different vBuckets may run in parallel.
+     *
+     * @param vBucketId The vBucket
+     * @return The monitor for the vBucket, or the storage itself if the id is out of range
+     */
+    public Object getVBucketLock(short vBucketId) {
+        if (vBucketId < 0 || vBucketId >= vbLocks.length) {
+            return this;
+        }
+        return vbLocks[vBucketId];
     }
 
     public void persistDeletedItem(KeySpec ks, VBucketCoordinates coords) {
@@ -189,10 +429,29 @@ public class Storage {
             return;
         }
         for (MemcachedServer replica : vbi.getReplicas()) {
-            Item newItem = new Item(itm);
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            rStore.forceStorageMutation(newItem, coords);
+            // The item may be modified in place later on, so each replica gets a copy taken now
+            getReplicationStream(replica).mutated(new Item(itm), coords);
+        }
+    }
+
+    /**
+     * Check that the replicas of a vBucket can take another mutation
+     *
+     * @param vb The vBucket
+     * @return false if one of the streams to its replicas is full
+     */
+    private boolean replicasHaveRoom(short vb) {
+        VBucketInfo vbi = vbInfo[vb];
+        if (!replicationEnabled || vbi.getOwner() != server) {
+            return true;
+        }
+        for (MemcachedServer replica : vbi.getReplicas()) {
+            ReplicationStream stream = replicationStreams.get(replica);
+            if (stream != null && stream.isFull()) {
+                return false;
+            }
         }
+        return true;
     }
 
     private void replicateDeletedItem(KeySpec ks, VBucketCoordinates coords) {
@@ -200,19 +459,37 @@ public class Storage {
         if (vbi.getOwner() != server) {
             return;
         }
-        Item itm = new Item(ks);
         for (MemcachedServer replica : vbi.getReplicas()) {
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            PersistentStorage pStore = replica.getStorage().persistStore;
-            rStore.forceDeleteMutation(itm, coords);
-
-            // Nasty hack needed to retain compat with existing tests which assume that
-            // deletion operations on the mock will silently 'persist' this mutation
-            // on disk.
-            pStore.put(itm, coords);
+            getReplicationStream(replica).deleted(ks, coords);
         }
     }
 
+    /**
+     * Store a mutation received from the active node of the vBucket
+     *
+     * @param itm The item (which this node takes over)
+     * @param coords The coordinates of the mutation
+     */
+    void applyReplicatedMutation(Item itm, VBucketCoordinates coords) {
+        cacheStore.forceStorageMutation(itm, coords);
+    }
+
+    /**
+     * Apply a deletion received from the active node of the vBucket
+     *
+     * @param ks The key of the deleted item
+     * @param coords The coordinates of the deletion
+     */
+    void applyReplicatedDeletion(KeySpec ks, VBucketCoordinates coords) {
+        Item itm = new Item(ks);
+        cacheStore.forceDeleteMutation(itm, coords);
+
+        // Nasty hack needed to retain compat with existing tests which assume that
+        // deletion operations on the mock will silently 'persist' this mutation
+        // on disk.
+        persistStore.put(itm, coords);
+    }
+
     public Item getCached(KeySpec ks) {
         return cacheStore.get(ks);
     }
@@ -220,13 +497,13 @@ public class Storage {
         return persistStore.get(ks);
     }
     public void putCached(Item itm) {
-        cacheStore.getMap().put(itm.getKeySpec(), itm);
+        cacheStore.getPartition(itm.getKeySpec().vbId).put(itm);
     }
     public void putPersisted(Item itm) {
         persistStore.put(itm, EMPTY_COORDS);
     }
     public void removeCached(KeySpec ks) {
-        cacheStore.getMap().remove(ks);
+        cacheStore.getPartition(ks.vbId).remove(ks);
     }
     public void removePersisted(KeySpec ks) {
         persistStore.remove(ks, EMPTY_COORDS);
@@ -271,29 +548,54 @@ public class Storage {
     }
 
     public Iterable<Item> getMasterStore(final StorageType type) {
-        // Create the list now:
+        // Create the list now, looking only at the vBuckets we own
         List<Item> validItems = new ArrayList<Item>();
-        Collection<Item> inputs;
-
-        if (type == StorageType.CACHE) {
-            inputs = cacheStore.getMap().values();
-        } else {
-            inputs = persistStore.values();
-        }
-
-        for (Item itm : inputs) {
-            int vbId = itm.getKeySpec().vbId;
-            MemcachedServer owner = vbInfo[vbId].getOwner();
-            if (owner == server) {
-                validItems.add(itm);
+        // Leave out the items which have expired but weren't removed yet
+        long now = VBucketStore.now();
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            if (vbInfo[vbId].getOwner() != server) {
+                continue;
+            }
+            if (type == StorageType.CACHE) {
+                // Evicted items are read from disk
+                VBucketPartition partition = cacheStore.getPartition(vbId);
+                for (Item itm : partition) {
+                    if (!itm.isResident()) {
+                        itm = persistStore.get(itm.getKeySpec());
+                    }
+                    if (itm != null && !VBucketStore.isExpired(itm, now)) {
+                        validItems.add(itm);
+                    }
+                }
+                for (KeySpec ks : partition.getEvictedKeys()) {
+                    Item itm = persistStore.get(ks);
+                    if (itm != null && !VBucketStore.isExpired(itm, now)) {
+                        validItems.add(itm);
+                    }
+                }
+            } else {
+                validItems.addAll(persistStore.values(vbId));
             }
         }
-
         return validItems;
     }
 
+    /**
+     * @param vBucketId The vBucket
+     * @return the cached items of the vBucket on this node
+     */
+    public VBucketPartition getPartition(short vBucketId) {
+        if (vBucketId < 0 || vBucketId >= vbInfo.length) {
+            throw new AccessControlException("Invalid vBucket");
+        }
+        return cacheStore.getPartition(vBucketId);
+    }
+
     public void flush() {
-        cacheStore.getMap().clear();
+        for (ReplicationStream stream : replicationStreams.values()) {
+            stream.clear();
+        }
+        cacheStore.clear();
         persistStore.clear();
     }
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel.
+ *
+ * Timers are put in one of a fixed number of slots according to their
+ * deadline, and each slot covers one tick (modulo the size of the wheel).
+ * Timers further away than one revolution simply stay in their slot until
+ * a visit finds them due. The owner advances the wheel by
+ * calling {@link #expire(long)}, and uses {@link #nextTimeout(long)} to find
+ * out how long it may sleep (e.g. in {@code Selector.select(timeout)}).
+ *
+ * The wheel is not thread safe; it is meant to be driven by a single
+ * {@link EventLoop}.
+ */
+public class TimerWheel {
+    /**
+     * A scheduled task
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevent the task from running, if it hasn't already
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<Timeout>[] slots;
+    private long currentTick;
+    private int pending;
+
+    /**
+     * @param tickMillis The resolution of the wheel
+     * @param numSlots The number of slots
+     * @param now The current time (in milliseconds)
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int numSlots, long now) {
+        if (tickMillis <= 0 || numSlots <= 0) {
+            throw new IllegalArgumentException("Tick duration and number of slots must be > 0");
+        }
+        this.tickMillis = tickMillis;
+        slots = (List<Timeout>[]) new List<?>[numSlots];
+        for (int ii = 0; ii < numSlots; ii++) {
+            slots[ii] = new LinkedList<Timeout>();
+        }
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param delayMillis How long from {@code now} the task should run
+     * @param task The task to run
+     * @param now The current time (in milliseconds)
+     * @return A handle which may be used to cancel the task
+     */
+    public Timeout schedule(long delayMillis, Runnable task, long now) {
+        long deadline = now + Math.max(0, delayMillis);
+        // Round up, so that we never fire early
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick);
+        Timeout timeout = new Timeout(task, deadline);
+        slots[(int) (tick % slots.length)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * Get the number of milliseconds the owner may wait before calling
+     * {@link #expire(long)} again
+     *
+     * @param now The current time (in milliseconds)
+     * @return the number of milliseconds, or 0 if there is nothing scheduled
+     */
+    public long nextTimeout(long now) {
+        if (pending == 0) {
+            return 0;
+        }
+        long nextTick = (now / tickMillis + 1) * tickMillis;
+        return Math.max(1, nextTick - now);
+    }
+
+    /**
+     * Run all the tasks whose deadline has passed
+     *
+     * @param now The current time (in milliseconds)
+     */
+    public void expire(long now) {
+        long target = now / tickMillis;
+        List<Timeout> due = null;
+        // Visit all slots which came due since the last call, but each one only once
+        long last = Math.min(target, currentTick + slots.length - 1);
+        for (long tick = currentTick; tick <= last && pending > 0; tick++) {
+            Iterator<Timeout> iterator = slots[(int) (tick % slots.length)].iterator();
+            while (iterator.hasNext()) {
+                Timeout timeout = iterator.next();
+                if (timeout.cancelled || timeout.deadline <= now) {
+                    iterator.remove();
+                    pending--;
+                    if (!timeout.cancelled) {
+                        if (due == null) {
+                            due = new ArrayList<Timeout>();
+                        }
+                        due.add(timeout);
+                    }
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, target);
+
+        if (due != null) {
+            for (Timeout timeout : due) {
+                timeout.task.run();
+            }
+        }
+    }
+
+    /**
+     * @return the number of scheduled (or cancelled, but not yet purged) tasks
+     */
+    public int size() {
+        return pending;
+    }
+}
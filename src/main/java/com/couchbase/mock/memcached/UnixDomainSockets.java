@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Access to Unix domain socket channels, which are only available on Java
+ * 16 and later. Everything is looked up reflectively so that the mock
+ * still builds and runs on older versions (where {@link #isSupported()}
+ * returns false).
+ */
+public final class UnixDomainSockets {
+    private static final Object UNIX_FAMILY;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER;
+    private static final Method OPEN_CLIENT;
+
+    static {
+        Object family = null;
+        Method addressOf = null;
+        Method openServer = null;
+        Method openClient = null;
+        try {
+            Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+            Class<?> standardFamilies = Class.forName("java.net.StandardProtocolFamily");
+            family = standardFamilies.getField("UNIX").get(null);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openServer = ServerSocketChannel.class.getMethod("open", familyClass);
+            openClient = SocketChannel.class.getMethod("open", familyClass);
+        } catch (Exception ex) {
+            family = null;
+        }
+        UNIX_FAMILY = family;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CLIENT = openClient;
+    }
+
+    /**
+     * @return true if the JVM supports Unix domain socket channels
+     */
+    public static boolean isSupported() {
+        return UNIX_FAMILY != null;
+    }
+
+    private static Object invoke(Method method, Object... args) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        }
+        try {
+            return method.invoke(null, args);
+        } catch (IllegalAccessException ex) {
+            throw new IOException(ex);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static SocketAddress addressOf(File path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, path.getPath());
+    }
+
+    /**
+     * Create a (non-blocking) listening socket
+     *
+     * @param path The path of the socket. It must not exist
+     * @param backlog The maximum number of pending connections (0 for the system default)
+     * @return the listening channel
+     * @throws IOException If the socket could not be created
+     */
+    public static ServerSocketChannel bind(File path, int backlog) throws IOException {
+        ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX_FAMILY);
+        try {
+            channel.configureBlocking(false);
+            channel.bind(addressOf(path), backlog);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    /**
+     * Connect to a listening socket
+     *
+     * @param path The path of the socket
+     * @return a (blocking) channel connected to it
+     * @throws IOException If the connection failed
+     */
+    public static SocketChannel connect(File path) throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, UNIX_FAMILY);
+        try {
+            channel.connect(addressOf(path));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    private UnixDomainSockets() {
+    }
+}
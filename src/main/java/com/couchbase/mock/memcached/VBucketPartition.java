@@ -0,0 +1,391 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The items of a single vBucket in a {@link VBucketStore}.
+ *
+ * Each partition keeps its own count of the memory its items use, so that
+ * looking at (or flushing) a vBucket costs time proportional to the items
+ * in that vBucket rather than to all of the items on the node.
+ *
+ * If the partition has a {@link SlabAllocator}, the values of the items
+ * stored in it are moved off the heap, and freed again once the items are
+ * removed.
+ *
+ * Items may be evicted by the {@link ItemPager}: either their value only
+ * (the item stays in the partition, but isn't resident), or the whole item,
+ * in which case only its key is remembered so that it can be fetched back
+ * from disk when it is looked up.
+ *
+ * The keys of the items which have an expiry time are kept in a queue
+ * ordered by that time, for the {@link ExpiryPager}. Entries aren't removed
+ * when an item is modified or removed; rather, the pager checks that the
+ * item still expires at the time of the entry once the entry is due.
+ */
+public class VBucketPartition implements Iterable<Item> {
+    private final ConcurrentMap<KeySpec, Item> items = new ConcurrentHashMap<KeySpec, Item>();
+    private final Set<KeySpec> evictedKeys = Collections.newSetFromMap(new ConcurrentHashMap<KeySpec, Boolean>());
+    private final AtomicLong memoryUsed = new AtomicLong();
+    private final AtomicInteger nonResident = new AtomicInteger();
+    // The memory used by all the partitions of the store
+    private final AtomicLong storeMemoryUsed;
+    private volatile SlabAllocator valueAllocator;
+    // Guarded by the partition
+    private final PriorityQueue<ExpiryEntry> expiryQueue = new PriorityQueue<ExpiryEntry>();
+
+    private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+        final int expiryTime;
+        final KeySpec ks;
+
+        ExpiryEntry(int expiryTime, KeySpec ks) {
+            this.expiryTime = expiryTime;
+            this.ks = ks;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            return expiryTime < other.expiryTime ? -1 : (expiryTime == other.expiryTime ? 0 : 1);
+        }
+    }
+
+    VBucketPartition(AtomicLong storeMemoryUsed) {
+        this.storeMemoryUsed = storeMemoryUsed;
+    }
+
+    /**
+     * @param item An item (may be null)
+     * @return the number of bytes the key, value and extended attributes of the item take
+     */
+    static long sizeOf(Item item) {
+        if (item == null) {
+            return 0;
+        }
+        long size = item.getKeySpec().getKeyLength();
+        size += item.getValueLength();
+        if (item.getXattr() != null) {
+            size += item.getXattr().length;
+        }
+        return size;
+    }
+
+    private void account(long delta) {
+        memoryUsed.addAndGet(delta);
+        storeMemoryUsed.addAndGet(delta);
+    }
+
+    private void forget(Item old) {
+        account(-sizeOf(old));
+        if (!old.isResident()) {
+            nonResident.decrementAndGet();
+        }
+        old.releaseValue();
+    }
+
+    public Item get(KeySpec ks) {
+        return items.get(ks);
+    }
+
+    /**
+     * Store an item, replacing the item with the same key (if any)
+     *
+     * @param item The item
+     * @return the item which was replaced, or null
+     */
+    synchronized Item put(Item item) {
+        SlabAllocator allocator = valueAllocator;
+        if (allocator != null) {
+            item.moveOffHeap(allocator);
+        }
+        if (!evictedKeys.isEmpty()) {
+            evictedKeys.remove(item.getKeySpec());
+        }
+        Item old = items.put(item.getKeySpec(), item);
+        if (old != item) {
+            if (item.getExpiryTime() != 0 && (old == null || old.getExpiryTime() != item.getExpiryTime())) {
+                scheduleExpiry(item);
+            }
+            account(sizeOf(item));
+            if (!item.isResident()) {
+                nonResident.incrementAndGet();
+            }
+            if (old != null) {
+                forget(old);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * @param ks The key of the item to remove
+     * @return the removed item, or null if there was none
+     */
+    synchronized Item remove(KeySpec ks) {
+        if (!evictedKeys.isEmpty()) {
+            evictedKeys.remove(ks);
+        }
+        Item old = items.remove(ks);
+        if (old != null) {
+            forget(old);
+        }
+        return old;
+    }
+
+    /**
+     * Account for an item of the partition which was modified in place
+     *
+     * @param delta The change of the size of the item, in bytes
+     */
+    void itemResized(long delta) {
+        account(delta);
+    }
+
+    /**
+     * Drop the value of an item, keeping its metadata
+     *
+     * @param item An item of the partition
+     * @return the number of bytes freed
+     */
+    synchronized long evictValue(Item item) {
+        if (items.get(item.getKeySpec()) != item || !item.isResident()) {
+            return 0;
+        }
+        int freed = item.evictValue();
+        account(-freed);
+        nonResident.incrementAndGet();
+        return freed;
+    }
+
+    /**
+     * Remove an item altogether
+     *
+     * @param item An item of the partition
+     * @param remember Whether the key should be remembered, so that the item is fetched back from disk on access
+     * @return the number of bytes freed
+     */
+    synchronized long evictItem(Item item, boolean remember) {
+        if (!items.remove(item.getKeySpec(), item)) {
+            return 0;
+        }
+        long freed = sizeOf(item);
+        forget(item);
+        if (remember) {
+            evictedKeys.add(item.getKeySpec());
+        }
+        return freed;
+    }
+
+    /**
+     * Bring the value of an evicted item back into memory
+     *
+     * @param item The item whose value was evicted
+     * @param source The persisted copy of the item
+     * @return false if the persisted copy was dropped while its value was read
+     */
+    synchronized boolean restoreValue(Item item, Item source) {
+        if (items.get(item.getKeySpec()) != item || item.isResident()) {
+            return true;
+        }
+        try {
+            account(item.restoreValue(source));
+        } catch (ValueFreedException ex) {
+            return false;
+        }
+        nonResident.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param ks A key
+     * @return whether the item with the key was evicted altogether
+     */
+    boolean isEvicted(KeySpec ks) {
+        return !evictedKeys.isEmpty() && evictedKeys.contains(ks);
+    }
+
+    /**
+     * Bring an item which was evicted altogether back into memory
+     *
+     * @param source The persisted copy of the item
+     * @return the restored item, or null if the item has been stored or removed in the meantime
+     */
+    synchronized Item restoreItem(Item source) {
+        if (!evictedKeys.remove(source.getKeySpec())) {
+            return items.get(source.getKeySpec());
+        }
+        Item item;
+        try {
+            item = new Item(source);
+        } catch (ValueFreedException ex) {
+            // The persisted copy was replaced or removed while we copied it
+            evictedKeys.add(source.getKeySpec());
+            return null;
+        }
+        put(item);
+        return item;
+    }
+
+    /**
+     * Queue an item for the expiry pager. This must be called again whenever
+     * the expiry time of an item of the partition is changed in place.
+     *
+     * @param item An item of the partition
+     */
+    synchronized void scheduleExpiry(Item item) {
+        if (item.getExpiryTime() == 0) {
+            return;
+        }
+        if (expiryQueue.size() > 2 * getNumItems() + 64) {
+            compactExpiryQueue();
+        }
+        expiryQueue.add(new ExpiryEntry(item.getExpiryTime(), item.getKeySpec()));
+    }
+
+    /**
+     * Drop the entries of items which were removed or given another expiry
+     * time, as well as duplicate entries (left by items read back from disk)
+     */
+    private void compactExpiryQueue() {
+        List<ExpiryEntry> live = new ArrayList<ExpiryEntry>();
+        Set<KeySpec> seen = new HashSet<KeySpec>();
+        for (ExpiryEntry entry : expiryQueue) {
+            Item item = items.get(entry.ks);
+            if (item == null ? !evictedKeys.contains(entry.ks) : item.getExpiryTime() != entry.expiryTime) {
+                continue;
+            }
+            // An evicted key may have been queued with several expiry times; keep them all
+            if (item == null || seen.add(entry.ks)) {
+                live.add(entry);
+            }
+        }
+        expiryQueue.clear();
+        expiryQueue.addAll(live);
+    }
+
+    /**
+     * Take the keys of the items which were due to expire by the given time
+     *
+     * @param now The current time, in seconds
+     * @param max The most keys to take
+     * @param expiryTimes Filled with the expiry time each key was queued with
+     * @return the keys, in the order they are due
+     */
+    synchronized List<KeySpec> takeExpired(long now, int max, List<Integer> expiryTimes) {
+        List<KeySpec> keys = new ArrayList<KeySpec>();
+        while (keys.size() < max && !expiryQueue.isEmpty() && expiryQueue.peek().expiryTime <= now) {
+            ExpiryEntry entry = expiryQueue.poll();
+            keys.add(entry.ks);
+            expiryTimes.add(entry.expiryTime);
+        }
+        return keys;
+    }
+
+    /**
+     * @param now The current time, in seconds
+     * @return whether any of the entries queued for the expiry pager is due
+     */
+    synchronized boolean hasExpired(long now) {
+        return !expiryQueue.isEmpty() && expiryQueue.peek().expiryTime <= now;
+    }
+
+    /**
+     * @return the number of entries queued for the expiry pager (including stale ones)
+     */
+    public synchronized int getExpiryQueueSize() {
+        return expiryQueue.size();
+    }
+
+    /**
+     * Remove all of the items
+     */
+    void clear() {
+        for (KeySpec ks : items.keySet()) {
+            remove(ks);
+        }
+        evictedKeys.clear();
+        synchronized (this) {
+            expiryQueue.clear();
+        }
+    }
+
+    /**
+     * @param allocator The allocator the values of items stored from now on
+     *                  should be moved to, or null to keep them on the heap
+     */
+    void setValueAllocator(SlabAllocator allocator) {
+        valueAllocator = allocator;
+    }
+
+    /**
+     * @return the number of items in memory (including those whose value was evicted)
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return the number of items, including those which were evicted altogether
+     */
+    public int getNumItems() {
+        return items.size() + evictedKeys.size();
+    }
+
+    /**
+     * @return the number of items whose value isn't in memory
+     */
+    public int getNumNonResident() {
+        return nonResident.get() + evictedKeys.size();
+    }
+
+    /**
+     * @return the keys of the items which were evicted altogether
+     */
+    public Collection<KeySpec> getEvictedKeys() {
+        return Collections.unmodifiableCollection(evictedKeys);
+    }
+
+    /**
+     * @return the number of bytes used by the items of the partition
+     */
+    public long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    /**
+     * @return a read-only view of the items of the partition
+     */
+    public Collection<Item> values() {
+        return Collections.unmodifiableCollection(items.values());
+    }
+
+    @Override
+    public Iterator<Item> iterator() {
+        return values().iterator();
+    }
+}
@@ -17,20 +17,28 @@ package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.couchbase.mock.util.Clock;
 
-import java.util.Collection;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Storage operations representing a single vBucket. This is a replacement for
  * the old DataStore class. Specifically, it does not check for vBucket
  * ownership - that information is handled at the protocol layer.
  *
+ * The items of each vBucket are kept in a {@link VBucketPartition} of their own.
+ * Every operation on an item holds the monitor of the partition of the item
+ * from the lookup of the current item through the mutation and its callbacks,
+ * so that compare-and-set operations are atomic no matter which thread (a
+ * client connection, the REST API or the replication of another node)
+ * performs them, while operations on different vBuckets don't contend.
+ *
  * @author mnunberg
  */
 public class VBucketStore {
@@ -38,19 +46,56 @@ public class VBucketStore {
         public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms);
     }
 
-    private volatile long casCounter;
+    /**
+     * Reads evicted items back from disk
+     */
+    public interface ItemFetcher {
+        /**
+         * @param ks The key of the item
+         * @return the persisted copy of the item, or null if there is none
+         */
+        public Item fetch(KeySpec ks);
+    }
+
+    /**
+     * Tells whether the replicas of a vBucket keep up with its mutations
+     */
+    public interface ReplicationCheck {
+        /**
+         * @param vb The vBucket
+         * @return false if the vBucket should refuse mutations for now
+         */
+        public boolean canReplicate(short vb);
+    }
+
+    private final AtomicLong casCounter = new AtomicLong();
     private static final long THIRTY_DAYS = 30 * 24 * 60 * 60;
     static final int DEFAULT_EXPIRY_TIME = 15;
     static final int MAXIMUM_EXPIRY_TIME = 29;
 
-    private final Map<KeySpec, Item> kv = new ConcurrentHashMap<KeySpec, Item>();
+    private final VBucketPartition[] partitions;
     private final StorageVBucketCoordinates[] vbCoords;
-    private final Map<CoordKey, VBucketCoordinates>allCoords = new HashMap<CoordKey, VBucketCoordinates>();
+    private final Map<CoordKey, VBucketCoordinates>allCoords = new ConcurrentHashMap<CoordKey, VBucketCoordinates>();
+
+    private final AtomicLong memoryUsed = new AtomicLong();
+    // The most memory the items may use (0 for no limit)
+    private volatile long memoryQuota = 0;
+    // The largest mutation refused since the pager last ran
+    private final AtomicLong refusedBytes = new AtomicLong();
+    private final AtomicLong tmpOomErrors = new AtomicLong();
+    private final AtomicLong bgFetched = new AtomicLong();
+    private final AtomicLong expiredAccess = new AtomicLong();
 
     public ItemAction onItemDelete;
     public ItemAction onItemMutated;
+    public ItemFetcher itemFetcher;
+    public ReplicationCheck replicationCheck;
 
     public VBucketStore(VBucketInfo[] vbi) {
+        partitions = new VBucketPartition[vbi.length];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new VBucketPartition(memoryUsed);
+        }
         vbCoords = new StorageVBucketCoordinates[vbi.length];
         setCurrentCoords(vbi);
     }
@@ -85,6 +130,13 @@ public class VBucketStore {
         return vbCoords[vbid];
     }
 
+    /**
+     * @return a CAS value which was never handed out before by this store
+     */
+    private long nextCas() {
+        return casCounter.incrementAndGet();
+    }
+
     /**
      * Increments the current coordinates for a new mutation.
      * @param ks The key spec containing the vBucket ID whose coordinates should be increases
@@ -102,148 +154,418 @@ public class VBucketStore {
         return new MutationStatus(coord);
     }
 
+    /**
+     * @param vbid The vBucket
+     * @return the items of the vBucket
+     */
+    public VBucketPartition getPartition(int vbid) {
+        return partitions[vbid];
+    }
+
+    /**
+     * Keep the values of the items stored from now on off the heap
+     *
+     * @param allocator The allocator to store the values in (null to keep them on the heap)
+     */
+    void setValueAllocator(SlabAllocator allocator) {
+        for (VBucketPartition partition : partitions) {
+            partition.setValueAllocator(allocator);
+        }
+    }
+
+    /**
+     * @return the number of vBuckets (and thus of partitions) in the store
+     */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * @param bytes The most memory the items may use, or 0 for no limit
+     */
+    void setMemoryQuota(long bytes) {
+        memoryQuota = bytes;
+    }
+
+    public long getMemoryQuota() {
+        return memoryQuota;
+    }
+
+    /**
+     * @return the number of bytes used by the items in memory
+     */
+    public long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    /**
+     * @return the number of mutations refused because the quota was reached
+     */
+    public long getTmpOomErrors() {
+        return tmpOomErrors.get();
+    }
+
+    /**
+     * @return the number of evicted items read back from disk
+     */
+    public long getBgFetched() {
+        return bgFetched.get();
+    }
+
+    /**
+     * @return the number of expired items removed when they were accessed
+     */
+    public long getExpiredAccess() {
+        return expiredAccess.get();
+    }
+
+    /**
+     * @return the current time of the cluster (including any time travel), in milliseconds
+     */
+    static long now() {
+        return Clock.getInstance().getMillis();
+    }
+
+    /**
+     * @param item An item
+     * @param now The current time, as returned by {@link #now()}
+     * @return whether the item has expired
+     */
+    static boolean isExpired(Item item, long now) {
+        return item.getExpiryTime() != 0 && now >= item.getExpiryTimeInMillis();
+    }
+
+    /**
+     * @return the size of the largest mutation refused for lack of memory
+     *         since the refused size was last taken, or 0 if none was
+     */
+    long getRefusedBytes() {
+        return refusedBytes.get();
+    }
+
+    /**
+     * Check (and clear) whether a mutation was refused for lack of memory
+     * since the last call
+     *
+     * @return the size of the largest mutation refused, or 0 if none was
+     */
+    long takeRefusedBytes() {
+        return refusedBytes.getAndSet(0);
+    }
+
+    /**
+     * Check that storing a mutation doesn't take the items over the quota
+     *
+     * @param growth The number of bytes the mutation adds
+     * @return false if the mutation should fail with a temporary error
+     */
+    private boolean hasRoomFor(long growth) {
+        long quota = memoryQuota;
+        if (quota == 0 || growth <= 0 || memoryUsed.get() + growth <= quota) {
+            return true;
+        }
+        tmpOomErrors.incrementAndGet();
+        long refused;
+        do {
+            refused = refusedBytes.get();
+        } while (growth > refused && !refusedBytes.compareAndSet(refused, growth));
+        return false;
+    }
+
+    /**
+     * Check that the replicas can take a mutation of the vBucket
+     *
+     * @param vb The vBucket
+     * @return false if the mutation should fail with a temporary error
+     */
+    private boolean replicasHaveRoom(short vb) {
+        ReplicationCheck check = replicationCheck;
+        return check == null || check.canReplicate(vb);
+    }
+
+    /**
+     * Read an evicted item (or value) back from disk
+     *
+     * @param partition The partition of the item
+     * @param ks The key of the item
+     * @param evicted The item whose value was evicted, or null if the whole item was
+     * @return the item, or null if it isn't on disk (any more)
+     */
+    private Item fetch(VBucketPartition partition, KeySpec ks, Item evicted) {
+        ItemFetcher fetcher = itemFetcher;
+        Item persisted = fetcher == null ? null : fetcher.fetch(ks);
+        if (evicted == null) {
+            if (persisted == null) {
+                return null;
+            }
+            bgFetched.incrementAndGet();
+            return partition.restoreItem(persisted);
+        }
+        if (persisted == null || persisted.getCasReal() != evicted.getCasReal()) {
+            // The item was removed from disk behind our back
+            partition.evictItem(evicted, false);
+            return null;
+        }
+        if (!partition.restoreValue(evicted, persisted)) {
+            // The persisted copy was replaced or removed while we read it
+            return null;
+        }
+        bgFetched.incrementAndGet();
+        return evicted;
+    }
+
     private Item lookup(KeySpec ks) {
-        Item ii = kv.get(ks);
+        VBucketPartition partition = partitions[ks.vbId];
+        Item ii = partition.get(ks);
+        if (ii == null) {
+            if (!partition.isEvicted(ks)) {
+                return null;
+            }
+            ii = fetch(partition, ks, null);
+        } else if (!ii.isResident()) {
+            ii = fetch(partition, ks, ii);
+        }
         if (ii == null) {
             return null;
         }
+        ii.markReferenced();
 
-        long now = new Date().getTime() + Info.getClockOffset() * 1000L;
-        if (ii.getExpiryTime() == 0 || now < ii.getExpiryTimeInMillis()) {
+        if (!isExpired(ii, now())) {
             return ii;
         }
-        MutationStatus ms = incrCoords(ii.getKeySpec());
-        onItemDelete.onAction(this, ii, ms.getCoords());
-        kv.remove(ks);
+        expiredAccess.incrementAndGet();
+        expire(ii);
         return null;
     }
 
-    public ErrorCode lock(Item item, int expiry) {
-        if (item.isLocked()) {
-            return ErrorCode.ETMPFAIL;
+    private void expire(Item item) {
+        MutationStatus ms = incrCoords(item.getKeySpec());
+        onItemDelete.onAction(this, item, ms.getCoords());
+        partitions[item.getKeySpec().vbId].remove(item.getKeySpec());
+    }
 
-        } else {
-            if (expiry == 0 || expiry > MAXIMUM_EXPIRY_TIME) {
-                expiry = DEFAULT_EXPIRY_TIME;
+    /**
+     * Remove the items of a vBucket which were due to expire, as the expiry
+     * pager does. The caller should hold the lock of the vBucket.
+     *
+     * @param vbid The vBucket
+     * @param now The current time, as returned by {@link #now()}
+     * @param max The most items to look at
+     * @return the number of items which were removed
+     */
+    int expireItems(int vbid, long now, int max) {
+        VBucketPartition partition = partitions[vbid];
+        synchronized (partition) {
+            return expireItems(partition, now, max);
+        }
+    }
+
+    private int expireItems(VBucketPartition partition, long now, int max) {
+        List<Integer> expiryTimes = new ArrayList<Integer>();
+        List<KeySpec> due = partition.takeExpired(now / 1000, max, expiryTimes);
+        int removed = 0;
+        for (int ii = 0; ii < due.size(); ii++) {
+            KeySpec ks = due.get(ii);
+            Item item = partition.get(ks);
+            if (item == null && partition.isEvicted(ks)) {
+                // Only the metadata is needed, so don't bring the item back into memory
+                ItemFetcher fetcher = itemFetcher;
+                item = fetcher == null ? null : fetcher.fetch(ks);
+            }
+            // The entry is stale if the item was removed or given another expiry time since
+            if (item != null && item.getExpiryTime() == expiryTimes.get(ii) && isExpired(item, now)) {
+                expire(item);
+                removed++;
             }
-            MutationStatus ms = incrCoords(item.getKeySpec());
-            item.setLockExpiryTime(expiry);
-            item.setCas(++casCounter);
-            onItemMutated.onAction(this, item, ms.getCoords());
-            return ErrorCode.SUCCESS;
         }
+        return removed;
     }
 
+    /**
+     * Lock an item previously looked up
+     *
+     * @param item The item to lock
+     * @param expiry How long to keep it locked
+     * @return KEY_ENOENT if the item was replaced, removed or expired since it was looked up
+     */
+    public ErrorCode lock(Item item, int expiry) {
+        synchronized (partitions[item.getKeySpec().vbId]) {
+            if (lookup(item.getKeySpec()) != item) {
+                return ErrorCode.KEY_ENOENT;
+            } else if (item.isLocked() || !replicasHaveRoom(item.getKeySpec().vbId)) {
+                return ErrorCode.ETMPFAIL;
+
+            } else {
+                if (expiry == 0 || expiry > MAXIMUM_EXPIRY_TIME) {
+                    expiry = DEFAULT_EXPIRY_TIME;
+                }
+                MutationStatus ms = incrCoords(item.getKeySpec());
+                item.setLockExpiryTime(expiry);
+                item.setCas(nextCas());
+                onItemMutated.onAction(this, item, ms.getCoords());
+                return ErrorCode.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * Change the expiry time of an item previously looked up
+     *
+     * @param item The item to touch
+     * @param expiry The new expiry time
+     * @param xerrorEnabled Whether the client understands the extended error codes
+     * @return KEY_ENOENT if the item was replaced, removed or expired since it was looked up
+     */
     public ErrorCode touch(Item item, int expiry, boolean xerrorEnabled) {
-        if (item.isLocked()) {
-            return lockedError(xerrorEnabled);
+        VBucketPartition partition = partitions[item.getKeySpec().vbId];
+        synchronized (partition) {
+            if (lookup(item.getKeySpec()) != item) {
+                return ErrorCode.KEY_ENOENT;
+            }
+            if (item.isLocked()) {
+                return lockedError(xerrorEnabled);
+            }
+            if (!replicasHaveRoom(item.getKeySpec().vbId)) {
+                return ErrorCode.ETMPFAIL;
+            }
+            item.setExpiryTime(expiry);
+            partition.scheduleExpiry(item);
+            MutationStatus ms = incrCoords(item.getKeySpec());
+            onItemMutated.onAction(this, item, ms.getCoords());
+            return ErrorCode.SUCCESS;
         }
-        item.setExpiryTime(expiry);
-        MutationStatus ms = incrCoords(item.getKeySpec());
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ErrorCode.SUCCESS;
     }
 
     public MutationStatus add(Item item, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item old = lookup(item.getKeySpec());
-        if (old != null && old.isLocked()) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        } else if (old != null || item.getCas() != 0) {
-            return new MutationStatus(ErrorCode.KEY_EEXISTS);
-        }
+        VBucketPartition partition = partitions[item.getKeySpec().vbId];
+        synchronized (partition) {
+            Item old = lookup(item.getKeySpec());
+            if (old != null && old.isLocked()) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            } else if (old != null || item.getCas() != 0) {
+                return new MutationStatus(ErrorCode.KEY_EEXISTS);
+            }
+            if (!hasRoomFor(VBucketPartition.sizeOf(item)) || !replicasHaveRoom(item.getKeySpec().vbId)) {
+                return new MutationStatus(ErrorCode.ETMPFAIL);
+            }
 
-        item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
-        MutationStatus ms = incrCoords(item.getKeySpec());
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ms;
+            item.setCas(nextCas());
+            partition.put(item);
+            MutationStatus ms = incrCoords(item.getKeySpec());
+            onItemMutated.onAction(this, item, ms.getCoords());
+            return ms;
+        }
     }
 
     public MutationStatus replace(Item item, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item old = lookup(item.getKeySpec());
-        if (old == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
-        }
+        VBucketPartition partition = partitions[item.getKeySpec().vbId];
+        synchronized (partition) {
+            Item old = lookup(item.getKeySpec());
+            if (old == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
+            }
 
-        if (!old.ensureUnlocked(item.getCas())) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
+            if (!old.ensureUnlocked(item.getCas())) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            }
 
-        if (item.getCas() != old.getCas()) {
-            if (item.getCas() != 0) {
-                return new MutationStatus(ErrorCode.KEY_EEXISTS);
+            if (item.getCas() != old.getCas()) {
+                if (item.getCas() != 0) {
+                    return new MutationStatus(ErrorCode.KEY_EEXISTS);
+                }
+            }
+            if (!hasRoomFor(VBucketPartition.sizeOf(item) - VBucketPartition.sizeOf(old))
+                    || !replicasHaveRoom(item.getKeySpec().vbId)) {
+                return new MutationStatus(ErrorCode.ETMPFAIL);
             }
-        }
 
-        MutationStatus ms = incrCoords(item.getKeySpec());
-        item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ms;
+            MutationStatus ms = incrCoords(item.getKeySpec());
+            item.setCas(nextCas());
+            partition.put(item);
+            onItemMutated.onAction(this, item, ms.getCoords());
+            return ms;
+        }
     }
 
     public MutationStatus set(Item item, boolean xerrorEnabled) {
-        if (item.getCas() == 0) {
+        if (item.getCas() != 0) {
+            return replace(item, xerrorEnabled);
+        }
+        VBucketPartition partition = partitions[item.getKeySpec().vbId];
+        synchronized (partition) {
             Item old = lookup(item.getKeySpec());
             if (old != null && old.isLocked()) {
                 return new MutationStatus(lockedError(xerrorEnabled));
             }
+            if (!hasRoomFor(VBucketPartition.sizeOf(item) - VBucketPartition.sizeOf(old))
+                    || !replicasHaveRoom(item.getKeySpec().vbId)) {
+                return new MutationStatus(ErrorCode.ETMPFAIL);
+            }
 
             MutationStatus ms = incrCoords(item.getKeySpec());
-            item.setCas(++casCounter);
-            kv.put(item.getKeySpec(), item);
+            item.setCas(nextCas());
+            partition.put(item);
             onItemMutated.onAction(this, item, ms.getCoords());
             return ms;
-        } else {
-            return replace(item, xerrorEnabled);
         }
     }
 
     public MutationStatus delete(KeySpec ks, long cas, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item i = lookup(ks);
-        if (i == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
-        }
+        VBucketPartition partition = partitions[ks.vbId];
+        synchronized (partition) {
+            Item i = lookup(ks);
+            if (i == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
+            }
 
-        if (!i.ensureUnlocked(cas)) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
+            if (!i.ensureUnlocked(cas)) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            }
 
-        if (cas == 0 || cas == i.getCas()) {
-            MutationStatus ms = incrCoords(i.getKeySpec());
-            i.setCas(++casCounter);
-            kv.remove(ks);
-            onItemDelete.onAction(this, i, ms.getCoords());
-            return ms;
+            if (cas == 0 || cas == i.getCas()) {
+                if (!replicasHaveRoom(ks.vbId)) {
+                    return new MutationStatus(ErrorCode.ETMPFAIL);
+                }
+                MutationStatus ms = incrCoords(i.getKeySpec());
+                i.setCas(nextCas());
+                partition.remove(ks);
+                onItemDelete.onAction(this, i, ms.getCoords());
+                return ms;
+            }
+            return new MutationStatus(ErrorCode.KEY_EEXISTS);
         }
-        return new MutationStatus(ErrorCode.KEY_EEXISTS);
     }
 
     private MutationStatus modifyItemValue(Item i, boolean isAppend, boolean xerrorEnabled) {
-        Item old = lookup(i.getKeySpec());
-        if (old == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
-        }
-        if (i.getCas() != old.getCas()) {
-            if (i.getCas() != 0) {
-                return new MutationStatus(ErrorCode.KEY_EEXISTS);
+        VBucketPartition partition = partitions[i.getKeySpec().vbId];
+        synchronized (partition) {
+            Item old = lookup(i.getKeySpec());
+            if (old == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
             }
+            if (i.getCas() != old.getCas()) {
+                if (i.getCas() != 0) {
+                    return new MutationStatus(ErrorCode.KEY_EEXISTS);
+                }
+            }
+            if (!old.ensureUnlocked(i.getCas())) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            }
+            if (!hasRoomFor(i.getValueLength()) || !replicasHaveRoom(i.getKeySpec().vbId)) {
+                return new MutationStatus(ErrorCode.ETMPFAIL);
+            }
+            long oldSize = VBucketPartition.sizeOf(old);
+            if (isAppend) {
+                old.append(i);
+            } else {
+                old.prepend(i);
+            }
+            partition.itemResized(VBucketPartition.sizeOf(old) - oldSize);
+            MutationStatus ms = incrCoords(old.getKeySpec());
+            old.setCas(nextCas());
+            onItemMutated.onAction(this, old, ms.getCoords());
+            return ms;
         }
-        if (!old.ensureUnlocked(i.getCas())) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
-        if (isAppend) {
-            old.append(i);
-        } else {
-            old.prepend(i);
-        }
-        MutationStatus ms = incrCoords(old.getKeySpec());
-        old.setCas(++casCounter);
-        onItemMutated.onAction(this, old, ms.getCoords());
-        return ms;
     }
 
     public MutationStatus append(Item i, boolean xerrorEnabled) {
@@ -255,26 +577,43 @@ public class VBucketStore {
     }
 
     public Item get(KeySpec ks) {
-        return lookup(ks);
+        // A lookup may read the item back from disk, or remove it if it has expired
+        synchronized (partitions[ks.vbId]) {
+            return lookup(ks);
+        }
+    }
+
+    /**
+     * @return the number of items in the store
+     */
+    public long size() {
+        long total = 0;
+        for (VBucketPartition partition : partitions) {
+            total += partition.size();
+        }
+        return total;
     }
 
     public Item getRandom() {
         Random r = new Random();
-        while (!kv.isEmpty()) {
-            Collection<Item> c = kv.values();
-            int max = r.nextInt(c.size());
-            Iterator<Item> iter = c.iterator();
-            for (int i = 0; i < max - 1; i++) {
-                if (!iter.hasNext()) {
-                    break;
-                }
-                iter.next();
+        long total;
+        while ((total = size()) > 0) {
+            // Find the partition the item is in, then the item within it
+            long index = (long) (r.nextDouble() * total);
+            int vb = 0;
+            while (vb < partitions.length - 1 && index >= partitions[vb].size()) {
+                index -= partitions[vb].size();
+                vb++;
             }
 
+            Iterator<Item> iter = partitions[vb].iterator();
+            for (long i = 0; i < index && iter.hasNext(); i++) {
+                iter.next();
+            }
             if (!iter.hasNext()) {
                 continue;
             }
-            Item itm = lookup(iter.next().getKeySpec());
+            Item itm = get(iter.next().getKeySpec());
             if (itm != null) {
                 return itm;
             }
@@ -282,6 +621,15 @@ public class VBucketStore {
         return null;
     }
 
+    /**
+     * Remove all of the items
+     */
+    void clear() {
+        for (VBucketPartition partition : partitions) {
+            partition.clear();
+        }
+    }
+
     private void forceMutation(int vbid, Item itm, VBucketCoordinates coords, boolean isDelete) {
         StorageVBucketCoordinates cur;
         synchronized (vbCoords) {
@@ -290,13 +638,15 @@ public class VBucketStore {
                 cur = vbCoords[vbid] = new StorageVBucketCoordinates(coords);
             }
         }
-        cur.seekSeqno(coords.getSeqno());
-        if (isDelete) {
-            kv.remove(itm.getKeySpec());
-            onItemDelete.onAction(this, itm, coords);
-        } else {
-            kv.put(itm.getKeySpec(), itm);
-            onItemMutated.onAction(this, itm, coords);
+        synchronized (partitions[vbid]) {
+            cur.seekSeqno(coords.getSeqno());
+            if (isDelete) {
+                partitions[vbid].remove(itm.getKeySpec());
+                onItemDelete.onAction(this, itm, coords);
+            } else {
+                partitions[vbid].put(itm);
+                onItemMutated.onAction(this, itm, coords);
+            }
         }
     }
 
@@ -324,10 +674,6 @@ public class VBucketStore {
         forceMutation(itm.getKeySpec().vbId, itm, coords, true);
     }
 
-    public Map<KeySpec,Item> getMap() {
-        return kv;
-    }
-
     /**
      * Converts an expiration value to an absolute Unix timestamp.
      * @param original The original value passed in from the client. This can
@@ -341,7 +687,7 @@ public class VBucketStore {
             return original + (int)Info.getClockOffset();
         }
 
-        return (int)((new Date().getTime() / 1000) + original + Info.getClockOffset());
+        return (int) (Clock.getInstance().getSeconds() + original);
     }
 
     private ErrorCode lockedError(boolean xerrorEnabled) {
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+/**
+ * Thrown when the off-heap value of an item has been freed before it could
+ * be read. This happens when the item is dropped from its store (replaced,
+ * deleted, expired or evicted) between the time it was looked up and the
+ * time its value is copied; the operation may simply be retried.
+ */
+public class ValueFreedException extends RuntimeException {
+    public ValueFreedException(KeySpec ks) {
+        super("The value of \"" + ks.getKey() + "\" (vBucket " + ks.vbId + ") was freed while it was read");
+    }
+}
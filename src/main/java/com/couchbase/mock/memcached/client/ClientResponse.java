@@ -16,6 +16,7 @@
 
 package com.couchbase.mock.memcached.client;
 
+import com.couchbase.mock.memcached.protocol.BinaryServerRequest;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
@@ -30,12 +31,14 @@ import java.util.Arrays;
 public class ClientResponse {
     private CommandCode code;
     private ErrorCode status;
+    private byte[] framingExtras;
     private byte[] extras;
     private byte[] key;
     private byte[] value;
     private byte[] body;
     private int opaque;
     private byte opcode;
+    private byte magic;
 
     long cas;
 
@@ -51,6 +54,10 @@ public class ClientResponse {
         return new String(key);
     }
 
+    public byte[] getRawKey() {
+        return key;
+    }
+
     public String getValue() {
         return new String(value);
     }
@@ -63,6 +70,10 @@ public class ClientResponse {
         return extras;
     }
 
+    public byte[] getFramingExtras() {
+        return framingExtras;
+    }
+
     public ErrorCode getStatus() {
         return status;
     }
@@ -77,6 +88,13 @@ public class ClientResponse {
 
     public boolean success() { return status == ErrorCode.SUCCESS; }
 
+    /**
+     * @return true if this is a request sent by the server (rather than a response)
+     */
+    public boolean isServerRequest() {
+        return magic == BinaryServerRequest.REQUEST_MAGIC;
+    }
+
 
     public static ClientResponse read(InputStream input) throws IOException {
         byte[] header = new byte[24];
@@ -96,15 +114,23 @@ public class ClientResponse {
 
         ByteBuffer buf = ByteBuffer.wrap(header);
         byte magic = buf.get();
-        if (magic != (byte)0x81) {
+        if (magic != (byte)0x81 && magic != (byte)0x18 && magic != BinaryServerRequest.REQUEST_MAGIC) {
             throw new IOException("Illegal magic: " + magic);
         }
 
         ClientResponse ret = new ClientResponse();
+        ret.magic = magic;
         ret.opcode = buf.get();
         ret.code = CommandCode.valueOf(ret.opcode);
 
-        short keylen = buf.getShort();
+        int framelen = 0;
+        int keylen;
+        if (magic == (byte)0x18) {
+            framelen = buf.get() & 0xff;
+            keylen = buf.get() & 0xff;
+        } else {
+            keylen = buf.getShort();
+        }
         byte extlen = buf.get();
         buf.get(); // ignore datatype
 
@@ -123,9 +149,10 @@ public class ClientResponse {
             remaining -= nr;
         }
 
-        ret.extras = Arrays.copyOfRange(ret.body, 0, extlen);
-        ret.key = Arrays.copyOfRange(ret.body, extlen, extlen + keylen);
-        ret.value = Arrays.copyOfRange(ret.body, extlen + keylen, ret.body.length);
+        ret.framingExtras = Arrays.copyOfRange(ret.body, 0, framelen);
+        ret.extras = Arrays.copyOfRange(ret.body, framelen, framelen + extlen);
+        ret.key = Arrays.copyOfRange(ret.body, framelen + extlen, framelen + extlen + keylen);
+        ret.value = Arrays.copyOfRange(ret.body, framelen + extlen + keylen, ret.body.length);
         return ret;
     }
 }
@@ -87,7 +87,11 @@ public class CommandBuilder {
     }
 
     public CommandBuilder key(String key, short vbucket) {
-        this.key = key.getBytes();
+        return key(key.getBytes(), vbucket);
+    }
+
+    public CommandBuilder key(byte[] key, short vbucket) {
+        this.key = key;
         this.vbucket = vbucket;
         return this;
     }
@@ -23,32 +23,59 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
 
 /**
  * Created by mnunberg on 1/15/14.
  */
 public class MemcachedClient {
     final Socket socket;
+    final ByteChannel channel;
     final InputStream input;
     final OutputStream output;
 
     public MemcachedClient(Socket socket) throws IOException {
         this.socket = socket;
+        this.channel = null;
         this.input = socket.getInputStream();
         this.output = socket.getOutputStream();
     }
 
+    /**
+     * Create a client talking over a channel, such as a Unix domain socket
+     * or an in-process connection
+     *
+     * @param channel The (blocking) channel connected to the server
+     */
+    public MemcachedClient(ByteChannel channel) {
+        this.socket = null;
+        this.channel = channel;
+        this.input = Channels.newInputStream(channel);
+        this.output = Channels.newOutputStream(channel);
+    }
+
     public ClientResponse readResponse() throws IOException {
         return ClientResponse.read(input);
     }
 
     public ClientResponse sendRequest(byte[] req) throws IOException {
+        send(req);
+        return readResponse();
+    }
+
+    /**
+     * Send a request without waiting for its response (use {@link #readResponse()} to get it)
+     *
+     * @param req The request
+     * @throws IOException If an error occurs while writing
+     */
+    public void send(byte[] req) throws IOException {
         if (req.length < 24) {
             throw new IllegalArgumentException("Header too small..");
         }
         output.write(req);
         output.flush();
-        return readResponse();
     }
 
     public ClientResponse sendRequest(CommandBuilder builder) throws IOException {
@@ -56,12 +83,24 @@ public class MemcachedClient {
     }
 
     public void close() throws IOException  {
-        socket.close();
+        if (socket != null) {
+            socket.close();
+        } else {
+            channel.close();
+        }
         input.close();
         output.close();
     }
 
+    /**
+     * @param server The server the client is connected to
+     * @return the server side of the connection (or null if this client
+     *         does not use a TCP socket)
+     */
     public MemcachedConnection getConnection(MemcachedServer server) throws IOException {
+        if (socket == null) {
+            return null;
+        }
         return server.findConnection(socket.getLocalSocketAddress());
     }
 }
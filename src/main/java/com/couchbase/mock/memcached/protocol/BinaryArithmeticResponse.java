@@ -27,10 +27,11 @@ public class BinaryArithmeticResponse extends BinaryResponse {
         super(command, ErrorCode.SUCCESS, Datatype.RAW.value(), miw.extrasLength(), 0, 8, cas);
 
         if (miw.extrasLength() != 0) {
+            buffer.position(getBodyOffset());
             miw.write(buffer, ms.getCoords());
         }
 
-        buffer.putLong(24 + miw.extrasLength(), val);
+        buffer.putLong(getBodyOffset() + miw.extrasLength(), val);
         buffer.rewind();
     }
 }
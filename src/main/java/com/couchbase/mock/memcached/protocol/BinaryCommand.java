@@ -15,6 +15,7 @@
  */
 package com.couchbase.mock.memcached.protocol;
 
+import com.couchbase.mock.memcached.BufferPool;
 import com.couchbase.mock.memcached.KeySpec;
 
 import java.net.ProtocolException;
@@ -26,6 +27,7 @@ import java.util.UUID;
  */
 public class BinaryCommand {
 
+    private final byte magic;
     private final CommandCode cc;
     protected final short keyLength;
     protected final byte extraLength;
@@ -35,12 +37,14 @@ public class BinaryCommand {
     protected final int bodyLength;
     private final int opaque;
     final long cas;
-    final ByteBuffer bodyBuffer;
+    ByteBuffer bodyBuffer;
+    private BufferPool pool;
     private String eventId;
+    private boolean traced;
 
     BinaryCommand(ByteBuffer header) throws ProtocolException {
         header.rewind();
-        header.get(); // magic already validated
+        magic = header.get(); // already validated
         opcode = header.get();
         cc = CommandCode.valueOf(opcode);
         keyLength = header.getShort();
@@ -50,17 +54,48 @@ public class BinaryCommand {
         bodyLength = header.getInt();
         opaque = header.getInt();
         cas = header.getLong();
+        bodyBuffer = null;
+    }
+
+    /**
+     * Allocate the buffer the body is to be read into
+     *
+     * @param pool The pool to borrow the buffer from (may be null)
+     */
+    void allocateBody(BufferPool pool) {
         if (bodyLength > 0) {
-            bodyBuffer = ByteBuffer.allocate(bodyLength);
-        } else {
-            bodyBuffer = null;
+            this.pool = pool;
+            if (pool == null) {
+                bodyBuffer = ByteBuffer.allocate(bodyLength);
+            } else {
+                bodyBuffer = pool.allocate(bodyLength);
+            }
+        }
+    }
+
+    /**
+     * Return the body buffer to the pool it was borrowed from. The command
+     * and any slice obtained from it may no longer be used after this call.
+     */
+    public void release() {
+        if (pool != null && bodyBuffer != null) {
+            pool.release(bodyBuffer);
         }
+        bodyBuffer = null;
+        pool = null;
     }
 
     public ByteBuffer getInputBuffer() {
         return bodyBuffer;
     }
 
+    /**
+     * @return true if this is a client's reply to a request sent by the server
+     */
+    public boolean isServerResponse() {
+        return magic == BinaryServerRequest.RESPONSE_MAGIC;
+    }
+
     public CommandCode getComCode() {
         return cc;
     }
@@ -88,12 +123,54 @@ public class BinaryCommand {
     }
 
     public KeySpec getKeySpec() {
-        return new KeySpec(getKey(), vbucket);
+        if (keyLength == 0) {
+            return new KeySpec((String) null, vbucket);
+        }
+        return new KeySpec(bodyBuffer.array(), extraLength, keyLength, vbucket);
+    }
+
+    /**
+     * Get a view of the key. The content is shared with the command and is only
+     * valid until the command is released.
+     *
+     * @return a buffer positioned at the start of the key, or null if there is no key
+     */
+    public ByteBuffer getKeySlice() {
+        if (keyLength == 0) {
+            return null;
+        }
+        return slice(extraLength, keyLength);
+    }
+
+    public int getValueLength() {
+        return bodyLength - extraLength - keyLength;
+    }
+
+    /**
+     * Get a view of the value. The content is shared with the command and is only
+     * valid until the command is released; use {@link #getValue()} to keep the bytes.
+     *
+     * @return a buffer positioned at the start of the value
+     */
+    public ByteBuffer getValueSlice() {
+        if (bodyBuffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+        return slice(extraLength + keyLength, getValueLength());
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer ret = bodyBuffer.duplicate();
+        ret.limit(offset + length);
+        ret.position(offset);
+        return ret.slice();
     }
 
     public byte[] getValue() {
-        byte ret[] = new byte[bodyLength - extraLength - keyLength];
-        System.arraycopy(bodyBuffer.array(), extraLength + keyLength, ret, 0, ret.length);
+        byte ret[] = new byte[getValueLength()];
+        if (ret.length > 0) {
+            System.arraycopy(bodyBuffer.array(), extraLength + keyLength, ret, 0, ret.length);
+        }
         return ret;
     }
 
@@ -117,4 +194,18 @@ public class BinaryCommand {
     public void generateEventId() {
         this.eventId = UUID.randomUUID().toString();
     }
+
+    /**
+     * Mark the command as traced. Responses created for a traced command
+     * reserve room for the server duration in their framing extras.
+     *
+     * @param traced Whether the client negotiated tracing
+     */
+    public void setTraced(boolean traced) {
+        this.traced = traced;
+    }
+
+    public boolean isTraced() {
+        return traced;
+    }
 }
@@ -47,17 +47,28 @@ public class BinaryConfigResponse extends BinaryResponse {
             return new BinaryResponse(command, errNotSupp);
         }
 
-        String config = server.getBucket().getJSON();
-        config = config.replaceAll(Pattern.quote(server.getHostname()),
-                                   Matcher.quoteReplacement("$HOST"));
-
-        byte[] jsBytes = config.getBytes();
+        byte[] jsBytes = getConfig(server);
         ByteBuffer buf = create(command, errOk, Datatype.RAW.value(), 0, 0, jsBytes.length, 0);
         buf.put(jsBytes);
         buf.rewind();
         return new BinaryResponse(buf);
     }
 
+    /**
+     * Get the configuration of the bucket of a server the way it is sent
+     * over its memcached port (i.e. with its own address replaced by
+     * {@code $HOST})
+     *
+     * @param server The server
+     * @return the JSON configuration
+     */
+    public static byte[] getConfig(MemcachedServer server) {
+        String config = server.getBucket().getJSON();
+        config = config.replaceAll(Pattern.quote(server.getHostname()),
+                                   Matcher.quoteReplacement("$HOST"));
+        return config.getBytes();
+    }
+
     /**
      * Creates a response for {@code CMD_GET_CONFIG}
      * @param command The command received
@@ -32,7 +32,7 @@ public class BinaryGetErrmapCommand extends BinaryCommand {
     @Override
     public void process() {
         // Get 16 bit version number
-        ByteBuffer bb = ByteBuffer.wrap(getValue());
+        ByteBuffer bb = getValueSlice();
         version = bb.getShort();
     }
 
@@ -22,7 +22,7 @@ package com.couchbase.mock.memcached.protocol;
 public class BinaryGetErrmapResponse extends BinaryResponse {
     public BinaryGetErrmapResponse(BinaryCommand cmd, String errmap) {
         super(cmd, ErrorCode.SUCCESS, Datatype.RAW.value(), 0, 0, errmap.length(), 0);
-        buffer.position(24);
+        buffer.position(getBodyOffset());
         buffer.put(errmap.getBytes());
         buffer.rewind();
     }
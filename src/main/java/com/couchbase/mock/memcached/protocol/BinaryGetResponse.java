@@ -52,12 +52,12 @@ public class BinaryGetResponse extends BinaryResponse {
             case GETK:
             case GETKQ:
             case GET_REPLICA:
-                keyBytes = command.getKey().getBytes();
-                keySize = command.getKey().length();
+                keyBytes = command.getKeySpec().getKeyBytes();
+                keySize = keyBytes.length;
                 break;
             case GET_RANDOM:
-                keyBytes = item.getKeySpec().key.getBytes();
-                keySize = item.getKeySpec().key.length();
+                keyBytes = item.getKeySpec().getKeyBytes();
+                keySize = keyBytes.length;
                 break;
             default:
                 keySize = 0;
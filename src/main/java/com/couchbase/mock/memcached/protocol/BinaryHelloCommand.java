@@ -37,7 +37,7 @@ public class BinaryHelloCommand extends BinaryCommand {
             return;
         }
 
-        ByteBuffer bb = ByteBuffer.wrap(getValue());
+        ByteBuffer bb = getValueSlice();
         while (bb.hasRemaining()) {
             int feature = bb.getShort();
             if (feature < 0 || feature > Feature.MAX.value - 1) {
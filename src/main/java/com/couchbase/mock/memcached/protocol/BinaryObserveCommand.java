@@ -58,10 +58,11 @@ public class BinaryObserveCommand extends BinaryCommand {
             try {
                 short vb = bodyBuffer.getShort();
                 short keyLength = bodyBuffer.getShort();
-                byte[] keyBuffer = new byte[keyLength];
-                bodyBuffer.get(keyBuffer);
-                String key = new String(keyBuffer);
-                KeySpec ks = new KeySpec(key, vb);
+                if (keyLength < 0 || keyLength > bodyBuffer.remaining()) {
+                    throw new ProtocolException();
+                }
+                KeySpec ks = new KeySpec(bodyBuffer.array(), bodyBuffer.position(), keyLength, vb);
+                bodyBuffer.position(bodyBuffer.position() + keyLength);
                 keySpecs.add(ks);
 
             } catch (BufferUnderflowException e) {
@@ -31,10 +31,10 @@ public class BinaryObserveSeqnoResponse extends BinaryResponse {
 
     static final int REPLY_LENGTH_NORMAL = 27;
     static final int REPLY_LENGTH_FAILOVER = REPLY_LENGTH_NORMAL + 16;
-    static final int COMMON_OFFSET = 25;
+    static final int COMMON_OFFSET = 1;
 
     private void writeInfoCommon(short vbid, long uuid, long seqCache, long seqDisk) {
-        buffer.position(COMMON_OFFSET);
+        buffer.position(getBodyOffset() + COMMON_OFFSET);
         buffer.putShort(vbid);
         buffer.putLong(uuid);
         buffer.putLong(seqDisk);
@@ -49,7 +49,7 @@ public class BinaryObserveSeqnoResponse extends BinaryResponse {
      */
     public BinaryObserveSeqnoResponse(BinaryObserveSeqnoCommand cmd, long seqCache, long seqDisk) {
         super(cmd, ErrorCode.SUCCESS, Datatype.RAW.value(), 0, 0, REPLY_LENGTH_NORMAL, 0);
-        buffer.put(24, (byte) 0x00);
+        buffer.put(getBodyOffset(), (byte) 0x00);
         writeInfoCommon(cmd.getVBucketId(), cmd.getUuid(), seqCache, seqDisk);
         buffer.rewind();
     }
@@ -66,7 +66,7 @@ public class BinaryObserveSeqnoResponse extends BinaryResponse {
             BinaryObserveSeqnoCommand cmd, VBucketCoordinates coordCur, VBucketCoordinates coordOld, long seqDisk) {
 
         super(cmd, ErrorCode.SUCCESS, Datatype.RAW.value(), 0, 0, REPLY_LENGTH_FAILOVER, 0);
-        buffer.put(24, (byte)0x01);
+        buffer.put(getBodyOffset(), (byte)0x01);
 
         writeInfoCommon(cmd.getVBucketId(), coordCur.getUuid(), coordCur.getSeqno(), seqDisk);
         buffer.putLong(coordOld.getUuid());
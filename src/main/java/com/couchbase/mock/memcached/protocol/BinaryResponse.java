@@ -28,6 +28,10 @@ import java.nio.ByteBuffer;
 public class BinaryResponse {
     public static final byte MAGIC = (byte) 0x81;
     public static final byte ALT_MAGIC = (byte) 0x18;
+    /** Framing extras of a traced response: frame id 0x02 (length 2) and the encoded duration */
+    static final int TRACING_FRAME_LENGTH = 3;
+    private static final byte TRACING_FRAME_ID = 0x02;
+    private static final long MAX_TRACING_MICROS = 120125042;
     ByteBuffer buffer;
 
     BinaryResponse(final ByteBuffer buffer) {
@@ -53,7 +57,7 @@ public class BinaryResponse {
             buffer = create(command, errorCode,  Datatype.RAW.value(), 0, 0, value.length, 0);
             buffer.position(5);
             buffer.put(Datatype.JSON.value());
-            buffer.position(24);
+            buffer.position(getBodyOffset());
             buffer.put(value);
             buffer.rewind();
         } else {
@@ -77,7 +81,7 @@ public class BinaryResponse {
         int vallen = value == null ? 0 : value.length;
         BinaryResponse resp = new BinaryResponse(command, ec, datatype,0,  0, vallen, cas);
         if (vallen > 0) {
-            resp.buffer.position(24);
+            resp.buffer.position(resp.getBodyOffset());
             resp.buffer.put(value);
         }
         resp.buffer.rewind();
@@ -97,12 +101,12 @@ public class BinaryResponse {
         }
 
         buffer = createAndRewind(command, ms.getStatus(), datatype, extlen, 0, valLen, cas);
-        buffer.position(24);
+        buffer.position(getBodyOffset());
         if (shouldWrite && extlen != 0) {
             miw.write(buffer, ms.getCoords());
         }
         if (value != null) {
-            buffer.position(extlen + 24);
+            buffer.position(getBodyOffset() + extlen);
             buffer.put(value);
         }
         buffer.rewind();
@@ -114,20 +118,64 @@ public class BinaryResponse {
         return message;
     }
 
+    /**
+     * Allocate a response and fill in its header. The returned buffer is
+     * positioned at the start of the extras. If the command is traced, the
+     * header uses the alternative format and the buffer starts with framing
+     * extras holding a placeholder for the server duration (see
+     * {@link #setServerDuration(long)}).
+     */
     static ByteBuffer create(BinaryCommand command, ErrorCode errorCode, byte datatype, int extraLength, int keyLength, int dataLength, long cas) {
-        ByteBuffer message = ByteBuffer.allocate(24 + extraLength + keyLength + dataLength);
-           message.put(MAGIC);
-           message.put(command.getOpcode());
-           message.putShort((short)keyLength);
-           message.put((byte)extraLength);
-           message.put(datatype);
-           message.putShort(errorCode.value());
-           message.putInt(dataLength + keyLength + extraLength);
-           message.putInt(command.getOpaque());
-           message.putLong(cas);
+        int framingLength = command.isTraced() ? TRACING_FRAME_LENGTH : 0;
+        ByteBuffer message = ByteBuffer.allocate(24 + framingLength + extraLength + keyLength + dataLength);
+        if (framingLength == 0) {
+            message.put(MAGIC);
+            message.put(command.getOpcode());
+            message.putShort((short)keyLength);
+        } else {
+            message.put(ALT_MAGIC);
+            message.put(command.getOpcode());
+            message.put((byte)framingLength);
+            message.put((byte)keyLength);
+        }
+        message.put((byte)extraLength);
+        message.put(datatype);
+        message.putShort(errorCode.value());
+        message.putInt(framingLength + dataLength + keyLength + extraLength);
+        message.putInt(command.getOpaque());
+        message.putLong(cas);
+        if (framingLength != 0) {
+            message.put(TRACING_FRAME_ID);
+            message.putShort((short) 0);
+        }
         return message;
     }
 
+    /**
+     * Get the offset of the extras (i.e. the size of the header and any framing extras)
+     * @return the offset into the buffer
+     */
+    int getBodyOffset() {
+        if (buffer.get(0) == ALT_MAGIC) {
+            return 24 + buffer.get(2);
+        }
+        return 24;
+    }
+
+    /**
+     * Store the time spent executing the command in the framing extras. This
+     * does nothing unless the response was created for a traced command.
+     *
+     * @param nanos The time spent by the server, in nanoseconds
+     */
+    public void setServerDuration(long nanos) {
+        if (buffer.get(0) != ALT_MAGIC || buffer.get(2) < TRACING_FRAME_LENGTH || buffer.get(24) != TRACING_FRAME_ID) {
+            return;
+        }
+        long micros = Math.min(nanos / 1000, MAX_TRACING_MICROS);
+        buffer.putShort(25, (short) Math.round(Math.pow(micros * 2, 1.0 / 1.74)));
+    }
+
     public ErrorCode getErrorCode() {
         return ErrorCode.valueOf(buffer.getShort(6));
     }
@@ -27,7 +27,8 @@ import java.nio.ByteBuffer;
 public class BinarySelectBucketCommand extends BinaryCommand {
     public BinarySelectBucketCommand(ByteBuffer header) throws ProtocolException {
         super(header);
-        if (getKey() == null || getKey().isEmpty()) {
+        // The body has not been read yet, so only the length can be checked here
+        if (keyLength == 0) {
             throw new ProtocolException("Key must not be empty");
         }
     }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Requests initiated by the server, sent to clients which negotiated the
+ * {@code DUPLEX} feature. The client replies with a packet carrying the
+ * {@link #RESPONSE_MAGIC} (which the server ignores).
+ */
+public class BinaryServerRequest {
+    public static final byte REQUEST_MAGIC = (byte) 0x82;
+    public static final byte RESPONSE_MAGIC = (byte) 0x83;
+    public static final byte CLUSTERMAP_CHANGE_NOTIFICATION = (byte) 0x01;
+
+    /**
+     * Create a notification telling the client that the cluster map changed
+     *
+     * @param bucket The name of the bucket
+     * @param revision The revision of the new configuration
+     * @param config The configuration (JSON)
+     * @return the packet, ready to be sent
+     */
+    public static ByteBuffer createClusterMapNotification(String bucket, int revision, byte[] config) {
+        byte[] key = bucket.getBytes();
+        ByteBuffer message = ByteBuffer.allocate(24 + 4 + key.length + config.length);
+        message.put(REQUEST_MAGIC);
+        message.put(CLUSTERMAP_CHANGE_NOTIFICATION);
+        message.putShort((short) key.length);
+        message.put((byte) 4);
+        message.put(Datatype.JSON.value());
+        message.putShort((short) 0);
+        message.putInt(4 + key.length + config.length);
+        message.putInt(0);
+        message.putLong(0);
+        message.putInt(revision);
+        message.put(key);
+        message.put(config);
+        message.rewind();
+        return message;
+    }
+
+    private BinaryServerRequest() {
+    }
+}
@@ -37,7 +37,7 @@ public class BinaryStoreCommand extends BinaryCommand {
             flags = bodyBuffer.getInt(0);
             expiryTime = bodyBuffer.getInt(4);
         }
-        byte[] value = getValue();
+        byte[] value;
         byte datatype = this.datatype;
         if ((datatype & Datatype.SNAPPY.value()) > 0) {
             if (snappyMode == CompressionMode.DISABLED) {
@@ -46,8 +46,11 @@ public class BinaryStoreCommand extends BinaryCommand {
                 if (snappyMode == CompressionMode.OFF) {
                     datatype &= ~Datatype.SNAPPY.value();
                 }
-                value = Snappy.uncompress(value, 0, value.length);
+                // Decompress straight out of the body, no need to copy it first
+                value = Snappy.uncompress(bodyBuffer.array(), bodyBuffer.arrayOffset() + extraLength + keyLength, getValueLength());
             }
+        } else {
+            value = getValue();
         }
 
         return new Item(getKeySpec(), flags, expiryTime, value, null, cas, datatype);
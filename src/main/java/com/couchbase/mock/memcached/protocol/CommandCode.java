@@ -57,6 +57,20 @@ public enum CommandCode {
 
 
     private final int value;
+    private boolean quiet;
+
+    // Every possible opcode byte mapped to its command (or ILLEGAL)
+    private static final CommandCode[] byOpcode = new CommandCode[256];
+
+    static {
+        for (int ii = 0; ii < byOpcode.length; ii++) {
+            byOpcode[ii] = decode(ii);
+        }
+        for (CommandCode cc : new CommandCode[]{GETQ, GETKQ, GATQ, SETQ, ADDQ, REPLACEQ, DELETEQ,
+                INCREMENTQ, DECREMENTQ, QUITQ, FLUSHQ, APPENDQ, PREPENDQ}) {
+            cc.quiet = true;
+        }
+    }
 
     CommandCode(int value) {
         this.value = value;
@@ -66,11 +80,26 @@ public enum CommandCode {
         return value;
     }
 
+    /**
+     * @return true if this is the quiet variant of a command (which only
+     *         responds on failure, or not at all)
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
     public static CommandCode valueOf(byte cc) {
-        return valueOf((int)cc & 0xff);
+        return byOpcode[cc & 0xff];
     }
 
     public static CommandCode valueOf(int cc) {
+        if (cc < 0 || cc >= byOpcode.length) {
+            return ILLEGAL;
+        }
+        return byOpcode[cc];
+    }
+
+    private static CommandCode decode(int cc) {
         switch (cc) {
             case 0x00:
                 return GET;
@@ -15,6 +15,8 @@
  */
 package com.couchbase.mock.memcached.protocol;
 
+import com.couchbase.mock.memcached.BufferPool;
+
 import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 
@@ -25,78 +27,144 @@ import java.nio.ByteBuffer;
  */
 public class CommandFactory {
     public static BinaryCommand create(ByteBuffer header) throws ProtocolException {
-        header.rewind();
-        if (header.get() != (byte) 0x80) {
-            // create a better one... this is an illegal command
-            throw new ProtocolException("Illegal magic: " + header.get(0));
+        return create(header, null);
+    }
+
+    /**
+     * Create a command from its header
+     *
+     * @param header The 24 byte request header
+     * @param pool The pool to borrow the body buffer from (null to allocate it)
+     * @return The command, ready to receive its body
+     * @throws ProtocolException if the header is invalid
+     */
+    public static BinaryCommand create(ByteBuffer header, BufferPool pool) throws ProtocolException {
+        BinaryCommand command = newCommand(header);
+        command.allocateBody(pool);
+        return command;
+    }
+
+    /**
+     * Creates the command object for a given opcode
+     */
+    private interface Creator {
+        BinaryCommand create(ByteBuffer header) throws ProtocolException;
+    }
+
+    // The creator for every possible opcode byte
+    private static final Creator[] creators = new Creator[256];
+
+    private static void register(Creator creator, CommandCode... codes) {
+        for (CommandCode cc : codes) {
+            creators[cc.cc()] = creator;
         }
+    }
 
-        CommandCode cc = CommandCode.valueOf(header.get());
-        header.rewind();
-        switch (cc) {
-            case ADD:
-            case ADDQ:
-            case APPEND:
-            case APPENDQ:
-            case PREPEND:
-            case PREPENDQ:
-            case SET:
-            case SETQ:
-            case REPLACE:
-            case REPLACEQ:
+    static {
+        Creator generic = new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
+                return new BinaryCommand(header);
+            }
+        };
+        for (int ii = 0; ii < creators.length; ii++) {
+            creators[ii] = generic;
+        }
+
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryStoreCommand(header);
+            }
+        }, CommandCode.ADD, CommandCode.ADDQ, CommandCode.APPEND, CommandCode.APPENDQ,
+                CommandCode.PREPEND, CommandCode.PREPENDQ, CommandCode.SET, CommandCode.SETQ,
+                CommandCode.REPLACE, CommandCode.REPLACEQ);
 
-            case INCREMENT:
-            case INCREMENTQ:
-            case DECREMENT:
-            case DECREMENTQ:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryArithmeticCommand(header);
+            }
+        }, CommandCode.INCREMENT, CommandCode.INCREMENTQ, CommandCode.DECREMENT, CommandCode.DECREMENTQ);
 
-            case GET:
-            case GETQ:
-            case GETK:
-            case GETKQ:
-            case GAT:
-            case GATQ:
-            case TOUCH:
-            case GETL:
-            case GET_REPLICA:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryGetCommand(header);
+            }
+        }, CommandCode.GET, CommandCode.GETQ, CommandCode.GETK, CommandCode.GETKQ, CommandCode.GAT,
+                CommandCode.GATQ, CommandCode.TOUCH, CommandCode.GETL, CommandCode.GET_REPLICA);
 
-            case OBSERVE:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryObserveCommand(header);
+            }
+        }, CommandCode.OBSERVE);
 
-            case HELLO:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryHelloCommand(header);
+            }
+        }, CommandCode.HELLO);
 
-            case OBSERVE_SEQNO:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryObserveSeqnoCommand(header);
+            }
+        }, CommandCode.OBSERVE_SEQNO);
 
-            case SUBDOC_EXISTS:
-            case SUBDOC_GET:
-            case SUBDOC_GET_COUNT:
-            case SUBDOC_COUNTER:
-            case SUBDOC_ARRAY_ADD_UNIQUE:
-            case SUBDOC_ARRAY_INSERT:
-            case SUBDOC_ARRAY_PUSH_FIRST:
-            case SUBDOC_ARRAY_PUSH_LAST:
-            case SUBDOC_DELETE:
-            case SUBDOC_REPLACE:
-            case SUBDOC_DICT_ADD:
-            case SUBDOC_DICT_UPSERT:
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinarySubdocCommand(header);
-            case SUBDOC_MULTI_LOOKUP:
+            }
+        }, CommandCode.SUBDOC_EXISTS, CommandCode.SUBDOC_GET, CommandCode.SUBDOC_GET_COUNT,
+                CommandCode.SUBDOC_COUNTER, CommandCode.SUBDOC_ARRAY_ADD_UNIQUE, CommandCode.SUBDOC_ARRAY_INSERT,
+                CommandCode.SUBDOC_ARRAY_PUSH_FIRST, CommandCode.SUBDOC_ARRAY_PUSH_LAST, CommandCode.SUBDOC_DELETE,
+                CommandCode.SUBDOC_REPLACE, CommandCode.SUBDOC_DICT_ADD, CommandCode.SUBDOC_DICT_UPSERT);
+
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinarySubdocMultiLookupCommand(header);
-            case SUBDOC_MULTI_MUTATION:
+            }
+        }, CommandCode.SUBDOC_MULTI_LOOKUP);
+
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinarySubdocMultiMutationCommand(header);
-            case GET_ERRMAP:
+            }
+        }, CommandCode.SUBDOC_MULTI_MUTATION);
+
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinaryGetErrmapCommand(header);
-            case SELECT_BUCKET:
+            }
+        }, CommandCode.GET_ERRMAP);
+
+        register(new Creator() {
+            @Override
+            public BinaryCommand create(ByteBuffer header) throws ProtocolException {
                 return new BinarySelectBucketCommand(header);
+            }
+        }, CommandCode.SELECT_BUCKET);
+    }
 
-            default:
-                return new BinaryCommand(header);
+    private static BinaryCommand newCommand(ByteBuffer header) throws ProtocolException {
+        if (header.get(0) == BinaryServerRequest.RESPONSE_MAGIC) {
+            // The opcode is that of the server request being replied to
+            return new BinaryCommand(header);
+        }
+        if (header.get(0) != (byte) 0x80) {
+            // create a better one... this is an illegal command
+            throw new ProtocolException("Illegal magic: " + header.get(0));
         }
+        return creators[header.get(1) & 0xff].create(header);
     }
 
     private CommandFactory() {
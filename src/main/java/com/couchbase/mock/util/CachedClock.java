@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+/**
+ * A clock which reads the system clock once per tick, on a daemon thread of
+ * its own. Reading it costs a volatile read; the time it tells is behind
+ * by at most one tick.
+ */
+public class CachedClock extends Clock {
+    public static final long DEFAULT_TICK = 10;
+
+    private volatile long millis;
+    private volatile long seconds;
+    private final Thread thread;
+
+    /**
+     * @param tick The time between two updates, in milliseconds
+     */
+    public CachedClock(final long tick) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick must be > 0");
+        }
+        update();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(tick);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    update();
+                }
+            }
+        }, "Clock");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the thread updating the clock. The clock keeps telling the time
+     * of its last tick.
+     */
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void update() {
+        long now = System.currentTimeMillis();
+        millis = now;
+        seconds = now / 1000;
+    }
+
+    @Override
+    public long getWallMillis() {
+        return millis;
+    }
+
+    @Override
+    public long getWallSeconds() {
+        return seconds;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+import com.couchbase.mock.Info;
+
+/**
+ * The clock the items of the cluster are timed with (for expiry and locks).
+ *
+ * Reading the system clock (and allocating a {@link java.util.Date}) on every
+ * lookup adds up under heavy load, so the default clock is a
+ * {@link CachedClock} which reads the system clock once per tick. Tests may
+ * swap in a {@link ManualClock} to move time forward deterministically.
+ *
+ * The time of the cluster is the time of the clock plus the offset the
+ * cluster travelled in time by (see {@link Info#timeTravel(long)}); it is
+ * applied on every read, so that a time travel takes effect right away.
+ */
+public abstract class Clock {
+    private static volatile Clock instance = new CachedClock(CachedClock.DEFAULT_TICK);
+
+    /**
+     * @return the clock used by the cluster
+     */
+    public static Clock getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replace the clock used by the cluster
+     *
+     * @param clock The new clock
+     * @return the clock which was used so far
+     */
+    public static Clock setInstance(Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock may not be null");
+        }
+        Clock old = instance;
+        instance = clock;
+        return old;
+    }
+
+    /**
+     * @return the time of the clock, in milliseconds since the epoch, ignoring any time travel
+     */
+    public abstract long getWallMillis();
+
+    /**
+     * @return the time of the clock, in seconds since the epoch, ignoring any time travel
+     */
+    public abstract long getWallSeconds();
+
+    /**
+     * @return the time of the cluster, in milliseconds since the epoch
+     */
+    public long getMillis() {
+        return getWallMillis() + Info.getClockOffset() * 1000L;
+    }
+
+    /**
+     * @return the time of the cluster, in seconds since the epoch
+     */
+    public long getSeconds() {
+        return getWallSeconds() + Info.getClockOffset();
+    }
+}
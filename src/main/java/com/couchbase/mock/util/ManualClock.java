@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+/**
+ * A clock which only moves when it is told to, for tests
+ */
+public class ManualClock extends Clock {
+    private volatile long millis;
+
+    /**
+     * @param millis The time to start at, in milliseconds since the epoch
+     */
+    public ManualClock(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Start at the current time of the system clock
+     */
+    public ManualClock() {
+        this(System.currentTimeMillis());
+    }
+
+    public void setWallMillis(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Move the clock forward
+     *
+     * @param millis The number of milliseconds to move by
+     */
+    public synchronized void advance(long millis) {
+        this.millis += millis;
+    }
+
+    @Override
+    public long getWallMillis() {
+        return millis;
+    }
+
+    @Override
+    public long getWallSeconds() {
+        return millis / 1000;
+    }
+}
@@ -17,12 +17,14 @@
 package com.couchbase.mock.views;
 
 import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.ValueFreedException;
 import com.couchbase.mock.util.ReaderUtils;
 import org.mozilla.javascript.BoundFunction;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.WrappedException;
 
 import java.io.IOException;
 
@@ -79,7 +81,14 @@ public class Indexer {
         Object args[] = new Object[] { null, mapFunction };
         for (Item item : items) {
             args[0] = item;
-            indexFunction.call(cx, scope, indexResults, args);
+            try {
+                indexFunction.call(cx, scope, indexResults, args);
+            } catch (WrappedException ex) {
+                // Leave out the items replaced or removed since the list was made
+                if (!(ex.getWrappedException() instanceof ValueFreedException)) {
+                    throw ex;
+                }
+            }
         }
 
         Function doneFunc = (Function) indexResults.getPrototype().get("setDone", indexResults);
@@ -124,7 +124,7 @@ Index.prototype.setDone = function() {
 Index.prototype.indexDoc = function(item, mapFunc) {
   // Check if UTF8
   var metaArg = {
-    id: item.getKeySpec().key + "",
+    id: item.getKeySpec().getKey() + "",
     rev: item.getCas()
   };
 
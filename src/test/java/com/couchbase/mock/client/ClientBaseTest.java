@@ -52,6 +52,8 @@ public abstract class ClientBaseTest extends TestCase {
     protected final BucketConfiguration bucketConfiguration = new BucketConfiguration();
     protected MockClient mockClient;
     protected CouchbaseMock couchbaseMock;
+    // The number of threads executing commands out of order (0 for none)
+    protected int workerThreads = 0;
 
     protected final CouchbaseConnectionFactoryBuilder cfb = new CouchbaseConnectionFactoryBuilder();
     protected CouchbaseClient client;
@@ -109,6 +111,7 @@ public abstract class ClientBaseTest extends TestCase {
         ArrayList<BucketConfiguration> configList = new ArrayList<BucketConfiguration>();
         configList.add(bucketConfiguration);
         couchbaseMock = new CouchbaseMock(0, configList);
+        couchbaseMock.setWorkerThreads(workerThreads);
         couchbaseMock.start();
         couchbaseMock.waitForStartup();
 
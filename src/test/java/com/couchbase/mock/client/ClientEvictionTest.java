@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests for the memory quota of the nodes, and the eviction of items once it is reached
+ */
+public class ClientEvictionTest extends ClientBaseTest {
+    private static final int QUOTA = 10000;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.memoryQuota = QUOTA;
+        super.setUp();
+    }
+
+    private static String valueOf(int size, char c) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private ClientResponse store(MemcachedClient binClient, String key, short vb, String value) throws Exception {
+        return binClient.sendRequest(CommandBuilder.buildStore(key, vb, value));
+    }
+
+    private ClientResponse get(MemcachedClient binClient, String key, short vb) throws Exception {
+        return binClient.sendRequest(new CommandBuilder(CommandCode.GET).key(key, vb));
+    }
+
+    public void testTemporaryFailure() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        String first = valueOf(6000, 'a');
+        String second = valueOf(6000, 'b');
+
+        assertTrue(store(binClient, "first", vb, first).success());
+        // Doesn't fit; the pager is woken up and makes room
+        assertEquals(ErrorCode.ETMPFAIL, store(binClient, "second", vb, second).getStatus());
+        assertEquals("1", server.getStats("").get("ep_tmp_oom_errors"));
+        assertTrue(store(binClient, "second", vb, second).success());
+        assertEquals("1", server.getStats("").get("ep_num_value_ejects"));
+
+        // The evicted value is read back from disk
+        ClientResponse resp = get(binClient, "first", vb);
+        assertTrue(resp.success());
+        assertEquals(first, resp.getValue());
+        assertEquals("1", server.getStats("").get("ep_bg_fetched"));
+        resp = get(binClient, "second", vb);
+        assertTrue(resp.success());
+        assertEquals(second, resp.getValue());
+    }
+
+    public void testValueEviction() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(store(binClient, "key_" + ii, vb, valueOf(500, (char) ('a' + ii % 26))).success());
+        }
+        Map<String, String> stats = server.getStats("");
+        assertTrue(Long.parseLong(stats.get("mem_used")) <= QUOTA);
+        assertTrue(Long.parseLong(stats.get("ep_num_non_resident")) > 0);
+        assertEquals("100", stats.get("curr_items"));
+        assertTrue(Long.parseLong(stats.get("vb_active_perc_mem_resident")) < 100);
+        assertEquals("value_only", stats.get("ep_item_eviction_policy"));
+        // The metadata stays in memory
+        assertEquals(100, server.getStorage().getPartition(vb).size());
+
+        for (int ii = 0; ii < 100; ii++) {
+            ClientResponse resp = get(binClient, "key_" + ii, vb);
+            assertTrue(resp.success());
+            assertEquals(valueOf(500, (char) ('a' + ii % 26)), resp.getValue());
+        }
+    }
+
+    public void testFullEviction() throws Exception {
+        MemcachedServer server = getServer(0);
+        server.getStorage().setMemoryQuota(QUOTA, Bucket.EvictionPolicy.FULL);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(store(binClient, "key_" + ii, vb, valueOf(500, 'x')).success());
+        }
+        assertTrue(server.getStorage().getPartition(vb).size() < 100);
+        assertEquals("100", server.getStats("").get("curr_items"));
+        assertEquals(server.getStats("").get("ep_num_value_ejects"), server.getStats("").get("ep_num_item_ejects"));
+
+        // Evicted items are fetched back, and can be modified and removed
+        for (int ii = 0; ii < 100; ii++) {
+            ClientResponse resp = get(binClient, "key_" + ii, vb);
+            assertTrue(resp.success());
+            assertEquals(valueOf(500, 'x'), resp.getValue());
+        }
+        for (int ii = 0; ii < 100; ii++) {
+            ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.DELETE).key("key_" + ii, vb));
+            assertTrue(resp.success());
+        }
+        for (int ii = 0; ii < 100; ii++) {
+            assertEquals(ErrorCode.KEY_ENOENT, get(binClient, "key_" + ii, vb).getStatus());
+        }
+        assertEquals("0", server.getStats("").get("curr_items"));
+    }
+
+    public void testExplicitEvict() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        assertTrue(store(binClient, "key", vb, "value").success());
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.EVICT).key("key", vb));
+        assertTrue(resp.success());
+        assertFalse(server.getStorage().getPartition(vb).get(new KeySpec("key", vb)).isResident());
+        assertEquals("value", get(binClient, "key", vb).getValue());
+
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.EVICT).key("missing", vb));
+        assertEquals(ErrorCode.KEY_ENOENT, resp.getStatus());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.Storage;
+
+/**
+ * Tests for the removal of expired items which are never accessed again
+ */
+public class ClientExpiryTest extends ClientBaseTest {
+    private static final int TTL = 5;
+    private int travelled = 0;
+
+    @Override
+    protected void tearDown() throws Exception {
+        // The clock is shared by all the tests
+        if (travelled != 0) {
+            mockClient.request(new TimeTravelRequest(-travelled));
+        }
+        super.tearDown();
+    }
+
+    private void timeTravel(int seconds) throws Exception {
+        assertTrue(mockClient.request(new TimeTravelRequest(seconds)).isOk());
+        travelled += seconds;
+    }
+
+    private long sumStat(String name) {
+        long total = 0;
+        for (MemcachedServer server : couchbaseMock.getBuckets().get(bucketConfiguration.name).getServers()) {
+            total += Long.parseLong(server.getStats("").get(name));
+        }
+        return total;
+    }
+
+    private int countMasterItems() {
+        Bucket bucket = couchbaseMock.getBuckets().get(bucketConfiguration.name);
+        int count = 0;
+        for (Item ignored : bucket.getMasterItems(Storage.StorageType.CACHE)) {
+            count++;
+        }
+        return count;
+    }
+
+    public void testExpiredItemsAreRemoved() throws Exception {
+        for (int ii = 0; ii < 20; ii++) {
+            assertTrue(client.set("expiring_" + ii, TTL, "value").get());
+            assertTrue(client.set("lasting_" + ii, 0, "value").get());
+        }
+        assertEquals(40, sumStat("curr_items"));
+
+        // Nobody reads the items back, yet they are gone
+        timeTravel(TTL * 2);
+        assertEquals(20, sumStat("ep_expired_pager"));
+        assertEquals(0, sumStat("ep_expired_access"));
+        assertEquals(20, sumStat("curr_items"));
+        assertEquals(20, countMasterItems());
+        // Along with their replicas
+        assertEquals(20 * (1 + bucketConfiguration.numReplicas), sumStat("curr_items_tot"));
+
+        for (int ii = 0; ii < 20; ii++) {
+            assertNull(client.get("expiring_" + ii));
+            assertEquals("value", client.get("lasting_" + ii));
+        }
+    }
+
+    public void testModifiedItemsAreKept() throws Exception {
+        assertTrue(client.set("touched", TTL, "value").get());
+        assertTrue(client.set("persistent", TTL, "value").get());
+        assertTrue(client.touch("touched", TTL * 10).get());
+        assertTrue(client.set("persistent", 0, "value").get());
+
+        timeTravel(TTL * 2);
+        assertEquals(0, sumStat("ep_expired_pager"));
+        assertEquals(2, countMasterItems());
+        assertEquals("value", client.get("touched"));
+        assertEquals("value", client.get("persistent"));
+
+        timeTravel(TTL * 10);
+        assertEquals(1, sumStat("ep_expired_pager"));
+        assertNull(client.get("touched"));
+        assertEquals("value", client.get("persistent"));
+    }
+}
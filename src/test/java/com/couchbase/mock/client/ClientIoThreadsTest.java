@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for nodes serving their clients from a number of I/O threads
+ */
+public class ClientIoThreadsTest extends ClientBaseTest {
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.numIoThreads = 4;
+        super.setUp();
+    }
+
+    private List<Short> getVbucketsFor(int index) {
+        MemcachedServer server = getServer(index);
+        VBucketInfo[] vbi = couchbaseMock.getBuckets().get(bucketConfiguration.name).getVBucketInfo();
+        List<Short> ret = new ArrayList<Short>();
+        for (int ii = 0; ii < vbi.length; ii++) {
+            if (vbi[ii].getOwner() == server) {
+                ret.add((short) ii);
+            }
+        }
+        return ret;
+    }
+
+    public void testDedicatedThreads() {
+        for (MemcachedServer server : couchbaseMock.getBuckets().get(bucketConfiguration.name).getServers()) {
+            assertTrue(server.isAlive());
+        }
+    }
+
+    public void testSmartClient() throws Exception {
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(client.set("key_" + ii, "value_" + ii).get());
+        }
+        for (int ii = 0; ii < 100; ii++) {
+            assertEquals("value_" + ii, client.get("key_" + ii));
+        }
+    }
+
+    public void testFindConnection() throws Exception {
+        for (int ii = 0; ii < 8; ii++) {
+            MemcachedClient binClient = getBinClient();
+            // Make sure the connection has been picked up by its I/O thread
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+            assertNotNull(binClient.getConnection(getServer(0)));
+            binClient.close();
+        }
+    }
+
+    public void testConcurrentConnections() throws Exception {
+        final List<Short> vbuckets = getVbucketsFor(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int ii = 0; ii < 8; ii++) {
+            final int id = ii;
+            final MemcachedClient binClient = getBinClient();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int jj = 0; jj < 200; jj++) {
+                            short vb = vbuckets.get(jj % vbuckets.size());
+                            String key = "key_" + id + "_" + jj;
+                            ClientResponse resp = binClient.sendRequest(CommandBuilder.buildStore(key, vb, "value_" + jj));
+                            assertTrue(resp.success());
+                            resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key(key, vb));
+                            assertTrue(resp.success());
+                            assertEquals("value_" + jj, resp.getValue());
+                        }
+                        binClient.close();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
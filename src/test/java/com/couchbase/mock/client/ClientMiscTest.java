@@ -16,14 +16,24 @@
 
 package com.couchbase.mock.client;
 
+import com.couchbase.mock.memcached.MemcachedConnection;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
 import com.couchbase.mock.memcached.client.ClientResponse;
 import com.couchbase.mock.memcached.client.CommandBuilder;
 import com.couchbase.mock.memcached.client.MemcachedClient;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.google.gson.JsonParser;
 import net.spy.memcached.internal.OperationFuture;
 
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
 
 public class ClientMiscTest extends ClientBaseTest {
     public void testUnknownOpcode() throws Exception {
@@ -96,4 +106,164 @@ public class ClientMiscTest extends ClientBaseTest {
         resp = getBinClient().sendRequest(cb);
         assertEquals(ErrorCode.EACCESS, resp.getStatus());
     }
+
+    public void testInlineWrites() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        }
+        MemcachedConnection conn = binClient.getConnection(server);
+        assertNotNull(conn);
+
+        // The server counts a write only after it completed, so the count for
+        // the last response may lag behind the client receiving it
+        for (int i = 0; i < 100 && conn.getInlineWrites() < 10; i++) {
+            Thread.sleep(10);
+        }
+        // Small responses fit in the socket buffer, so they should not have to wait for OP_WRITE
+        assertEquals(10, conn.getInlineWrites());
+        assertEquals(0, conn.getWritesBlocked());
+    }
+
+    public void testTimingStats() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        }
+
+        Map<String, String> stats = server.getStats("timings");
+        assertNotNull(stats);
+        assertTrue(Long.parseLong(stats.get("noop_count")) >= 10);
+        assertTrue(Long.parseLong(stats.get("noop_p99_us")) <= Long.parseLong(stats.get("noop_max_us")));
+        assertFalse(stats.containsKey("observe_count"));
+    }
+
+    public void testVBucketDetails() throws Exception {
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+        MemcachedClient binClient = getBinClient(0);
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("details", vb, "value")).success());
+
+        Map<String, String> stats = server.getStats("vbucket-details " + vb);
+        assertEquals("active", stats.get("vb_" + vb));
+        assertEquals("1", stats.get("vb_" + vb + ":num_items"));
+        assertEquals(Integer.toString("details".length() + "value".length()), stats.get("vb_" + vb + ":ht_item_memory"));
+
+        // Every vBucket is on some node; the ones not held by this node are left out
+        stats = server.getStats("vbucket-details");
+        assertTrue(stats.containsKey("vb_" + vb));
+        VBucketInfo[] map = server.getBucket().getVBucketInfo();
+        for (int other = 0; other < map.length; other++) {
+            VBucketInfo vbi = map[other];
+            boolean held = vbi.getOwner() == server || vbi.getReplicas().contains(server);
+            assertEquals(held, stats.containsKey("vb_" + other));
+        }
+        assertNull(server.getStats("vbucket-details 4096"));
+    }
+
+    public void testBinaryKeys() throws Exception {
+        // Not valid UTF-8; the key must come back exactly as it was sent
+        byte[] key = new byte[]{'k', (byte) 0xff, (byte) 0xc3, 0x00, (byte) 0x80};
+        short vb = findValidVbucket(0);
+        MemcachedClient binClient = getBinClient(0);
+        byte[] req = new CommandBuilder(CommandCode.SET).key(key, vb).value("value".getBytes(), 0).build();
+        assertTrue(binClient.sendRequest(req).success());
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.GETK).key(key, vb));
+        assertTrue(resp.success());
+        assertTrue(Arrays.equals(key, resp.getRawKey()));
+        assertEquals("value", resp.getValue());
+
+        // A different key which decodes to the same (replaced) characters
+        byte[] other = new byte[]{'k', (byte) 0xfe, (byte) 0xc3, 0x00, (byte) 0x80};
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key(other, vb));
+        assertEquals(ErrorCode.KEY_ENOENT, resp.getStatus());
+
+        assertEquals(Integer.toString(key.length + "value".length()),
+                getServer(0).getStats("vbucket-details " + vb).get("vb_" + vb + ":ht_item_memory"));
+    }
+
+    public void testConnectionRegistry() throws Exception {
+        MemcachedServer server = getServer(0);
+        int before = server.getConnectionCount();
+
+        MemcachedClient binClient = getBinClient(0);
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        MemcachedConnection conn = binClient.getConnection(server);
+        assertNotNull(conn);
+        assertEquals(1, conn.getCommandsExecuted());
+        assertEquals(before + 1, server.getConnectionCount());
+        assertEquals(Integer.toString(before + 1), server.getStats("").get("curr_connections"));
+        assertTrue(server.getStats("connections").containsKey(conn.getRemoteAddress().toString()));
+
+        binClient.close();
+        for (int i = 0; i < 100 && server.getConnectionCount() > before; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(before, server.getConnectionCount());
+        assertNull(server.findConnection(conn.getRemoteAddress()));
+    }
+
+    public void testSharedEventLoops() throws Exception {
+        assertNotNull(couchbaseMock.getEventLoopGroup());
+        MemcachedServer[] servers = couchbaseMock.getBuckets().get(bucketConfiguration.name).getServers();
+        for (int ii = 0; ii < servers.length; ii++) {
+            // The nodes are served by the loops of the cluster, not threads of their own
+            assertFalse(servers[ii].isAlive());
+            MemcachedClient binClient = getBinClient(ii);
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+            binClient.close();
+        }
+    }
+
+    public void testOutputBackpressure() throws Exception {
+        MemcachedServer server = getServer(0);
+        server.setOutputWatermarks(256 * 1024, 64 * 1024);
+        short vb = findValidVbucket(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16 * 1024; i++) {
+            sb.append('x');
+        }
+        storeItem("big", vb, sb.toString());
+
+        // Ask for far more data than the socket buffers can hold without reading any of it
+        Socket sock = new Socket();
+        sock.setReceiveBufferSize(64 * 1024);
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        byte[] get = new CommandBuilder(CommandCode.GET).key("big", vb).build();
+        int numRequests = 500;
+        OutputStream out = sock.getOutputStream();
+        for (int i = 0; i < numRequests; i++) {
+            out.write(get);
+        }
+        out.flush();
+
+        for (int i = 0; i < 500 && !"1".equals(server.getStats("").get("io_read_suspended_conns")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("1", server.getStats("").get("io_read_suspended_conns"));
+        assertEquals("1", server.getStats("").get("io_read_suspensions"));
+        // The requests already read are left alone too, rather than all answered at once
+        for (String info : server.getStats("connections").values()) {
+            long pending = new JsonParser().parse(info).getAsJsonObject().get("pending_bytes").getAsLong();
+            assertTrue("Too much output queued: " + pending, pending < 256 * 1024 + 2 * sb.length());
+        }
+
+        // Draining the responses lets the server read from the client again
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        byte[] header = new byte[24];
+        for (int i = 0; i < numRequests; i++) {
+            in.readFully(header);
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            assertEquals(ErrorCode.SUCCESS.value(), bb.getShort(6));
+            in.readFully(new byte[bb.getInt(8)]);
+        }
+        for (int i = 0; i < 100 && !"0".equals(server.getStats("").get("io_read_suspended_conns")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("0", server.getStats("").get("io_read_suspended_conns"));
+        sock.close();
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.SlabAllocator;
+
+import java.util.Map;
+
+/**
+ * Tests for a bucket keeping the values of its items off the heap
+ */
+public class ClientOffHeapTest extends ClientBaseTest {
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.offHeapValues = true;
+        super.setUp();
+    }
+
+    private SlabAllocator getAllocator() {
+        return couchbaseMock.getBuckets().get(bucketConfiguration.name).getValueAllocator();
+    }
+
+    public void testSmartClient() throws Exception {
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(client.set("key_" + ii, "value_" + ii).get());
+        }
+        for (int ii = 0; ii < 100; ii++) {
+            assertEquals("value_" + ii, client.get("key_" + ii));
+        }
+
+        // The persisted and replica copies share the value of the active item
+        assertEquals(100, getAllocator().getNumValues());
+
+        assertTrue(client.append("key_0", "!").get());
+        assertEquals("value_0!", client.get("key_0"));
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(client.delete("key_" + ii).get());
+        }
+        assertEquals(0, getAllocator().getNumValues());
+    }
+
+    public void testMemoryStats() throws Exception {
+        assertTrue(client.set("key", "value").get());
+        MemcachedServer server = getServer(0);
+        Map<String, String> stats = server.getStats("memory");
+        assertEquals("1", stats.get("slab_values"));
+        assertEquals("5", stats.get("slab_bytes_requested"));
+        assertTrue(Long.parseLong(stats.get("slab_bytes_reserved")) >= SlabAllocator.DEFAULT_SLAB_SIZE);
+    }
+}
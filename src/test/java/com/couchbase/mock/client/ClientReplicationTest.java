@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.Map;
+
+/**
+ * Tests for replicas falling behind the active nodes
+ */
+public class ClientReplicationTest extends ClientBaseTest {
+    private static final long LAG = 300;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.asyncReplication = true;
+        bucketConfiguration.replicationLag = LAG;
+        super.setUp();
+    }
+
+    private MemcachedServer getReplica(short vb) {
+        Bucket bucket = couchbaseMock.getBuckets().get(bucketConfiguration.name);
+        return bucket.getVBucketInfo()[vb].getReplicas().get(0);
+    }
+
+    private void waitForReplica(MemcachedServer replica, KeySpec ks, boolean present) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((replica.getStorage().getCached(ks) != null) != present) {
+            assertTrue("Replica didn't catch up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testReplicasLag() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getReplica(vb);
+        KeySpec ks = new KeySpec("lagging", vb);
+
+        long start = System.currentTimeMillis();
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("lagging", vb, "value")).success());
+        assertNotNull(server.getStorage().getCached(ks));
+        assertNull(replica.getStorage().getCached(ks));
+
+        Map<String, String> stats = server.getStats("replication");
+        assertEquals("true", stats.get("ep_replication_async"));
+        assertEquals(Long.toString(LAG), stats.get("ep_replication_lag_ms"));
+        String prefix = "vb_" + vb + ":replica_0:";
+        assertEquals(replica.getHostname() + ":" + replica.getPort(), stats.get(prefix + "node"));
+        assertEquals("1", stats.get(prefix + "pending"));
+        assertEquals("1", stats.get(prefix + "seqno_lag"));
+
+        waitForReplica(replica, ks, true);
+        assertTrue(System.currentTimeMillis() - start >= LAG);
+        assertEquals("value", new String(replica.getStorage().getCached(ks).getValue()));
+        stats = server.getStats("replication");
+        assertEquals("0", stats.get(prefix + "pending"));
+        assertEquals("0", stats.get(prefix + "seqno_lag"));
+        assertTrue(Long.parseLong(stats.get(prefix + "last_lag_ms")) >= LAG);
+
+        // Deletions lag as well
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.DELETE).key("lagging", vb)).success());
+        assertNull(server.getStorage().getCached(ks));
+        assertNotNull(replica.getStorage().getCached(ks));
+        waitForReplica(replica, ks, false);
+    }
+
+    public void testFlushDropsQueuedMutations() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getReplica(vb);
+        KeySpec ks = new KeySpec("flushed", vb);
+
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("flushed", vb, "value")).success());
+        // Let the worker take the mutation and wait for its turn
+        Thread.sleep(LAG / 3);
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.FLUSH)).success());
+
+        Thread.sleep(LAG * 2);
+        assertNull(replica.getStorage().getCached(ks));
+    }
+
+    public void testFailoverDropsQueuedMutations() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getReplica(vb);
+        KeySpec ks = new KeySpec("failed_over", vb);
+
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("failed_over", vb, "value")).success());
+        Thread.sleep(LAG / 3);
+        couchbaseMock.getBuckets().get(bucketConfiguration.name).failover(0, true);
+
+        // What the failed node didn't replicate yet is lost, rather than applied over the new map
+        Thread.sleep(LAG * 2);
+        assertNull(replica.getStorage().getCached(ks));
+    }
+
+    public void testMutationsStayInOrder() throws Exception {
+        MemcachedServer server = getServer(0);
+        server.getStorage().setReplication(true, 0, 200);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getReplica(vb);
+
+        long start = System.currentTimeMillis();
+        for (int ii = 0; ii < 20; ii++) {
+            assertTrue(binClient.sendRequest(CommandBuilder.buildStore("counter", vb, Integer.toString(ii))).success());
+        }
+        KeySpec ks = new KeySpec("counter", vb);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"0".equals(server.getStats("replication").get("vb_" + vb + ":replica_0:pending"))) {
+            assertTrue("Replica didn't catch up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // 20 mutations at 200 per second
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals("19", new String(replica.getStorage().getCached(ks).getValue()));
+        assertEquals(server.getStorage().getCached(ks).getCas(), replica.getStorage().getCached(ks).getCas());
+    }
+
+    public void testFullQueueRefusesMutations() throws Exception {
+        MemcachedServer server = getServer(0);
+        server.getStorage().setReplication(true, 60 * 1000, 0);
+        server.getStorage().setReplicationQueueSize(10);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getReplica(vb);
+
+        for (int ii = 0; ii < 10; ii++) {
+            assertTrue(binClient.sendRequest(CommandBuilder.buildStore("queued_" + ii, vb, "value")).success());
+        }
+        // The writer isn't held up waiting for the replica; it is told to retry
+        ClientResponse response = binClient.sendRequest(CommandBuilder.buildStore("refused", vb, "value"));
+        assertEquals(ErrorCode.ETMPFAIL, response.getStatus());
+        assertNull(server.getStorage().getCached(new KeySpec("refused", vb)));
+        response = binClient.sendRequest(new CommandBuilder(CommandCode.DELETE).key("queued_0", vb));
+        assertEquals(ErrorCode.ETMPFAIL, response.getStatus());
+
+        Map<String, String> stats = server.getStats("replication");
+        assertEquals("10", stats.get("vb_" + vb + ":replica_0:pending"));
+        assertEquals("2", stats.get("replica_" + replica.getHostname() + ":" + replica.getPort() + ":refused"));
+
+        // Reads, and the other nodes (the replica among them), are still served
+        response = getBinClient(0).sendRequest(new CommandBuilder(CommandCode.GET).key("queued_0", vb));
+        assertTrue(response.success());
+        assertEquals("value", response.getValue());
+        for (int ii = 1; ii < bucketConfiguration.numNodes; ii++) {
+            short other = findValidVbucket(ii);
+            assertTrue(getBinClient(ii).sendRequest(CommandBuilder.buildStore("other", other, "value")).success());
+        }
+    }
+
+    public void testSynchronousReplication() throws Exception {
+        MemcachedServer server = getServer(0);
+        server.getStorage().setReplication(false, 0, 0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("synchronous", vb, "value")).success());
+        assertNotNull(getReplica(vb).getStorage().getCached(new KeySpec("synchronous", vb)));
+        assertEquals("0", server.getStats("replication").get("vb_" + vb + ":replica_0:seqno_lag"));
+    }
+}
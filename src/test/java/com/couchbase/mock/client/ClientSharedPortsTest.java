@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.Bucket.BucketType;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for nodes serving all their buckets on a single port
+ */
+public class ClientSharedPortsTest extends ClientBaseTest {
+    private final BucketConfiguration protectedConfiguration = new BucketConfiguration();
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.numNodes = 4;
+        bucketConfiguration.numReplicas = 1;
+        bucketConfiguration.name = "default";
+        bucketConfiguration.type = BucketType.COUCHBASE;
+        bucketConfiguration.password = "";
+        protectedConfiguration.numNodes = 4;
+        protectedConfiguration.numReplicas = 1;
+        protectedConfiguration.name = "protected";
+        protectedConfiguration.type = BucketType.COUCHBASE;
+        protectedConfiguration.password = "secret";
+
+        List<BucketConfiguration> configList = new ArrayList<BucketConfiguration>();
+        configList.add(bucketConfiguration);
+        configList.add(protectedConfiguration);
+        couchbaseMock = new CouchbaseMock(0, configList);
+        couchbaseMock.setSharedPorts(true);
+        couchbaseMock.start();
+        couchbaseMock.waitForStartup();
+        createClients();
+    }
+
+    private MemcachedServer getProtectedServer(int index) {
+        return couchbaseMock.getBuckets().get("protected").getServers()[index];
+    }
+
+    private ClientResponse selectBucket(MemcachedClient binClient, String name) throws Exception {
+        return binClient.sendRequest(new CommandBuilder(CommandCode.SELECT_BUCKET).key(name, (short) 0));
+    }
+
+    /**
+     * @return a vBucket which both buckets have on the first node
+     */
+    private short findSharedVbucket() {
+        VBucketInfo[] defaultMap = couchbaseMock.getBuckets().get("default").getVBucketInfo();
+        VBucketInfo[] protectedMap = couchbaseMock.getBuckets().get("protected").getVBucketInfo();
+        for (int ii = 0; ii < defaultMap.length; ii++) {
+            if (defaultMap[ii].getOwner() == getServer(0) && protectedMap[ii].getOwner() == getProtectedServer(0)) {
+                return (short) ii;
+            }
+        }
+        fail("No vBucket is on the first node in both buckets");
+        return -1;
+    }
+
+    public void testPortsAreShared() throws Exception {
+        for (int ii = 0; ii < 4; ii++) {
+            assertEquals(getServer(ii).getPort(), getProtectedServer(ii).getPort());
+            assertNotNull(getServer(ii).getSharedPort());
+        }
+        assertFalse(getServer(0).getPort() == getServer(1).getPort());
+
+        // The cluster maps advertise the shared ports
+        Bucket bucket = couchbaseMock.getBuckets().get("protected");
+        String config = bucket.getJSON();
+        for (MemcachedServer server : bucket.getServers()) {
+            assertTrue(config.contains(Integer.toString(server.getPort())));
+        }
+
+        // A client which doesn't know about it still uses the default bucket
+        assertTrue(client.set("shared", 0, "value").get());
+        assertEquals("value", client.get("shared"));
+    }
+
+    public void testSelectBucket() throws Exception {
+        short vb = findSharedVbucket();
+        MemcachedClient binClient = getBinClient(0);
+        assertEquals(ErrorCode.EACCESS, selectBucket(binClient, "protected").getStatus());
+        assertEquals(ErrorCode.EACCESS, selectBucket(binClient, "non-exist-bucket").getStatus());
+
+        // Authenticating as a bucket selects it
+        CommandBuilder auth = new CommandBuilder(CommandCode.SASL_AUTH).key("PLAIN", (short) 0);
+        auth.value("\0protected\0secret".getBytes());
+        assertTrue(binClient.sendRequest(auth).success());
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("selected", vb, "protected")).success());
+
+        // Switch back and forth on the same connection
+        assertTrue(selectBucket(binClient, "default").success());
+        assertTrue(binClient.sendRequest(CommandBuilder.buildStore("selected", vb, "default")).success());
+        assertTrue(selectBucket(binClient, "protected").success());
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("selected", vb));
+        assertTrue(resp.success());
+        assertEquals("protected", resp.getValue());
+        binClient.close();
+
+        KeySpec ks = new KeySpec("selected", vb);
+        assertEquals("protected", new String(getProtectedServer(0).getStorage().getCached(ks).getValue()));
+        assertEquals("default", new String(getServer(0).getStorage().getCached(ks).getValue()));
+    }
+
+    public void testFailedOverBucket() throws Exception {
+        Bucket bucket = couchbaseMock.getBuckets().get("default");
+        bucket.failover(1, false);
+        int connections = getServer(1).getConnectionCount();
+
+        // New clients are turned away rather than handed to the stopped server
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(getServer(1).getHostname(), getServer(1).getPort()));
+        sock.setSoTimeout(5000);
+        assertEquals(-1, sock.getInputStream().read());
+        sock.close();
+        assertEquals(connections, getServer(1).getConnectionCount());
+
+        bucket.respawn(1);
+        MemcachedClient binClient = getBinClient(1);
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        binClient.close();
+    }
+
+    public void testRemoveBucket() throws Exception {
+        MemcachedClient binClient = getBinClient(1);
+        CommandBuilder auth = new CommandBuilder(CommandCode.SASL_AUTH).key("PLAIN", (short) 0);
+        auth.value("\0protected\0secret".getBytes());
+        assertTrue(binClient.sendRequest(auth).success());
+        assertEquals(1, getProtectedServer(1).getConnectionCount());
+
+        couchbaseMock.removeBucket("protected");
+        assertNull(getServer(1).getSharedPort().getServer("protected"));
+
+        // The port stays open for the other buckets
+        MemcachedClient other = getBinClient(1);
+        assertTrue(other.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        assertEquals(ErrorCode.EACCESS, selectBucket(other, "protected").getStatus());
+        other.close();
+        binClient.close();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.InProcessConnection;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.UnixDomainSockets;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.File;
+
+/**
+ * Tests for the transports other than TCP
+ */
+public class ClientTransportTest extends ClientBaseTest {
+    private File socketDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.inProcessTransport = true;
+        if (UnixDomainSockets.isSupported()) {
+            socketDirectory = File.createTempFile("mock", "");
+            assertTrue(socketDirectory.delete());
+            assertTrue(socketDirectory.mkdir());
+            bucketConfiguration.unixSocketDirectory = socketDirectory.getPath();
+        }
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (socketDirectory != null) {
+            socketDirectory.delete();
+        }
+    }
+
+    private void storeAndGet(MemcachedClient binClient) throws Exception {
+        short vb = findValidVbucket(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildStore("transport", vb, "value"));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("transport", vb));
+        assertTrue(resp.success());
+        assertEquals("value", resp.getValue());
+    }
+
+    public void testInProcess() throws Exception {
+        MemcachedServer server = getServer(0);
+        int before = server.getConnectionCount();
+
+        InProcessConnection conn = server.connectInProcess();
+        MemcachedClient binClient = new MemcachedClient(conn);
+        storeAndGet(binClient);
+        assertEquals(2, conn.getConnection().getCommandsExecuted());
+        assertEquals(before + 1, server.getConnectionCount());
+
+        binClient.close();
+        assertFalse(conn.isOpen());
+        assertEquals(before, server.getConnectionCount());
+    }
+
+    public void testUnixSocket() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        MemcachedServer server = getServer(0);
+        File path = server.getUnixSocketFile();
+        assertNotNull(path);
+        assertTrue(path.exists());
+
+        MemcachedClient binClient = new MemcachedClient(UnixDomainSockets.connect(path));
+        storeAndGet(binClient);
+        binClient.close();
+
+        couchbaseMock.stop();
+        couchbaseMock = null;
+        for (int i = 0; i < 100 && path.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(path.exists());
+    }
+}
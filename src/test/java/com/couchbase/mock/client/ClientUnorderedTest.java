@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedConnection;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for expensive commands completing out of order for clients
+ * which negotiated unordered execution
+ */
+public class ClientUnorderedTest extends ClientBaseTest {
+    private final CountDownLatch workerBlocked = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        workerThreads = 1;
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        workerBlocked.countDown();
+        super.tearDown();
+    }
+
+    private String largeValue() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32 * 1024; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Keep the (only) worker thread busy until {@link #workerBlocked} is released
+     */
+    private void blockWorker() {
+        couchbaseMock.getWorkerPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    workerBlocked.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private MemcachedClient getUnorderedClient() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.UNORDERED_EXECUTION));
+        assertTrue(resp.success());
+        MemcachedConnection conn = binClient.getConnection(getServer(0));
+        assertTrue(conn.supportsUnorderedExecution());
+        return binClient;
+    }
+
+    public void testFastCommandsOvertakeSlowOnes() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vb = findValidVbucket(0);
+        storeItem("slow", vb, "");
+        storeItem("fast", vb, "value");
+
+        blockWorker();
+        byte[] append = new CommandBuilder(CommandCode.APPEND).key("slow", vb).value(largeValue()).build();
+        byte[] get = new CommandBuilder(CommandCode.GET).key("fast", vb).build();
+        binClient.send(append);
+        binClient.send(get);
+
+        ClientResponse resp = binClient.readResponse();
+        assertEquals(CommandCode.GET, resp.getComCode());
+        assertEquals("value", resp.getValue());
+
+        workerBlocked.countDown();
+        resp = binClient.readResponse();
+        assertEquals(CommandCode.APPEND, resp.getComCode());
+        assertTrue(resp.success());
+        assertEquals(32 * 1024, getItem("slow", vb).getValue().length);
+        assertEquals("1", getServer(0).getStats("").get("worker_commands"));
+    }
+
+    public void testBarrier() throws Exception {
+        MemcachedClient binClient = getUnorderedClient();
+        short vb = findValidVbucket(0);
+        storeItem("slow", vb, "");
+        storeItem("fast", vb, "value");
+
+        blockWorker();
+        binClient.send(new CommandBuilder(CommandCode.APPEND).key("slow", vb).value(largeValue()).build());
+        // NOOP may not be reordered, so it (and everything after it) waits for the append
+        binClient.send(new CommandBuilder(CommandCode.NOOP).build());
+        binClient.send(new CommandBuilder(CommandCode.GET).key("fast", vb).build());
+        Thread.sleep(100);
+        workerBlocked.countDown();
+
+        assertEquals(CommandCode.APPEND, binClient.readResponse().getComCode());
+        assertEquals(CommandCode.NOOP, binClient.readResponse().getComCode());
+        assertEquals(CommandCode.GET, binClient.readResponse().getComCode());
+    }
+
+    public void testOrderedClient() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        storeItem("slow", vb, "");
+
+        MemcachedServer server = getServer(0);
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.APPEND).key("slow", vb).value(largeValue()));
+        assertTrue(resp.success());
+        assertEquals("0", server.getStats("").get("worker_commands"));
+    }
+}
@@ -16,11 +16,18 @@
 
 package com.couchbase.mock.client;
 
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.MemcachedConnection;
+import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.client.ClientResponse;
 import com.couchbase.mock.memcached.client.CommandBuilder;
 import com.couchbase.mock.memcached.client.MemcachedClient;
 import com.couchbase.mock.memcached.protocol.BinaryHelloCommand;
+import com.couchbase.mock.memcached.protocol.BinaryServerRequest;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.nio.ByteBuffer;
 
 /** Tests that the basic HELLO functionality works. */
 public class HelloTest extends ClientBaseTest {
@@ -45,4 +52,96 @@ public class HelloTest extends ClientBaseTest {
         assertEquals(16, resp.getExtras().length);
 
     }
+
+    public void testTracing() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp;
+
+        resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.TRACING, BinaryHelloCommand.Feature.MUTATION_SEQNO));
+        assertTrue(resp.success());
+        assertEquals(0, resp.getFramingExtras().length);
+
+        short vbid = findValidVbucket(0);
+        resp = binClient.sendRequest(CommandBuilder.buildStore("Traced", vbid, "Value"));
+        assertTrue(resp.success());
+        assertEquals(3, resp.getFramingExtras().length);
+        assertEquals(0x02, resp.getFramingExtras()[0]);
+        assertEquals(16, resp.getExtras().length);
+
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("Traced", vbid).build());
+        assertTrue(resp.success());
+        assertEquals(3, resp.getFramingExtras().length);
+        assertEquals(4, resp.getExtras().length);
+        assertEquals("Value", resp.getValue());
+
+        MemcachedServer server = getServer(0);
+        assertTrue(server.getTimings(CommandCode.SET).getCount() > 0);
+        assertTrue(server.getTimings(CommandCode.GET).getCount() > 0);
+    }
+
+    public void testTcpNoDelay() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer server = getServer(0);
+        assertFalse(server.getSocketOptions().isTcpNoDelay());
+
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.TCP_NODELAY));
+        assertTrue(resp.success());
+        MemcachedConnection conn = binClient.getConnection(server);
+        assertTrue(conn.getSupportedFeatures()[BinaryHelloCommand.Feature.TCP_NODELAY.getValue()]);
+        String info = server.getStats("connections").get(conn.getRemoteAddress().toString());
+        assertTrue(info, info.contains("\"tcp_nodelay\":true"));
+
+        // A HELLO without the feature reverts to the server setting
+        resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient"));
+        assertTrue(resp.success());
+        info = server.getStats("connections").get(conn.getRemoteAddress().toString());
+        assertTrue(info, info.contains("\"tcp_nodelay\":false"));
+    }
+
+    public void testUnorderedExecutionNeedsWorkers() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.UNORDERED_EXECUTION));
+        assertTrue(resp.success());
+        // The cluster has no worker pool, so every command is executed in order
+        assertFalse(binClient.getConnection(getServer(0)).supportsUnorderedExecution());
+    }
+
+    public void testClusterMapNotification() throws Exception {
+        Bucket bucket = couchbaseMock.getBuckets().get(bucketConfiguration.name);
+        for (MemcachedServer server : bucket.getServers()) {
+            server.setCccpEnabled(true);
+        }
+
+        // Notifications need DUPLEX as well
+        MemcachedClient plainClient = getBinClient(0);
+        assertTrue(plainClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION)).success());
+        assertFalse(plainClient.getConnection(getServer(0)).supportsClusterMapNotifications());
+
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("dummyClient",
+                BinaryHelloCommand.Feature.DUPLEX, BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION));
+        assertTrue(resp.success());
+        assertTrue(binClient.getConnection(getServer(0)).supportsClusterMapNotifications());
+
+        bucket.failover(1, true);
+        resp = binClient.readResponse();
+        assertTrue(resp.isServerRequest());
+        assertEquals(BinaryServerRequest.CLUSTERMAP_CHANGE_NOTIFICATION, resp.getOpcode());
+        assertEquals(bucketConfiguration.name, resp.getKey());
+        assertEquals(Info.getConfigRevision(), ByteBuffer.wrap(resp.getExtras()).getInt());
+        assertTrue(resp.getValue().contains("\"rev\""));
+
+        // The reply to the notification is ignored, and the failover (with its
+        // rebalance) results in a single notification
+        byte[] reply = new CommandBuilder(CommandCode.SET).build();
+        reply[0] = BinaryServerRequest.RESPONSE_MAGIC;
+        binClient.send(reply);
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.NOOP));
+        assertEquals(CommandCode.NOOP, resp.getComCode());
+        assertEquals("1", getServer(0).getStats("").get("clustermap_notifications"));
+    }
 }
@@ -90,6 +90,45 @@ public class MockAPITest extends ClientBaseTest {
         assertTrue(mockHttpClient.request(new HiccupRequest(1000, 10)).isOk());
     }
 
+    public void testHiccupOnlyStallsConnection() throws Exception {
+        final MemcachedClient first = getBinClient(0);
+        final MemcachedClient second = getBinClient(0);
+        assertTrue(first.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        assertTrue(second.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+
+        assertTrue(mockClient.request(new HiccupRequest(500, 10)).isOk());
+        try {
+            final ClientResponse[] responses = new ClientResponse[2];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        responses[1] = second.sendRequest(new CommandBuilder(CommandCode.NOOP));
+                    } catch (IOException ex) {
+                        // Checked below
+                    }
+                }
+            });
+
+            long start = System.nanoTime();
+            thread.start();
+            responses[0] = first.sendRequest(new CommandBuilder(CommandCode.NOOP));
+            thread.join();
+            long elapsed = (System.nanoTime() - start) / 1000000;
+
+            // Both responses are delayed, but the stalls overlap instead of
+            // blocking the node one after another
+            assertNotNull(responses[0]);
+            assertNotNull(responses[1]);
+            assertTrue(responses[0].success());
+            assertTrue(responses[1].success());
+            assertTrue(elapsed >= 450);
+            assertTrue("Stalls should run in parallel (took " + elapsed + "ms)", elapsed < 950);
+        } finally {
+            assertTrue(mockClient.request(new HiccupRequest(0, 0)).isOk());
+        }
+    }
+
     public void testTruncate() throws IOException {
         assertTrue(mockClient.request(new TruncateRequest(1000)).isOk());
         assertTrue(mockHttpClient.request(new TruncateRequest(10)).isOk());
@@ -352,4 +391,22 @@ public class MockAPITest extends ClientBaseTest {
         assertTrue(res.isOk());
         checkEnhancedErrorsEnabled(0, true);
     }
+
+    public void testTimings() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        }
+
+        MockResponse res = mockHttpClient.request(new GetTimingsRequest(bucketConfiguration.name, false));
+        assertTrue(res.isOk());
+        assertEquals(bucketConfiguration.numNodes, res.getPayload().getAsJsonArray().size());
+        JsonObject noop = res.getPayload().getAsJsonArray().get(0).getAsJsonObject().getAsJsonObject("noop");
+        assertTrue(noop.get("count").getAsLong() >= 5);
+        assertTrue(noop.getAsJsonArray("histogram").size() > 0);
+
+        res = mockClient.request(new GetTimingsRequest(bucketConfiguration.name, true));
+        assertTrue(res.isOk());
+        assertEquals(0, getServer(0).getTimings(CommandCode.NOOP).getCount());
+    }
 }
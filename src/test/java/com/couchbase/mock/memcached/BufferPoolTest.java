@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.CommandFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.allocate(1);
+        Assert.assertEquals(64, small.capacity());
+        Assert.assertEquals(1, small.limit());
+
+        ByteBuffer buffer = pool.allocate(1025);
+        Assert.assertEquals(2048, buffer.capacity());
+        Assert.assertEquals(1025, buffer.remaining());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buffer = pool.allocate(1000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        Assert.assertEquals(1024, pool.getRetainedBytes());
+
+        ByteBuffer again = pool.allocate(600);
+        Assert.assertSame(buffer, again);
+        Assert.assertEquals(0, again.position());
+        Assert.assertEquals(600, again.limit());
+        Assert.assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void testRetainedLimit() {
+        BufferPool pool = new BufferPool(1024);
+        pool.release(pool.allocate(1024));
+        pool.release(pool.allocate(1024));
+        Assert.assertEquals(1024, pool.getRetainedBytes());
+
+        // Buffers not created by the pool are ignored
+        pool.release(ByteBuffer.allocate(100));
+        Assert.assertEquals(1024, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void testCommandSlices() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] packet = new CommandBuilder(CommandCode.SET).key("foo", (short) 0).value("bar".getBytes(), 0).build();
+        ByteBuffer header = ByteBuffer.wrap(packet, 0, 24).slice();
+        BinaryCommand cmd = CommandFactory.create(header, pool);
+        ByteBuffer body = cmd.getInputBuffer();
+        body.put(packet, 24, packet.length - 24);
+        Assert.assertTrue(cmd.complete());
+
+        Assert.assertEquals("foo", cmd.getKey());
+        ByteBuffer key = cmd.getKeySlice();
+        Assert.assertEquals(3, key.remaining());
+        Assert.assertEquals('f', key.get(0));
+
+        ByteBuffer value = cmd.getValueSlice();
+        Assert.assertEquals(3, cmd.getValueLength());
+        Assert.assertEquals(3, value.remaining());
+        Assert.assertEquals('b', value.get(0));
+        Assert.assertArrayEquals("bar".getBytes(), cmd.getValue());
+
+        cmd.release();
+        Assert.assertEquals(body.capacity(), pool.getRetainedBytes());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.CommandFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the cost of decoding request headers into commands, and
+ * looking up the command code of each one.
+ *
+ * This is not a unit test; run it by hand:
+ * <pre>
+ *     java -cp ... com.couchbase.mock.memcached.DispatchBenchmark [iterations]
+ * </pre>
+ */
+public class DispatchBenchmark {
+    private static final CommandCode[] MIX = new CommandCode[]{
+            CommandCode.GET, CommandCode.SET, CommandCode.GETKQ, CommandCode.NOOP,
+            CommandCode.SUBDOC_GET, CommandCode.GETK, CommandCode.DELETE, CommandCode.INCREMENT
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+
+        ByteBuffer[] headers = new ByteBuffer[MIX.length];
+        for (int ii = 0; ii < MIX.length; ii++) {
+            // Only the header is decoded; the body is never read
+            CommandBuilder builder = new CommandBuilder(MIX[ii]).key("key", (short) 0);
+            if (MIX[ii] == CommandCode.SUBDOC_GET) {
+                builder.subdoc("path".getBytes());
+            }
+            byte[] packet = builder.build();
+            headers[ii] = ByteBuffer.wrap(packet, 0, 24).slice();
+        }
+
+        // Warm up
+        run(headers, iterations / 10);
+
+        long start = System.nanoTime();
+        long sink = run(headers, iterations);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d commands: %.1f ms, %.1f ns/command (%d)%n",
+                iterations, elapsed / 1e6, (double) elapsed / iterations, sink);
+    }
+
+    private static long run(ByteBuffer[] headers, int iterations) throws Exception {
+        long sink = 0;
+        for (int ii = 0; ii < iterations; ii++) {
+            BinaryCommand command = CommandFactory.create(headers[ii % headers.length]);
+            sink += CommandCode.valueOf(command.getOpcode()).cc();
+        }
+        return sink;
+    }
+}
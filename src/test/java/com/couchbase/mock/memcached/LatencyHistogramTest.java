@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L, 1L << 36}) {
+            int bucket = LatencyHistogram.bucketFor(value);
+            Assert.assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            Assert.assertTrue(LatencyHistogram.upperBound(bucket) >= value);
+            // Within 1/16th of the value
+            long width = LatencyHistogram.upperBound(bucket) - LatencyHistogram.lowerBound(bucket) + 1;
+            Assert.assertTrue(width * LatencyHistogram.SUB_BUCKETS <= Math.max(value, LatencyHistogram.SUB_BUCKETS));
+        }
+        for (int ii = 1; ii < LatencyHistogram.NUM_BUCKETS; ii++) {
+            Assert.assertEquals(LatencyHistogram.upperBound(ii - 1) + 1, LatencyHistogram.lowerBound(ii));
+        }
+        Assert.assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentileMicros(50));
+        for (int ii = 1; ii <= 100; ii++) {
+            histogram.record(ii * 1000L);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(50, histogram.getMeanMicros());
+        Assert.assertEquals(100, histogram.getMaxMicros());
+        // 50 lies in [50, 51]
+        Assert.assertEquals(51, histogram.getPercentileMicros(50));
+        Assert.assertEquals(100, histogram.getPercentileMicros(100));
+        Assert.assertEquals(1, histogram.getPercentileMicros(0));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMaxMicros());
+    }
+}
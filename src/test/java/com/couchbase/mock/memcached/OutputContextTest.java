@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+public class OutputContextTest {
+    /**
+     * Channel recording what is written. It accepts at most {@code chunk} bytes per
+     * call, and no more than {@code budget} bytes in total (like a full socket)
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int calls = 0;
+        int chunk = Integer.MAX_VALUE;
+        int budget = Integer.MAX_VALUE;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            calls++;
+            int total = 0;
+            for (int ii = offset; ii < offset + length; ii++) {
+                while (srcs[ii].hasRemaining() && total < chunk && budget > 0) {
+                    data.write(srcs[ii].get());
+                    total++;
+                    budget--;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ByteBuffer filled(int size, byte value) {
+        byte[] bytes = new byte[size];
+        for (int ii = 0; ii < size; ii++) {
+            bytes[ii] = value;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    public void testCombineSmallResponses() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024, true);
+        OutputContext ctx = new OutputContext(pool);
+        for (int ii = 0; ii < 500; ii++) {
+            ctx.add(filled(24, (byte) ii));
+        }
+        Assert.assertEquals("IOV: 1", ctx.toString());
+
+        RecordingChannel channel = new RecordingChannel();
+        Assert.assertEquals(500 * 24, ctx.write(channel));
+        Assert.assertEquals(1, channel.calls);
+        Assert.assertFalse(ctx.hasRemaining());
+        byte[] written = channel.data.toByteArray();
+        Assert.assertEquals((byte) 499, written[written.length - 1]);
+
+        // The chunk went back to the pool
+        Assert.assertEquals(OutputContext.CHUNK_SIZE, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void testLargeResponsesAreNotCopied() throws Exception {
+        OutputContext ctx = new OutputContext(new BufferPool(1024 * 1024, true));
+        ByteBuffer large = filled(OutputContext.COMBINE_LIMIT + 1, (byte) 1);
+        ctx.add(filled(10, (byte) 0));
+        ctx.add(large);
+        ctx.add(filled(10, (byte) 2));
+        Assert.assertEquals("IOV: 3", ctx.toString());
+        Assert.assertEquals(0, large.position());
+
+        RecordingChannel channel = new RecordingChannel();
+        Assert.assertEquals(OutputContext.COMBINE_LIMIT + 21, ctx.write(channel));
+        Assert.assertEquals(1, channel.calls);
+        Assert.assertFalse(large.hasRemaining());
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        OutputContext ctx = new OutputContext(new BufferPool(1024 * 1024, true));
+        for (int ii = 0; ii < 10; ii++) {
+            ctx.add(filled(100, (byte) ii));
+        }
+        RecordingChannel channel = new RecordingChannel();
+        channel.chunk = 100;
+        channel.budget = 333;
+        Assert.assertEquals(333, ctx.write(channel));
+        Assert.assertTrue(ctx.hasRemaining());
+        Assert.assertEquals(667, ctx.getPendingBytes());
+
+        // Appending after a partial send must not disturb what is left
+        ctx.add(filled(100, (byte) 10));
+        ctx.add(filled(100, (byte) 11));
+        channel.budget = Integer.MAX_VALUE;
+        Assert.assertEquals(867, ctx.write(channel));
+        Assert.assertEquals(0, ctx.getPendingBytes());
+        byte[] written = channel.data.toByteArray();
+        Assert.assertEquals(1200, written.length);
+        for (int ii = 0; ii < written.length; ii++) {
+            Assert.assertEquals((byte) (ii / 100), written[ii]);
+        }
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        OutputContext ctx = new OutputContext(new BufferPool(1024 * 1024, true));
+        ctx.add(filled(10, (byte) 0));
+        ctx.add(filled(OutputContext.COMBINE_LIMIT + 10, (byte) 1));
+
+        RecordingChannel channel = new RecordingChannel();
+        Assert.assertEquals(15, ctx.getSlice(15).write(channel));
+        Assert.assertTrue(ctx.hasRemaining());
+        Assert.assertEquals(OutputContext.COMBINE_LIMIT + 5, ctx.getPendingBytes());
+        Assert.assertEquals(OutputContext.COMBINE_LIMIT + 5, ctx.write(channel));
+        Assert.assertEquals(OutputContext.COMBINE_LIMIT + 20, channel.data.size());
+
+        ctx.add(filled(10, (byte) 2));
+        ctx.getSlice(4).write(channel);
+        Assert.assertEquals(6, ctx.getPendingBytes());
+        ctx.discard();
+        Assert.assertFalse(ctx.hasRemaining());
+        Assert.assertEquals(0, ctx.getPendingBytes());
+        Assert.assertEquals(OutputContext.COMBINE_LIMIT + 24, channel.data.size());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of a single client pipelining batches of GETKQ
+ * requests (each batch terminated by a NOOP) to a single node.
+ *
+ * This is not a unit test; run it by hand:
+ * <pre>
+ *     java -cp ... com.couchbase.mock.memcached.PipelineBenchmark [batchSize] [batches]
+ * </pre>
+ */
+public class PipelineBenchmark {
+    private static final int NUM_VBUCKETS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 1;
+        config.numReplicas = 0;
+        config.numVBuckets = NUM_VBUCKETS;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+
+        CouchbaseMock mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+
+        try {
+            MemcachedServer server = mock.getBuckets().get("default").getServers()[0];
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+            OutputStream output = socket.getOutputStream();
+            InputStream input = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+
+            ByteArrayOutputStream stores = new ByteArrayOutputStream();
+            ByteArrayOutputStream gets = new ByteArrayOutputStream();
+            for (int ii = 0; ii < batchSize; ii++) {
+                String key = "key_" + ii;
+                short vb = (short) (ii % NUM_VBUCKETS);
+                stores.write(new CommandBuilder(CommandCode.SETQ).key(key, vb).value("value_" + ii).build());
+                gets.write(new CommandBuilder(CommandCode.GETKQ).key(key, vb).build());
+            }
+            byte[] noop = new CommandBuilder(CommandCode.NOOP).build();
+            stores.write(noop);
+            gets.write(noop);
+
+            runBatch(output, input, stores.toByteArray());
+            byte[] batch = gets.toByteArray();
+
+            // Warm up
+            for (int ii = 0; ii < batches / 10; ii++) {
+                runBatch(output, input, batch);
+            }
+
+            long start = System.nanoTime();
+            for (int ii = 0; ii < batches; ii++) {
+                runBatch(output, input, batch);
+            }
+            long elapsed = System.nanoTime() - start;
+            socket.close();
+
+            long ops = (long) batchSize * batches;
+            System.out.printf("%d batches of %d GETKQ: %.1f ms, %.0f ops/s%n",
+                    batches, batchSize, elapsed / 1e6, ops / (elapsed / 1e9));
+        } finally {
+            mock.stop();
+        }
+    }
+
+    private static void runBatch(OutputStream output, InputStream input, byte[] batch) throws IOException {
+        output.write(batch);
+        output.flush();
+        while (true) {
+            ClientResponse response = ClientResponse.read(input);
+            if (response.getComCode() == CommandCode.NOOP) {
+                return;
+            }
+            if (!response.success()) {
+                throw new IOException("Unexpected status " + response.getStatus());
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class SlabAllocatorTest {
+    private static byte[] bytes(int size, int fill) {
+        byte[] ret = new byte[size];
+        for (int ii = 0; ii < size; ii++) {
+            ret[ii] = (byte) (fill + ii);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        for (int size : new int[]{0, 1, 64, 65, 1000, 4096, 10000}) {
+            byte[] data = bytes(size, size);
+            SlabAllocator.Value value = allocator.allocate(data);
+            Assert.assertEquals(size, value.getLength());
+            Assert.assertArrayEquals(data, value.get());
+        }
+        // The last one didn't fit in a slab
+        Map<String, String> stats = allocator.getStats();
+        Assert.assertEquals("7", stats.get("slab_values"));
+        Assert.assertEquals("1", stats.get("slab_large_values"));
+    }
+
+    @Test
+    public void testSizeClasses() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        allocator.allocate(bytes(1, 0));
+        // One slab reserved for the smallest class
+        Assert.assertEquals(4096, allocator.getReservedBytes());
+        Assert.assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.getUsedBytes());
+
+        allocator.allocate(bytes(70, 0));
+        Assert.assertEquals(2 * 4096, allocator.getReservedBytes());
+        Assert.assertEquals(SlabAllocator.MIN_CHUNK_SIZE + 80, allocator.getUsedBytes());
+
+        Map<String, String> stats = allocator.getStats();
+        Assert.assertEquals("64", stats.get("slab_0:chunk_size"));
+        Assert.assertEquals("80", stats.get("slab_1:chunk_size"));
+        Assert.assertEquals("64", stats.get("slab_0:total_chunks"));
+        Assert.assertEquals("1", stats.get("slab_1:used_chunks"));
+        Assert.assertEquals("71", stats.get("slab_bytes_requested"));
+    }
+
+    @Test
+    public void testReuse() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        // Fill a whole slab, free the values and fill it again
+        SlabAllocator.Value[] values = new SlabAllocator.Value[64];
+        for (int ii = 0; ii < values.length; ii++) {
+            values[ii] = allocator.allocate(bytes(64, ii));
+        }
+        for (SlabAllocator.Value value : values) {
+            value.release();
+        }
+        Assert.assertEquals(0, allocator.getNumValues());
+        Assert.assertEquals("64", allocator.getStats().get("slab_0:free_chunks"));
+        for (int ii = 0; ii < values.length; ii++) {
+            values[ii] = allocator.allocate(bytes(64, ii * 2));
+        }
+        Assert.assertEquals(4096, allocator.getReservedBytes());
+        for (int ii = 0; ii < values.length; ii++) {
+            Assert.assertArrayEquals(bytes(64, ii * 2), values[ii].get());
+        }
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        SlabAllocator.Value value = allocator.allocate(bytes(10, 0));
+        Assert.assertTrue(value.retain());
+        value.release();
+        Assert.assertEquals(1, allocator.getNumValues());
+        value.release();
+        Assert.assertEquals(0, allocator.getNumValues());
+        // A freed value can't be brought back
+        Assert.assertFalse(value.retain());
+    }
+
+    @Test
+    public void testReaderKeepsChunk() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        SlabAllocator.Value value = allocator.allocate(bytes(64, 1));
+        // A reader takes a reference, then the owner drops its own
+        Assert.assertTrue(value.retain());
+        value.release();
+        allocator.allocate(bytes(64, 2));
+        Assert.assertArrayEquals(bytes(64, 1), value.get());
+        value.release();
+        Assert.assertEquals(1, allocator.getNumValues());
+    }
+
+    @Test
+    public void testReadFreedItem() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        Item item = new Item(new KeySpec("key", (short) 0), 0, 0, bytes(64, 1), null, 1, Datatype.RAW.value());
+        item.moveOffHeap(allocator);
+        Assert.assertArrayEquals(bytes(64, 1), item.getValue());
+
+        // Once the item is dropped, its chunk may be reused at once; reading
+        // it must fail rather than return the next value stored there
+        item.releaseValue();
+        allocator.allocate(bytes(64, 2));
+        try {
+            item.getValue();
+            Assert.fail("Read the value of a freed item");
+        } catch (ValueFreedException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReuseDelay() {
+        SlabAllocator allocator = new SlabAllocator(4096, 60 * 1000);
+        SlabAllocator.Value first = allocator.allocate(bytes(64, 1));
+        first.release();
+        allocator.allocate(bytes(64, 2));
+        // The freed chunk is left alone, so a late reader still sees the old value
+        Assert.assertArrayEquals(bytes(64, 1), first.get());
+    }
+}
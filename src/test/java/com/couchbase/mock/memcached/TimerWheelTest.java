@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+    private static Runnable record(final List<Integer> fired, final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(id);
+            }
+        };
+    }
+
+    @Test
+    public void testExpiry() {
+        List<Integer> fired = new ArrayList<Integer>();
+        TimerWheel wheel = new TimerWheel(10, 8, 1000);
+        Assert.assertEquals(0, wheel.nextTimeout(1000));
+
+        wheel.schedule(25, record(fired, 1), 1000);
+        wheel.schedule(5, record(fired, 2), 1000);
+        Assert.assertEquals(2, wheel.size());
+        Assert.assertEquals(10, wheel.nextTimeout(1000));
+
+        wheel.expire(1004);
+        Assert.assertTrue(fired.isEmpty());
+        wheel.expire(1010);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertEquals(2, (int) fired.get(0));
+
+        wheel.expire(1024);
+        Assert.assertEquals(1, fired.size());
+        wheel.expire(1031);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testBeyondOneRevolution() {
+        List<Integer> fired = new ArrayList<Integer>();
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        wheel.schedule(205, record(fired, 1), 0);
+
+        for (long now = 0; now < 210; now += 10) {
+            wheel.expire(now);
+            Assert.assertTrue(fired.isEmpty());
+        }
+        wheel.expire(210);
+        Assert.assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testLateExpiryAndCancel() {
+        List<Integer> fired = new ArrayList<Integer>();
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        wheel.schedule(30, record(fired, 1), 0);
+        wheel.schedule(500, record(fired, 2), 0);
+        wheel.schedule(40, record(fired, 3), 0).cancel();
+
+        // Nothing ran for a long time; everything due must fire at once
+        wheel.expire(1000);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertFalse(fired.contains(3));
+        Assert.assertEquals(0, wheel.size());
+    }
+}
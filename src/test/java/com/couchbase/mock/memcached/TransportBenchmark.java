@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the round trip time of a GET over TCP, a Unix domain socket
+ * (if supported by the JVM) and the in-process transport.
+ *
+ * This is not a unit test; run it by hand:
+ * <pre>
+ *     java -cp ... com.couchbase.mock.memcached.TransportBenchmark [requests]
+ * </pre>
+ */
+public class TransportBenchmark {
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        File socketDirectory = File.createTempFile("mock", "");
+        if (!socketDirectory.delete() || !socketDirectory.mkdir()) {
+            throw new IOException("Failed to create " + socketDirectory);
+        }
+
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 1;
+        config.numReplicas = 0;
+        config.numVBuckets = 64;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        config.inProcessTransport = true;
+        if (UnixDomainSockets.isSupported()) {
+            config.unixSocketDirectory = socketDirectory.getPath();
+        }
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+
+        CouchbaseMock mock = new CouchbaseMock(0, configs);
+        mock.getSocketOptions().setTcpNoDelay(true);
+        mock.start();
+        mock.waitForStartup();
+
+        try {
+            MemcachedServer server = mock.getBuckets().get("default").getServers()[0];
+            MemcachedClient setup = new MemcachedClient(server.connectInProcess());
+            if (!setup.sendRequest(CommandBuilder.buildStore("key", (short) 0, "value")).success()) {
+                throw new IOException("Failed to store the item");
+            }
+            setup.close();
+
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+            run("tcp", new MemcachedClient(socket), requests);
+            if (server.getUnixSocketFile() != null) {
+                run("unix", new MemcachedClient(UnixDomainSockets.connect(server.getUnixSocketFile())), requests);
+            }
+            run("in-process", new MemcachedClient(server.connectInProcess()), requests);
+        } finally {
+            mock.stop();
+            socketDirectory.delete();
+        }
+    }
+
+    private static void run(String name, MemcachedClient client, int requests) throws IOException {
+        byte[] get = new CommandBuilder(CommandCode.GET).key("key", (short) 0).build();
+
+        // Warm up
+        roundTrips(client, get, requests / 10);
+
+        long start = System.nanoTime();
+        roundTrips(client, get, requests);
+        long elapsed = System.nanoTime() - start;
+        client.close();
+
+        System.out.printf("%-10s %d GETs: %.1f ms, %.1f us/request%n",
+                name, requests, elapsed / 1e6, elapsed / 1e3 / requests);
+    }
+
+    private static void roundTrips(MemcachedClient client, byte[] get, int count) throws IOException {
+        for (int ii = 0; ii < count; ii++) {
+            ClientResponse response = client.sendRequest(get);
+            if (!response.success()) {
+                throw new IOException("Unexpected status " + response.getStatus());
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many threads mutating the same keys at once
+ */
+public class VBucketStoreConcurrencyTest {
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_OPS = 2000;
+    private VBucketStore store;
+
+    @Before
+    public void setUp() {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int ii = 0; ii < vbi.length; ii++) {
+            vbi[ii] = new VBucketInfo();
+        }
+        store = new VBucketStore(vbi);
+        VBucketStore.ItemAction nothing = new VBucketStore.ItemAction() {
+            @Override
+            public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+            }
+        };
+        store.onItemDelete = nothing;
+        store.onItemMutated = nothing;
+    }
+
+    private static Item newItem(String key, int vb, String value, long cas) {
+        return new Item(new KeySpec(key, (short) vb), 0, 0, value.getBytes(), null, cas, Datatype.RAW.value());
+    }
+
+    /**
+     * Run the same task on all the threads at once
+     *
+     * @return the results of the threads
+     */
+    private <T> List<T> runConcurrently(final Callable<T> task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (int ii = 0; ii < NUM_THREADS; ii++) {
+                futures.add(pool.submit(task));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCasIsUnique() throws Exception {
+        final AtomicInteger nextThread = new AtomicInteger();
+        List<List<Long>> results = runConcurrently(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() {
+                int thread = nextThread.getAndIncrement();
+                List<Long> cas = new ArrayList<Long>();
+                for (int ii = 0; ii < NUM_OPS; ii++) {
+                    // A few hot keys, spread over all the vBuckets
+                    Item item = newItem("key_" + ii % 8, ii % 4, "value", 0);
+                    if (thread % 2 == 0) {
+                        Assert.assertEquals(ErrorCode.SUCCESS, store.set(item, false).getStatus());
+                    } else if (store.add(item, false).getStatus() != ErrorCode.SUCCESS) {
+                        Assert.assertEquals(ErrorCode.SUCCESS, store.replace(item, false).getStatus());
+                    }
+                    cas.add(item.getCasReal());
+                }
+                return cas;
+            }
+        });
+
+        Set<Long> seen = new HashSet<Long>();
+        for (List<Long> cas : results) {
+            for (Long value : cas) {
+                Assert.assertTrue("Duplicate CAS " + value, seen.add(value));
+            }
+        }
+    }
+
+    @Test
+    public void testAddIsLinearizable() throws Exception {
+        List<Integer> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int added = 0;
+                for (int ii = 0; ii < NUM_OPS; ii++) {
+                    ErrorCode status = store.add(newItem("key_" + ii, ii % 4, "value", 0), false).getStatus();
+                    if (status == ErrorCode.SUCCESS) {
+                        added++;
+                    } else {
+                        Assert.assertEquals(ErrorCode.KEY_EEXISTS, status);
+                    }
+                }
+                return added;
+            }
+        });
+
+        // Each key was added by exactly one of the threads
+        int total = 0;
+        for (Integer added : results) {
+            total += added;
+        }
+        Assert.assertEquals(NUM_OPS, total);
+        Assert.assertEquals(NUM_OPS, store.size());
+    }
+
+    @Test
+    public void testReplaceLosesNoUpdates() throws Exception {
+        final KeySpec ks = new KeySpec("counter", (short) 1);
+        store.set(newItem("counter", 1, "0", 0), false);
+
+        List<Integer> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int conflicts = 0;
+                for (int ii = 0; ii < NUM_OPS / 4; ii++) {
+                    // Increment the counter with a CAS loop
+                    while (true) {
+                        Item current = store.get(ks);
+                        long value = Long.parseLong(new String(current.getValue()));
+                        Item next = newItem("counter", 1, Long.toString(value + 1), current.getCas());
+                        ErrorCode status = store.replace(next, false).getStatus();
+                        if (status == ErrorCode.SUCCESS) {
+                            break;
+                        }
+                        Assert.assertEquals(ErrorCode.KEY_EEXISTS, status);
+                        conflicts++;
+                    }
+                }
+                return conflicts;
+            }
+        });
+
+        Assert.assertEquals(Integer.toString(NUM_THREADS * NUM_OPS / 4), new String(store.get(ks).getValue()));
+        Assert.assertEquals(NUM_THREADS, results.size());
+    }
+
+    @Test
+    public void testLockRacingReplace() throws Exception {
+        final KeySpec ks = new KeySpec("locked", (short) 2);
+        store.set(newItem("locked", 2, "0", 0), false);
+
+        final AtomicInteger nextThread = new AtomicInteger();
+        List<Integer> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int thread = nextThread.getAndIncrement();
+                int locked = 0;
+                for (int ii = 0; ii < NUM_OPS; ii++) {
+                    if (thread % 2 == 0) {
+                        ErrorCode status = store.replace(newItem("locked", 2, "value", 0), true).getStatus();
+                        if (status != ErrorCode.SUCCESS) {
+                            Assert.assertEquals(ErrorCode.LOCKED, status);
+                        }
+                        continue;
+                    }
+
+                    Item item = store.get(ks);
+                    ErrorCode status = store.lock(item, 15);
+                    if (status == ErrorCode.SUCCESS) {
+                        // The stored item must be the one we locked, so our CAS unlocks it
+                        Item unlock = newItem("locked", 2, "value", item.getCasReal());
+                        Assert.assertEquals(ErrorCode.SUCCESS, store.replace(unlock, true).getStatus());
+                        locked++;
+                    } else if (status != ErrorCode.ETMPFAIL) {
+                        // Replaced after we looked it up
+                        Assert.assertEquals(ErrorCode.KEY_ENOENT, status);
+                    }
+                }
+                return locked;
+            }
+        });
+
+        int total = 0;
+        for (Integer locked : results) {
+            total += locked;
+        }
+        Assert.assertTrue(total > 0);
+    }
+}
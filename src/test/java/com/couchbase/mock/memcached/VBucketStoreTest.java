@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.Datatype;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import com.couchbase.mock.util.Clock;
+import com.couchbase.mock.util.ManualClock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class VBucketStoreTest {
+    private VBucketStore store;
+
+    @Before
+    public void setUp() {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int ii = 0; ii < vbi.length; ii++) {
+            vbi[ii] = new VBucketInfo();
+        }
+        store = new VBucketStore(vbi);
+        VBucketStore.ItemAction nothing = new VBucketStore.ItemAction() {
+            @Override
+            public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+            }
+        };
+        store.onItemDelete = nothing;
+        store.onItemMutated = nothing;
+    }
+
+    private static Item newItem(String key, int vb, String value) {
+        return new Item(new KeySpec(key, (short) vb), 0, 0, value.getBytes(), null, 0, Datatype.RAW.value());
+    }
+
+    @Test
+    public void testPartitionsAreSeparate() {
+        Assert.assertEquals(ErrorCode.SUCCESS, store.set(newItem("a", 1, "12345"), false).getStatus());
+        Assert.assertEquals(ErrorCode.SUCCESS, store.set(newItem("b", 1, "1"), false).getStatus());
+        Assert.assertEquals(ErrorCode.SUCCESS, store.set(newItem("a", 2, "123"), false).getStatus());
+
+        Assert.assertEquals(0, store.getPartition(0).size());
+        Assert.assertEquals(2, store.getPartition(1).size());
+        Assert.assertEquals(1, store.getPartition(2).size());
+        Assert.assertEquals(3, store.size());
+        // Key and value
+        Assert.assertEquals(1 + 5 + 1 + 1, store.getPartition(1).getMemoryUsed());
+        Assert.assertEquals(1 + 3, store.getPartition(2).getMemoryUsed());
+
+        Assert.assertNull(store.get(new KeySpec("a", (short) 3)));
+        Assert.assertEquals("123", new String(store.get(new KeySpec("a", (short) 2)).getValue()));
+    }
+
+    @Test
+    public void testMemoryAccounting() {
+        VBucketPartition partition = store.getPartition(0);
+        store.set(newItem("key", 0, "value"), false);
+        Assert.assertEquals(8, partition.getMemoryUsed());
+
+        // Replacing an item accounts for the new size only
+        store.set(newItem("key", 0, "longer value"), false);
+        Assert.assertEquals(15, partition.getMemoryUsed());
+
+        // Appending modifies the stored item
+        store.append(newItem("key", 0, "!!"), false);
+        Assert.assertEquals(17, partition.getMemoryUsed());
+        store.prepend(newItem("key", 0, "<"), false);
+        Assert.assertEquals(18, partition.getMemoryUsed());
+
+        store.delete(new KeySpec("key", (short) 0), 0, false);
+        Assert.assertEquals(0, partition.size());
+        Assert.assertEquals(0, partition.getMemoryUsed());
+    }
+
+    @Test
+    public void testClear() {
+        for (int ii = 0; ii < 100; ii++) {
+            store.set(newItem("key" + ii, ii % 4, "value"), false);
+        }
+        Assert.assertEquals(100, store.size());
+        Assert.assertNotNull(store.getRandom());
+
+        store.clear();
+        Assert.assertEquals(0, store.size());
+        for (int ii = 0; ii < store.getNumPartitions(); ii++) {
+            Assert.assertEquals(0, store.getPartition(ii).getMemoryUsed());
+        }
+        Assert.assertNull(store.getRandom());
+    }
+
+    @Test
+    public void testMemoryQuota() {
+        store.setMemoryQuota(20);
+        Assert.assertEquals(ErrorCode.SUCCESS, store.set(newItem("key", 0, "0123456789"), false).getStatus());
+        Assert.assertEquals(ErrorCode.ETMPFAIL, store.set(newItem("other", 1, "0123456789"), false).getStatus());
+        Assert.assertEquals(ErrorCode.ETMPFAIL, store.append(newItem("key", 0, "0123456789"), false).getStatus());
+        // Replacing an item with a smaller one is always allowed
+        Assert.assertEquals(ErrorCode.SUCCESS, store.set(newItem("key", 0, "0"), false).getStatus());
+        Assert.assertEquals(2, store.getTmpOomErrors());
+        Assert.assertEquals(15, store.getRefusedBytes());
+        Assert.assertEquals(15, store.takeRefusedBytes());
+        Assert.assertEquals(0, store.takeRefusedBytes());
+    }
+
+    @Test
+    public void testEvictedValueIsFetched() {
+        Item item = newItem("key", 0, "value");
+        store.set(item, false);
+        final Map<KeySpec, Item> disk = new HashMap<KeySpec, Item>();
+        disk.put(item.getKeySpec(), new Item(item));
+        store.itemFetcher = new VBucketStore.ItemFetcher() {
+            @Override
+            public Item fetch(KeySpec ks) {
+                return disk.get(ks);
+            }
+        };
+
+        VBucketPartition partition = store.getPartition(0);
+        Assert.assertEquals(5, partition.evictValue(item));
+        Assert.assertFalse(item.isResident());
+        Assert.assertEquals(3, store.getMemoryUsed());
+        Assert.assertEquals(1, partition.getNumNonResident());
+
+        Assert.assertEquals("value", new String(store.get(item.getKeySpec()).getValue()));
+        Assert.assertTrue(item.isResident());
+        Assert.assertEquals(8, store.getMemoryUsed());
+        Assert.assertEquals(0, partition.getNumNonResident());
+        Assert.assertEquals(1, store.getBgFetched());
+
+        // If the item is no longer on disk, it is gone
+        partition.evictValue(item);
+        disk.clear();
+        Assert.assertNull(store.get(item.getKeySpec()));
+        Assert.assertEquals(0, partition.size());
+        Assert.assertEquals(0, partition.getNumNonResident());
+        Assert.assertEquals(0, store.getMemoryUsed());
+    }
+
+    @Test
+    public void testFetchingFreedValue() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        store.setValueAllocator(allocator);
+        Item item = newItem("key", 0, "value");
+        store.set(item, false);
+        final Map<KeySpec, Item> disk = new HashMap<KeySpec, Item>();
+        disk.put(item.getKeySpec(), new Item(item));
+        store.itemFetcher = new VBucketStore.ItemFetcher() {
+            @Override
+            public Item fetch(KeySpec ks) {
+                return disk.get(ks);
+            }
+        };
+
+        // The persisted copy is dropped (and its value freed) just as it is read back
+        VBucketPartition partition = store.getPartition(0);
+        partition.evictItem(item, true);
+        disk.get(item.getKeySpec()).releaseValue();
+        Assert.assertEquals(0, allocator.getNumValues());
+        Assert.assertNull(store.get(item.getKeySpec()));
+        Assert.assertTrue(partition.isEvicted(item.getKeySpec()));
+
+        // The copy which replaced it is read instead
+        disk.put(item.getKeySpec(), newItem("key", 0, "other"));
+        Assert.assertEquals("other", new String(store.get(item.getKeySpec()).getValue()));
+    }
+
+    @Test
+    public void testOffHeapValues() {
+        SlabAllocator allocator = new SlabAllocator(4096, 0);
+        store.setValueAllocator(allocator);
+        VBucketPartition partition = store.getPartition(0);
+
+        Item item = newItem("key", 0, "value");
+        store.set(item, false);
+        Assert.assertTrue(item.isOffHeap());
+        Assert.assertEquals(1, allocator.getNumValues());
+        Assert.assertEquals("value", new String(store.get(new KeySpec("key", (short) 0)).getValue()));
+        Assert.assertEquals(8, partition.getMemoryUsed());
+
+        // A copy (as kept for persistence) shares the value
+        Item copy = new Item(item);
+        store.append(newItem("key", 0, "!"), false);
+        Assert.assertEquals("value!", new String(store.get(new KeySpec("key", (short) 0)).getValue()));
+        Assert.assertEquals("value", new String(copy.getValue()));
+        Assert.assertEquals(2, allocator.getNumValues());
+        copy.releaseValue();
+        Assert.assertEquals(1, allocator.getNumValues());
+
+        // Replacing, deleting and flushing free the values
+        store.set(newItem("key", 0, "other"), false);
+        Assert.assertEquals(1, allocator.getNumValues());
+        store.delete(new KeySpec("key", (short) 0), 0, false);
+        Assert.assertEquals(0, allocator.getNumValues());
+        for (int ii = 0; ii < 10; ii++) {
+            store.set(newItem("key" + ii, ii % 4, "value"), false);
+        }
+        Assert.assertEquals(10, allocator.getNumValues());
+        store.clear();
+        Assert.assertEquals(0, allocator.getNumValues());
+    }
+
+    @Test
+    public void testExpireItems() {
+        final Map<KeySpec, Item> deleted = new HashMap<KeySpec, Item>();
+        store.onItemDelete = new VBucketStore.ItemAction() {
+            @Override
+            public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms) {
+                deleted.put(itm.getKeySpec(), itm);
+            }
+        };
+        for (int ii = 0; ii < 10; ii++) {
+            Item item = newItem("key_" + ii, 0, "value");
+            item.setExpiryTime(ii < 5 ? 10 : 100);
+            store.set(item, false);
+        }
+        // Neither expired nor in the queue
+        store.set(newItem("forever", 0, "value"), false);
+        // Stale entries are skipped
+        Item replaced = newItem("key_0", 0, "value");
+        store.set(replaced, false);
+        store.touch(store.get(new KeySpec("key_1", (short) 0)), 1000, false);
+        store.delete(new KeySpec("key_2", (short) 0), 0, false);
+        deleted.clear();
+
+        long now = VBucketStore.now();
+        Assert.assertEquals(0, store.expireItems(0, now, 100));
+        Assert.assertFalse(store.getPartition(0).hasExpired(now / 1000));
+
+        // Two are due, but at most one is taken at a time
+        now += 20 * 1000;
+        Assert.assertTrue(store.getPartition(0).hasExpired(now / 1000));
+        int removed = 0;
+        while (store.getPartition(0).hasExpired(now / 1000)) {
+            removed += store.expireItems(0, now, 1);
+        }
+        Assert.assertEquals(2, removed);
+        Assert.assertEquals(2, deleted.size());
+        Assert.assertTrue(deleted.containsKey(new KeySpec("key_3", (short) 0)));
+        Assert.assertTrue(deleted.containsKey(new KeySpec("key_4", (short) 0)));
+        Assert.assertEquals(8, store.getPartition(0).size());
+
+        now += 2000 * 1000;
+        Assert.assertEquals(6, store.expireItems(0, now, 100));
+        Assert.assertEquals(2, store.size());
+        Assert.assertNotNull(store.get(new KeySpec("forever", (short) 0)));
+        Assert.assertNotNull(store.get(new KeySpec("key_0", (short) 0)));
+        Assert.assertEquals(0, store.getExpiredAccess());
+    }
+
+    @Test
+    public void testExpiryFollowsClock() {
+        ManualClock clock = new ManualClock();
+        Clock old = Clock.setInstance(clock);
+        try {
+            Item item = newItem("key", 0, "value");
+            item.setExpiryTime(10);
+            store.set(item, false);
+            clock.advance(9 * 1000);
+            Assert.assertNotNull(store.get(item.getKeySpec()));
+            clock.advance(1000);
+            Assert.assertNull(store.get(item.getKeySpec()));
+            Assert.assertEquals(1, store.getExpiredAccess());
+        } finally {
+            Clock.setInstance(old);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.util;
+
+import com.couchbase.mock.Info;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the clocks the items are timed with
+ */
+public class ClockTest extends TestCase {
+    public void testManualClock() {
+        ManualClock clock = new ManualClock(1500);
+        assertEquals(1500, clock.getWallMillis());
+        assertEquals(1, clock.getWallSeconds());
+        clock.advance(600);
+        assertEquals(2100, clock.getWallMillis());
+        assertEquals(2, clock.getWallSeconds());
+    }
+
+    public void testTimeTravel() {
+        ManualClock clock = new ManualClock(10000);
+        // Other tests may have moved the (global) clock of the cluster already
+        long offset = Info.getClockOffset();
+        assertEquals(10000 + offset * 1000, clock.getMillis());
+        Info.timeTravel(5);
+        try {
+            // The offset is applied as soon as the cluster travels
+            assertEquals(10000, clock.getWallMillis());
+            assertEquals(15000 + offset * 1000, clock.getMillis());
+            assertEquals(15 + offset, clock.getSeconds());
+        } finally {
+            Info.timeTravel(-5);
+        }
+        assertEquals(10000 + offset * 1000, clock.getMillis());
+    }
+
+    public void testCachedClockTicks() throws Exception {
+        CachedClock clock = new CachedClock(1);
+        try {
+            long start = clock.getWallMillis();
+            assertTrue(Math.abs(System.currentTimeMillis() - start) < 1000);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (clock.getWallMillis() == start && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(clock.getWallMillis() > start);
+            assertEquals(clock.getWallMillis() / 1000, clock.getWallSeconds(), 1);
+        } finally {
+            clock.close();
+        }
+
+        // Once closed, the clock no longer ticks
+        long stopped = clock.getWallMillis();
+        Thread.sleep(20);
+        assertEquals(stopped, clock.getWallMillis());
+    }
+
+    public void testSwapClock() {
+        ManualClock manual = new ManualClock(42000);
+        Clock old = Clock.setInstance(manual);
+        try {
+            assertSame(manual, Clock.getInstance());
+            assertEquals(42 + Info.getClockOffset(), Clock.getInstance().getSeconds());
+        } finally {
+            Clock.setInstance(old);
+        }
+        assertSame(old, Clock.getInstance());
+    }
+}